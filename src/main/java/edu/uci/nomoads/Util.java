@@ -54,6 +54,8 @@ public class Util {
 
 	public String getTreeLabelsFile() { return treeLabelsFile; }
 
+    public String getModelBundleFile() { return modelFolder + "models.bundle"; }
+
     /**
      * Creates directory if it does not exist. If needed, parent directories are also created.
      * @param pathToDir path to directory
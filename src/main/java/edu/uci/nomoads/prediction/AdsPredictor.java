@@ -19,43 +19,199 @@ package edu.uci.nomoads.prediction;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import edu.uci.nomoads.Util;
 import weka.classifiers.trees.J48;
 import weka.core.Instance;
+import weka.core.Instances;
 import weka.core.SerializationHelper;
 import weka.core.SparseInstance;
 
 /**
- * Used to predict on test set
+ * Used to predict on test set. Can be shared by any number of threads (see {@link Predictor}).
  */
 public class AdsPredictor extends Predictor {
 
+    /** Reused for counting features found in packets, one per thread, see
+     * {@link #getInstance(ByteBuffer, String, int)} */
+    private final ThreadLocal<FeatureCounter> featureCounter = new ThreadLocal<FeatureCounter>() {
+        @Override
+        protected FeatureCounter initialValue() {
+            return new FeatureCounter();
+        }
+    };
+
+    /** Batches are split into chunks of about this many packets when classified in parallel,
+     * see {@link #predictBatch(ByteBuffer[], String[], ForkJoinPool)} */
+    static final int BATCH_CHUNK_SIZE = 256;
+
+    /** Classes are only generated for trees if there are at most this many models, see
+     * {@link TreeClassGenerator} */
+    private final int maxGeneratedTrees;
+
     public AdsPredictor(Util util) throws Exception {
+        this(util, DPIType.SERVER);
+    }
+
+    /**
+     * Loads all J48 models, searching packets for features with the selected DPI implementation
+     * @param util utility object
+     * @param dpiFactory creates the {@link DPIInterface} objects that search packets for
+     *                   features: one of the {@link DPIType}s, or any other implementation
+     */
+    public AdsPredictor(Util util, DPIInterface.Factory dpiFactory) throws Exception {
+        this(util, new PredictorOptions().setDpiFactory(dpiFactory));
+    }
+
+    /**
+     * Loads J48 models as selected by the given options. Note that classes are not generated for
+     * trees in lazy mode (see {@link PredictorOptions#setMaxGeneratedTrees(int)}), since
+     * compiling them on first use would hold up the packet that needs them.
+     * @param util utility object
+     * @param options how to load and evaluate the models
+     */
+    public AdsPredictor(Util util, PredictorOptions options) throws Exception {
         // Passing empty list for known PII here since on the server side, the PII are scrubbed and
         // are separate labels in JSON objects
-        super(J48.class.toString().substring(6), util, new ServerDPI(), new ArrayList<String>(0));
+        super(J48.class.toString().substring(6), util, new ArrayList<String>(0), options);
+        this.maxGeneratedTrees = options.getMaxGeneratedTrees();
+
+        snapshot = prepareSnapshot(snapshot, null);
+    }
+
+    /**
+     * Builds a predictor for a single J48 model that is already in memory, e.g. one that was just
+     * trained, so that it can be used without writing it to disk and loading every other model
+     * along with it. Such predictors cannot be reloaded.
+     * @param domainOS name of the classifier
+     * @param model the model
+     * @param structure the structure of the data the model was trained on
+     * @param treeLabels the tree labels of the model
+     * @param options how to evaluate the model
+     */
+    public AdsPredictor(String domainOS, J48 model, Instances structure,
+                        Collection<String> treeLabels, PredictorOptions options) {
+        super(J48.class.toString().substring(6), singleModel(options.getDpiFactory(), domainOS,
+                model, structure, treeLabels), options);
+        this.maxGeneratedTrees = options.getMaxGeneratedTrees();
+
+        snapshot = prepareSnapshot(snapshot, null);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    protected void loadDomainModel(String pathToModel, String domainOS) throws Exception {
-        J48 classifier = (J48) SerializationHelper.read(pathToModel);
-        domainOSModel.put(domainOS, classifier);
+    protected Object loadDomainModel(String pathToModel, String domainOS) throws Exception {
+        return SerializationHelper.read(pathToModel);
+    }
+
+    /**
+     * Compiles the trees of the loaded models (see {@link #compileTrees(ModelSnapshot,
+     * ModelSnapshot)})
+     */
+    @Override
+    protected ModelSnapshot prepareSnapshot(ModelSnapshot loaded, ModelSnapshot previous) {
+        return loaded.withTreeEvaluators(compileTrees(loaded, previous));
+    }
+
+    /**
+     * Prepares evaluators for all trees of the given snapshot: {@link CompiledTree}s, or classes
+     * generated by {@link TreeClassGenerator} if there are at most {@link #maxGeneratedTrees}
+     * trees. Trees that cannot be compiled are left to Weka.
+     * @param models the models to compile
+     * @param previous the models currently in use, or {@code null}. Evaluators of trees that did
+     *                 not change are reused.
+     * @return evaluators of the trees, mapped by classifier name
+     */
+    private Map<String, TreeEvaluator> compileTrees(ModelSnapshot models,
+                                                    ModelSnapshot previous) {
+        Map<String, TreeEvaluator> reused = new HashMap<>();
+        Map<String, CompiledTree> compiledTrees = new HashMap<>();
+        for (String domainOS : models.domainOSModel.keySet()) {
+            Object model = models.domainOSModel.get(domainOS);
+            if (model instanceof MappedTree) {
+                // Shared from a model bundle, evaluated in place
+                reused.put(domainOS, (MappedTree) model);
+                continue;
+            }
+
+            Instances structure = models.domainOSStruct.get(domainOS);
+            if (structure == null)
+                continue;
+
+            if (previous != null && previous.treeEvaluators.containsKey(domainOS) &&
+                    previous.domainOSModel.get(domainOS) == models.domainOSModel.get(domainOS) &&
+                    structure.equalHeaders(previous.domainOSStruct.get(domainOS))) {
+                reused.put(domainOS, previous.treeEvaluators.get(domainOS));
+                continue;
+            }
+
+            if (model instanceof CompiledTree) {
+                // Loaded from a model bundle, already compiled
+                compiledTrees.put(domainOS, (CompiledTree) model);
+                continue;
+            }
+
+            J48 classifier = (J48) model;
+            CompiledTree tree = CompiledTree.compile(classifier, structure);
+            if (tree != null && tree.verify(tree, classifier, structure))
+                compiledTrees.put(domainOS, tree);
+            else
+                System.out.println("WARNING: Using Weka to evaluate tree of " + domainOS);
+        }
+
+        Map<String, TreeEvaluator> treeEvaluators = new HashMap<String, TreeEvaluator>(
+                compiledTrees);
+        treeEvaluators.putAll(reused);
+        if (maxGeneratedTrees <= 0 || compiledTrees.isEmpty() || isLazy())
+            return treeEvaluators;
+
+        int numTrees = compiledTrees.size() + reused.size();
+        if (numTrees > maxGeneratedTrees) {
+            System.out.println("WARNING: Too many trees to generate classes for (" +
+                    numTrees + " > " + maxGeneratedTrees + "), evaluating them " +
+                    "from arrays");
+            return treeEvaluators;
+        }
+
+        Map<String, TreeEvaluator> generated = TreeClassGenerator.generate(compiledTrees);
+        for (Map.Entry<String, TreeEvaluator> entry : generated.entrySet()) {
+            String domainOS = entry.getKey();
+            // Make sure the generated class agrees with Weka (or with the bundled tree, if there is
+            // no Weka model) before replacing the compiled tree
+            CompiledTree tree = compiledTrees.get(domainOS);
+            Object model = models.domainOSModel.get(domainOS);
+            Instances structure = models.domainOSStruct.get(domainOS);
+            boolean verified = model instanceof J48 ?
+                    tree.verify(entry.getValue(), (J48) model, structure) :
+                    tree.verify(entry.getValue(), tree, structure.numAttributes());
+            if (verified)
+                treeEvaluators.put(domainOS, entry.getValue());
+            else
+                System.out.println("WARNING: Generated class of " + domainOS + " is wrong, " +
+                        "evaluating its tree from arrays");
+        }
+        return treeEvaluators;
     }
 
     /**
      * Searches the given packet for any features appearing in the classifier tree
      * @param packet the packet to search
+     * @param domainOS the classifier whose features to search for
      * @return a list of features found in the packet
      */
-    public ArrayList<String> getFeatures(ByteBuffer packet) {
+    public ArrayList<String> getFeatures(ByteBuffer packet, String domainOS) {
         ArrayList<String> features = new ArrayList<>();
-        ArrayList<String> foundStrings = dpiInterface.search(packet, packet.limit());
+        ArrayList<String> foundStrings = getClassifierMatcher(domainOS).dpiInterface.search(
+                packet, packet.limit());
         final int LOOP_SIZE = 2;
         for (int i = 0; i < foundStrings.size(); i += LOOP_SIZE) {
             String foundStr = foundStrings.get(i);
@@ -73,20 +229,359 @@ public class AdsPredictor extends Predictor {
      * @return
      */
     public Instance getInstance(List<String> features, String domainOS, int label) {
-        Map<String, Integer> fi = getClassifierFeatures(domainOS);
+        FeatureIndex fi = getClassifierFeatures(domainOS);
 
         int numAttributes = fi.size();
-        double instanceValues[] = new double[numAttributes];
-        for (int i = 0; i < numAttributes; i++) {
-            instanceValues[i] = 0;
+        SparseInstanceBuilder instanceValues = new SparseInstanceBuilder(numAttributes);
+        for (String feature : features) {
+            int attrIdx = fi.indexOf(feature);
+            if (attrIdx != FeatureIndex.NOT_FOUND) {
+                instanceValues.add(attrIdx, 1);
+            }
         }
+        instanceValues.set(numAttributes - 1, label);
+        return instanceValues.build(1.0);
+    }
 
-        for (String feature : features) {
-            if (fi.containsKey(feature)) {
-                instanceValues[fi.get(feature)]++;
+    /**
+     * Searches the given packet for features of the given classifier, and creates an
+     * {@link Instance} from them that can be used by Weka to predict. Unlike
+     * {@link #getFeatures(ByteBuffer, String)} followed by
+     * {@link #getInstance(List, String, int)}, found features are counted directly, without
+     * creating any intermediate objects.
+     * @param packet the packet to search
+     * @param domainOS the classifier that will be used for prediction
+     * @param label the label of the packet
+     * @return the instance/data point representing the packet
+     */
+    public Instance getInstance(ByteBuffer packet, String domainOS, int label) {
+        ModelSnapshot models = snapshot.resolve(domainOS);
+        return countFeatures(models, packet, domainOS).toInstance(label);
+    }
+
+    /**
+     * Searches the given packet for features of the given classifier and classifies it. Trees
+     * are evaluated directly from the found features when possible (see {@link TreeEvaluator}),
+     * which gives the same result as classifying {@link #getInstance(ByteBuffer, String, int)}
+     * with Weka, without creating any objects.
+     * @param packet the packet to classify
+     * @param domainOS the classifier to use
+     * @return the predicted label
+     * @throws Exception if Weka had to be used and could not classify the packet, or if the
+     * model was loaded from a {@link ModelBundle} and has no Weka model to fall back on
+     */
+    public int classify(ByteBuffer packet, String domainOS) throws Exception {
+        ModelSnapshot models = snapshot.resolve(domainOS);
+        return classify(models, domainOS, models.getClassifierMatcher(domainOS),
+                models.getClassifierFeatures(domainOS).size(), models.getTreeEvaluator(domainOS),
+                packet);
+    }
+
+    /**
+     * Classifies each of the given packets with its own classifier, like
+     * {@link #classify(ByteBuffer, String)} does. All packets are classified with the same models,
+     * even if they are reloaded in the meantime. Packets are grouped by classifier, so that each
+     * classifier is looked up once per batch and its matcher and tree stay in the cache while its
+     * packets are classified.
+     * @param packets the packets to classify
+     * @param domainOS the classifier to use for each packet
+     * @return the predicted label of each packet
+     * @throws Exception if Weka had to be used and could not classify a packet
+     */
+    public int[] predictBatch(ByteBuffer[] packets, String[] domainOS) throws Exception {
+        return predictBatch(packets, domainOS, null);
+    }
+
+    /**
+     * Same as {@link #predictBatch(ByteBuffer[], String[])}, but large batches are split into
+     * chunks of at least {@link #BATCH_CHUNK_SIZE} packets that are classified in parallel
+     * @param packets the packets to classify
+     * @param domainOS the classifier to use for each packet
+     * @param pool the pool to classify chunks in, or {@code null} to classify all packets in the
+     *             calling thread
+     * @return the predicted label of each packet
+     * @throws Exception if Weka had to be used and could not classify a packet
+     */
+    public int[] predictBatch(ByteBuffer[] packets, String[] domainOS, ForkJoinPool pool)
+            throws Exception {
+        if (packets.length != domainOS.length)
+            throw new IllegalArgumentException("Got " + packets.length + " packets but " +
+                    domainOS.length + " classifiers");
+
+        ModelSnapshot models = snapshot;
+        int[] order = groupByClassifier(domainOS);
+        int[] labels = new int[packets.length];
+        if (pool == null || packets.length <= BATCH_CHUNK_SIZE) {
+            classifyBatch(models, packets, domainOS, order, 0, order.length, labels);
+            return labels;
+        }
+
+        try {
+            pool.invoke(new BatchTask(models, packets, domainOS, order, 0, order.length,
+                    labels));
+        } catch (BatchException e) {
+            throw (Exception) e.getCause();
+        }
+        return labels;
+    }
+
+    /**
+     * Sorts packets by classifier, keeping the order of packets of the same classifier
+     * @param domainOS the classifier of each packet
+     * @return indexes of the packets, grouped by classifier
+     */
+    private static int[] groupByClassifier(String[] domainOS) {
+        Map<String, Integer> groups = new HashMap<>();
+        int[] packetGroups = new int[domainOS.length];
+        int[] groupStarts = new int[domainOS.length + 1];
+        for (int i = 0; i < domainOS.length; i++) {
+            Integer group = groups.get(domainOS[i]);
+            if (group == null) {
+                group = groups.size();
+                groups.put(domainOS[i], group);
             }
+            packetGroups[i] = group;
+            groupStarts[group + 1]++;
+        }
+
+        // Counting sort: each group starts after all packets of the previous groups
+        for (int group = 1; group <= groups.size(); group++)
+            groupStarts[group] += groupStarts[group - 1];
+        int[] order = new int[domainOS.length];
+        for (int i = 0; i < domainOS.length; i++)
+            order[groupStarts[packetGroups[i]]++] = i;
+        return order;
+    }
+
+    /**
+     * Classifies the packets at the given range of {@code order}, looking up each classifier once
+     * per run of packets that use it
+     */
+    private void classifyBatch(ModelSnapshot batchModels, ByteBuffer[] packets, String[] domainOS,
+                               int[] order, int from, int to, int[] labels) throws Exception {
+        String classifier = null;
+        ModelSnapshot models = null;
+        FeatureMatcher matcher = null;
+        int numAttributes = 0;
+        TreeEvaluator tree = null;
+        for (int i = from; i < to; i++) {
+            int packet = order[i];
+            if (models == null || !equals(classifier, domainOS[packet])) {
+                classifier = domainOS[packet];
+                models = batchModels.resolve(classifier);
+                matcher = models.getClassifierMatcher(classifier);
+                numAttributes = models.getClassifierFeatures(classifier).size();
+                tree = models.getTreeEvaluator(classifier);
+            }
+            labels[packet] = classify(models, classifier, matcher, numAttributes, tree,
+                    packets[packet]);
+        }
+    }
+
+    private static boolean equals(String s1, String s2) {
+        return s1 == null ? s2 == null : s1.equals(s2);
+    }
+
+    /**
+     * Classifies a packet with parts of a classifier that were already looked up
+     * @param models the models to use, already resolved for the classifier
+     * @param domainOS the classifier to use
+     * @param matcher matcher of the classifier
+     * @param numAttributes number of attributes of the classifier
+     * @param tree evaluator of the classifier's tree, or {@code null}
+     * @param packet the packet to classify
+     * @return the predicted label
+     * @throws Exception if Weka had to be used and could not classify the packet
+     */
+    private int classify(ModelSnapshot models, String domainOS, FeatureMatcher matcher,
+                         int numAttributes, TreeEvaluator tree, ByteBuffer packet)
+            throws Exception {
+        FeatureCounter counter = countFeatures(matcher, numAttributes, packet);
+
+        if (tree != null) {
+            int label = tree.classify(counter.values);
+            if (label != TreeEvaluator.UNKNOWN)
+                return label;
+        }
+
+        Object model = models.getClassifierModel(domainOS);
+        if (!(model instanceof J48))
+            throw new Exception("Cannot classify missing values of " + domainOS +
+                    " without its Weka model");
+
+        // The class is what is being predicted, its value does not matter
+        Instance instance = counter.toInstance(0);
+        instance.setDataset(models.getClassifierInstances(domainOS));
+        return (int) ((J48) model).classifyInstance(instance);
+    }
+
+    /**
+     * Convenience method for retrieving the tree evaluator of a specific classifier
+     * @param classifierName the name of the classifier whose evaluator to retrieve
+     * @return the tree evaluator of the specified classifier if a model for it exists, otherwise
+     * the tree evaluator of the general classifier. {@code null} is returned if the selected tree
+     * could not be compiled.
+     */
+    protected TreeEvaluator getTreeEvaluator(String classifierName) {
+        return snapshot.resolve(classifierName).getTreeEvaluator(classifierName);
+    }
+
+    /**
+     * Searches the given packet for features of the given classifier and counts them
+     * @param models the models to use
+     * @param packet the packet to search
+     * @param domainOS the classifier whose features to count
+     * @return feature counts, in a counter that belongs to the current thread and is reused for
+     * its next packet
+     */
+    private FeatureCounter countFeatures(ModelSnapshot models, ByteBuffer packet, String domainOS) {
+        return countFeatures(models.getClassifierMatcher(domainOS),
+                models.getClassifierFeatures(domainOS).size(), packet);
+    }
+
+    /**
+     * Searches the given packet with the given matcher and counts the features it found
+     * @param matcher matcher of the classifier whose features to count
+     * @param numAttributes number of attributes of the classifier
+     * @param packet the packet to search
+     * @return feature counts, see {@link #countFeatures(ModelSnapshot, ByteBuffer, String)}
+     */
+    private FeatureCounter countFeatures(FeatureMatcher matcher, int numAttributes,
+                                         ByteBuffer packet) {
+        FeatureCounter counter = featureCounter.get();
+        counter.prepare(matcher.stringAttributes, numAttributes);
+        matcher.dpiInterface.search(packet, packet.limit(), counter);
+        return counter;
+    }
+
+    /**
+     * Classifies a chunk of a batch, splitting it in half while it is bigger than
+     * {@link #BATCH_CHUNK_SIZE}
+     */
+    private class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ModelSnapshot models;
+        private final ByteBuffer[] packets;
+        private final String[] domainOS;
+        private final int[] order;
+        private final int from;
+        private final int to;
+        private final int[] labels;
+
+        BatchTask(ModelSnapshot models, ByteBuffer[] packets, String[] domainOS, int[] order,
+                  int from, int to, int[] labels) {
+            this.models = models;
+            this.packets = packets;
+            this.domainOS = domainOS;
+            this.order = order;
+            this.from = from;
+            this.to = to;
+            this.labels = labels;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_CHUNK_SIZE) {
+                try {
+                    classifyBatch(models, packets, domainOS, order, from, to, labels);
+                } catch (Exception e) {
+                    throw new BatchException(e);
+                }
+                return;
+            }
+
+            int mid = (from + to) >>> 1;
+            invokeAll(new BatchTask(models, packets, domainOS, order, from, mid, labels),
+                    new BatchTask(models, packets, domainOS, order, mid, to, labels));
+        }
+    }
+
+    /**
+     * Carries exceptions thrown while classifying a chunk out of the pool
+     */
+    private static class BatchException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        BatchException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Counts occurrences of features in a packet, based on the ids of the search strings that
+     * were found. Not thread-safe, each thread has its own (see {@link #featureCounter}).
+     */
+    private static class FeatureCounter implements DPIInterface.MatchListener {
+        private int[] stringAttributes;
+
+        /** Feature counts of the current packet, indexed by attribute */
+        double[] values;
+
+        /** Attributes counted for the current packet, so that only they have to be cleared for
+         * the next one, and instances can be built without going through all attributes */
+        private int[] found = new int[16];
+        private int numFound = 0;
+
+        /**
+         * Prepares the counter for a new packet, zeroing {@link #values}
+         * @param stringAttributes attribute indexes of the search strings (see
+         * {@link FeatureMatcher#stringAttributes})
+         * @param numAttributes number of attributes of the classifier
+         */
+        void prepare(int[] stringAttributes, int numAttributes) {
+            this.stringAttributes = stringAttributes;
+            if (values == null || values.length != numAttributes) {
+                values = new double[numAttributes];
+            } else {
+                for (int i = 0; i < numFound; i++)
+                    values[found[i]] = 0;
+            }
+            numFound = 0;
+        }
+
+        @Override
+        public void onMatch(int stringId, int endIdx) {
+            int attrIdx = stringAttributes[stringId];
+            if (attrIdx == FeatureMatcher.NO_ATTRIBUTE)
+                return;
+
+            if (values[attrIdx] == 0) {
+                if (numFound == found.length)
+                    found = Arrays.copyOf(found, numFound * 2);
+                found[numFound++] = attrIdx;
+            }
+            values[attrIdx]++;
+        }
+
+        /**
+         * Builds an instance from the feature counts of the current packet, taking only the
+         * attributes that were counted
+         * @param classValue value of the class, which is the last attribute
+         * @return the instance
+         */
+        Instance toInstance(double classValue) {
+            int classIndex = values.length - 1;
+            Arrays.sort(found, 0, numFound);
+
+            int[] indices = new int[numFound + 1];
+            double[] instanceValues = new double[numFound + 1];
+            int numValues = 0;
+            for (int i = 0; i < numFound; i++) {
+                if (found[i] == classIndex)
+                    continue;
+                indices[numValues] = found[i];
+                instanceValues[numValues] = values[found[i]];
+                numValues++;
+            }
+            if (classValue != 0) {
+                indices[numValues] = classIndex;
+                instanceValues[numValues] = classValue;
+                numValues++;
+            }
+
+            return new SparseInstance(1.0, Arrays.copyOf(instanceValues, numValues),
+                    Arrays.copyOf(indices, numValues), values.length);
         }
-        instanceValues[numAttributes - 1] = label;
-        return new SparseInstance(1.0, instanceValues);
     }
 }
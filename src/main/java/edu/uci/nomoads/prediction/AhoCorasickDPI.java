@@ -0,0 +1,402 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.prediction;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.TreeMap;
+
+/**
+ * An implementation of DPI based on the Aho-Corasick algorithm: all provided search strings are
+ * compiled into a single automaton in {@link #init(String[])}, so that each packet is scanned only
+ * once, regardless of how many strings we are searching for. Produces the same matches as
+ * {@link ServerDPI}, but reports them in the order in which they end in the packet. Like
+ * {@link ServerDPI}, occurrences of the same string never overlap: "aa" is found twice in "aaaa".
+ * <p>
+ * When created in byte mode, the search strings are encoded as UTF-8 and matched directly
+ * against the bytes of the packet, between its position and limit. The packet is then never
+ * decoded nor copied, so any {@link ByteBuffer} can be searched (direct, read-only, sliced, etc.),
+ * and the reported ending positions are byte offsets relative to the position of the packet.
+ * </p>
+ */
+class AhoCorasickDPI implements DPIInterface {
+    /** State that the automaton starts in (the root of the trie) */
+    private static final int ROOT = 0;
+
+    /** Indicates that a state has no outgoing transition/link */
+    private static final int NO_STATE = -1;
+
+    /** Size of the {@link #rootTransitions} table: covers all bytes and all ASCII characters */
+    private static final int ROOT_TABLE_SIZE = 256;
+
+    /** Used in {@link #overlapSlots} for strings that cannot overlap themselves */
+    private static final int NO_SLOT = -1;
+
+    /** Reused by each thread to track the last occurrences of strings in the packet it is
+     * searching, see {@link OverlapTracker} */
+    private static final ThreadLocal<OverlapTracker> overlapTracker =
+            new ThreadLocal<OverlapTracker>() {
+        @Override
+        protected OverlapTracker initialValue() {
+            return new OverlapTracker();
+        }
+    };
+
+    /** Whether to match UTF-8 bytes of the packet instead of decoded characters */
+    private final boolean matchBytes;
+
+    private String[] searchStrings;
+
+    /** Length of each of the {@link #searchStrings}, in the symbols the automaton matches */
+    private int[] searchLengths;
+
+    /** Slot in {@link OverlapTracker} of each string that can overlap itself (e.g. "aa" or
+     * "abab"), or {@link #NO_SLOT}. Occurrences of other strings never overlap, so only these
+     * have to be tracked. */
+    private int[] overlapSlots;
+    private int numOverlapSlots;
+
+    /** Sorted labels of the trie edges leaving each state */
+    private char[][] edgeChars;
+
+    /** Target states of the trie edges leaving each state, in the same order as
+     * {@link #edgeChars} */
+    private int[][] edgeTargets;
+
+    /** Failure link of each state: the state representing the longest proper suffix of the
+     * current state that is also in the trie */
+    private int[] fail;
+
+    /** Indexes (into {@link #searchStrings}) of strings that end at each state, or {@code null}
+     * if no string ends at the given state */
+    private int[][] outputs;
+
+    /** Link to the nearest state along the failure chain that has {@link #outputs}, or
+     * {@link #NO_STATE} if there is none */
+    private int[] outputLink;
+
+    /** Transitions out of the root, indexed directly by symbol since that is the state we are in
+     * for most of the packet */
+    private int[] rootTransitions;
+
+    /**
+     * Creates a DPI object that matches decoded characters, like {@link ServerDPI}
+     */
+    AhoCorasickDPI() {
+        this(false);
+    }
+
+    /**
+     * @param matchBytes {@code true} to match UTF-8 bytes of the packet directly, {@code false} to
+     *                   decode the packet first and match characters
+     */
+    AhoCorasickDPI(boolean matchBytes) {
+        this.matchBytes = matchBytes;
+    }
+
+    @Override
+    public boolean init(String[] searchStrings) {
+        this.searchStrings = searchStrings;
+        searchLengths = new int[searchStrings.length];
+        overlapSlots = new int[searchStrings.length];
+        Arrays.fill(overlapSlots, NO_SLOT);
+        numOverlapSlots = 0;
+
+        // Build the trie. Temporary maps are only used during initialization, they are converted
+        // to arrays below.
+        ArrayList<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        ArrayList<ArrayList<Integer>> trieOutputs = new ArrayList<>();
+        trie.add(new TreeMap<Character, Integer>());
+        trieOutputs.add(null);
+        for (int i = 0; i < searchStrings.length; i++) {
+            String searchStr = searchStrings[i];
+            // Empty strings match everywhere and would make ServerDPI loop forever, skip them
+            if (searchStr == null || searchStr.isEmpty())
+                continue;
+
+            char[] symbols = toSymbols(searchStr);
+            searchLengths[i] = symbols.length;
+            if (hasBorder(symbols))
+                overlapSlots[i] = numOverlapSlots++;
+
+            int state = ROOT;
+            for (char symbol : symbols) {
+                Integer next = trie.get(state).get(symbol);
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<Character, Integer>());
+                    trieOutputs.add(null);
+                    trie.get(state).put(symbol, next);
+                }
+                state = next;
+            }
+
+            // The same string may be passed in more than once (e.g. a tree label that is also
+            // a known PII), report each of them like ServerDPI does
+            if (trieOutputs.get(state) == null)
+                trieOutputs.set(state, new ArrayList<Integer>(1));
+            trieOutputs.get(state).add(i);
+        }
+
+        int numStates = trie.size();
+        edgeChars = new char[numStates][];
+        edgeTargets = new int[numStates][];
+        outputs = new int[numStates][];
+        for (int s = 0; s < numStates; s++) {
+            TreeMap<Character, Integer> edges = trie.get(s);
+            edgeChars[s] = new char[edges.size()];
+            edgeTargets[s] = new int[edges.size()];
+            int e = 0;
+            for (Character c : edges.keySet()) {
+                edgeChars[s][e] = c;
+                edgeTargets[s][e] = edges.get(c);
+                e++;
+            }
+
+            ArrayList<Integer> stateOutputs = trieOutputs.get(s);
+            if (stateOutputs != null) {
+                outputs[s] = new int[stateOutputs.size()];
+                for (int o = 0; o < stateOutputs.size(); o++)
+                    outputs[s][o] = stateOutputs.get(o);
+            }
+        }
+
+        rootTransitions = new int[ROOT_TABLE_SIZE];
+        Arrays.fill(rootTransitions, NO_STATE);
+        for (int e = 0; e < edgeChars[ROOT].length; e++) {
+            if (edgeChars[ROOT][e] < ROOT_TABLE_SIZE)
+                rootTransitions[edgeChars[ROOT][e]] = edgeTargets[ROOT][e];
+        }
+
+        // Compute failure and output links in breadth-first order, so that the links of
+        // shorter prefixes are always ready before they are needed
+        fail = new int[numStates];
+        outputLink = new int[numStates];
+        Arrays.fill(outputLink, NO_STATE);
+        LinkedList<Integer> queue = new LinkedList<>();
+        for (int child : edgeTargets[ROOT]) {
+            fail[child] = ROOT;
+            queue.add(child);
+        }
+
+        while (!queue.isEmpty()) {
+            int state = queue.removeFirst();
+            for (int e = 0; e < edgeChars[state].length; e++) {
+                char c = edgeChars[state][e];
+                int child = edgeTargets[state][e];
+
+                int f = fail[state];
+                while (f != ROOT && getTransition(f, c) == NO_STATE)
+                    f = fail[f];
+                int target = getTransition(f, c);
+                fail[child] = (target == NO_STATE || target == child) ? ROOT : target;
+                outputLink[child] = outputs[fail[child]] != null ? fail[child] :
+                        outputLink[fail[child]];
+
+                queue.add(child);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ArrayList<String> search(ByteBuffer packet, int size) {
+        final ArrayList<String> foundStrings = new ArrayList<>();
+        search(packet, size, new MatchListener() {
+            @Override
+            public void onMatch(int stringId, int endIdx) {
+                // Add the found string and the ending index of where it was found
+                // Add the found string and the ending index of where it was found
+                foundStrings.add(searchStrings[stringId]);
+                foundStrings.add(endIdx + "");
+            }
+        });
+
+        return foundStrings;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void search(ByteBuffer packet, int size, MatchListener listener) {
+        OverlapTracker tracker = null;
+        if (numOverlapSlots > 0) {
+            tracker = overlapTracker.get();
+            tracker.start(numOverlapSlots);
+        }
+
+        int state = ROOT;
+        if (matchBytes) {
+            // Use absolute gets so that the position of the packet is left untouched
+            int start = packet.position();
+            int end = Math.min(packet.limit(), start + size);
+            for (int i = start; i < end; i++) {
+                state = nextState(state, (char) (packet.get(i) & 0xFF));
+                reportMatches(state, i - start + 1, tracker, listener);
+            }
+        } else {
+            String strPacket = ServerDPI.byteBufferToString(packet, size);
+            for (int i = 0; i < strPacket.length(); i++) {
+                state = nextState(state, strPacket.charAt(i));
+                reportMatches(state, i + 1, tracker, listener);
+            }
+        }
+    }
+
+    /**
+     * Reports all strings that end at the given state: the ones of the state itself and of all
+     * of its suffixes. Occurrences that overlap the previous occurrence of the same string are
+     * skipped, since {@link ServerDPI} resumes its search after the end of each occurrence.
+     * @param state the current state of the automaton
+     * @param endIdx the ending position of the strings in the packet
+     * @param tracker last occurrences of the strings that can overlap themselves, or
+     *                {@code null} if there are none
+     * @param listener receives the found strings
+     */
+    private void reportMatches(int state, int endIdx, OverlapTracker tracker,
+                               MatchListener listener) {
+        int s = outputs[state] != null ? state : outputLink[state];
+        while (s != NO_STATE) {
+            int[] stateOutputs = outputs[s];
+            for (int o = 0; o < stateOutputs.length; o++) {
+                int stringId = stateOutputs[o];
+                int slot = overlapSlots[stringId];
+                if (slot != NO_SLOT && !tracker.report(slot, endIdx, searchLengths[stringId]))
+                    continue;
+
+                listener.onMatch(stringId, endIdx);
+            }
+            s = outputLink[s];
+        }
+    }
+
+    /**
+     * Advances the automaton by one character, following failure links as needed
+     * @param state the current state
+     * @param c the next character of the packet
+     * @return the new state
+     */
+    private int nextState(int state, char c) {
+        while (true) {
+            int next = getTransition(state, c);
+            if (next != NO_STATE)
+                return next;
+            if (state == ROOT)
+                return ROOT;
+            state = fail[state];
+        }
+    }
+
+    /**
+     * @param state the state to transition from
+     * @param c the edge label
+     * @return the trie state reached from {@code state} via {@code c}, or {@link #NO_STATE}
+     */
+    private int getTransition(int state, char c) {
+        if (state == ROOT && c < ROOT_TABLE_SIZE)
+            return rootTransitions[c];
+
+        int idx = Arrays.binarySearch(edgeChars[state], c);
+        return idx >= 0 ? edgeTargets[state][idx] : NO_STATE;
+    }
+
+    /**
+     * @param symbols symbols of a search string
+     * @return {@code true} if a proper prefix of the string is also its suffix, which is what
+     * allows occurrences of the string to overlap
+     */
+    private static boolean hasBorder(char[] symbols) {
+        // Prefix function of the string (see the Knuth-Morris-Pratt algorithm)
+        int[] prefix = new int[symbols.length];
+        for (int i = 1; i < symbols.length; i++) {
+            int k = prefix[i - 1];
+            while (k > 0 && symbols[i] != symbols[k])
+                k = prefix[k - 1];
+            prefix[i] = symbols[i] == symbols[k] ? k + 1 : k;
+        }
+        return prefix[symbols.length - 1] > 0;
+    }
+
+    /**
+     * Converts the given string to the symbols the automaton operates on
+     * @param searchStr the string to convert
+     * @return characters of the string, or its UTF-8 bytes (each stored in a {@code char}) when
+     * matching bytes
+     */
+    private char[] toSymbols(String searchStr) {
+        if (!matchBytes)
+            return searchStr.toCharArray();
+
+        byte[] bytes = searchStr.getBytes(Charset.forName("UTF-8"));
+        char[] symbols = new char[bytes.length];
+        for (int i = 0; i < bytes.length; i++)
+            symbols[i] = (char) (bytes[i] & 0xFF);
+        return symbols;
+    }
+
+    /**
+     * Ending positions of the last reported occurrences of strings that can overlap themselves,
+     * so that overlapping occurrences are skipped like {@link ServerDPI} does. Entries are
+     * stamped with the search they belong to, so nothing has to be cleared between packets.
+     */
+    private static class OverlapTracker {
+        private int[] lastEnds = new int[0];
+        private int[] stamps = new int[0];
+        private int search = 0;
+
+        /**
+         * Starts tracking a new packet
+         * @param numSlots number of strings to track
+         */
+        void start(int numSlots) {
+            if (stamps.length < numSlots) {
+                lastEnds = new int[numSlots];
+                stamps = new int[numSlots];
+            }
+            search++;
+            if (search == 0) {
+                // Wrapped around, forget all stamps
+                Arrays.fill(stamps, 0);
+                search = 1;
+            }
+        }
+
+        /**
+         * @param slot the tracked string
+         * @param endIdx ending position of its occurrence
+         * @param length length of the string
+         * @return {@code true} if the occurrence does not overlap the previous one and was
+         * recorded, {@code false} if it should be skipped
+         */
+        boolean report(int slot, int endIdx, int length) {
+            if (stamps[slot] == search && endIdx - length < lastEnds[slot])
+                return false;
+            stamps[slot] = search;
+            lastEnds[slot] = endIdx;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.prediction;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import weka.core.Instances;
+import weka.core.converters.ArffLoader;
+
+/**
+ * Reads and writes the .arff files that hold the features of each classifier, optionally
+ * gzipped. Files are written one instance at a time, so that the whole dataset is never held as a
+ * single String, and only the header is read back, since that is all a {@link Predictor} needs.
+ */
+public class ArffFiles {
+    public static final String ARFF_SUFFIX = ".arff";
+
+    public static final String GZIP_SUFFIX = ".gz";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ArffFiles() {}
+
+    /**
+     * @param featuresDir the directory holding .arff files (see
+     *                    {@link edu.uci.nomoads.Util#getFeaturesDir()})
+     * @param domainOS the classifier
+     * @param gzip whether the file is gzipped
+     * @return path of the .arff file of the given classifier
+     */
+    public static String getPath(String featuresDir, String domainOS, boolean gzip) {
+        return featuresDir + domainOS + ARFF_SUFFIX + (gzip ? GZIP_SUFFIX : "");
+    }
+
+    /**
+     * @param featuresDir the directory holding .arff files
+     * @param domainOS the classifier
+     * @return the .arff file of the given classifier, gzipped or not, or {@code null} if there is
+     * none. If there are both, the one written last is returned.
+     */
+    public static File find(String featuresDir, String domainOS) {
+        File plain = new File(getPath(featuresDir, domainOS, false));
+        File gzipped = new File(getPath(featuresDir, domainOS, true));
+        if (!gzipped.exists())
+            return plain.exists() ? plain : null;
+        if (!plain.exists())
+            return gzipped;
+        return gzipped.lastModified() >= plain.lastModified() ? gzipped : plain;
+    }
+
+    /**
+     * Writes the given instances in the ARFF format: the header, then one instance per line. The
+     * output is the same as {@link Instances#toString()}.
+     * @param instances the instances to write
+     * @param out the stream to write to, preferably buffered. It is not closed.
+     * @param gzip whether to gzip the output
+     * @throws IOException if the instances could not be written
+     */
+    public static void write(Instances instances, OutputStream out, boolean gzip)
+            throws IOException {
+        GZIPOutputStream gzipOut = gzip ? new GZIPOutputStream(out, 1 << 16) : null;
+        Writer writer = new OutputStreamWriter(gzip ? gzipOut : out, UTF8);
+        writer.write(new Instances(instances, 0).toString());
+        for (int i = 0; i < instances.numInstances(); i++) {
+            if (i > 0)
+                writer.write('\n');
+            writer.write(instances.instance(i).toString());
+        }
+        writer.flush();
+        if (gzip)
+            gzipOut.finish();
+    }
+
+    /**
+     * Reads the header of the given .arff file, without reading any of its instances
+     * @param arffFile the file to read, which is gzipped if its name ends with
+     *                 {@link #GZIP_SUFFIX}
+     * @return the structure of the data in the file, without a class index
+     * @throws IOException if the file could not be read
+     */
+    public static Instances readStructure(File arffFile) throws IOException {
+        InputStream in = Files.newInputStream(arffFile.toPath());
+        if (arffFile.getName().endsWith(GZIP_SUFFIX))
+            in = new GZIPInputStream(in, 1 << 16);
+
+        // Capacity 0 makes the reader stop after the header
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF8))) {
+            return new ArffLoader.ArffReader(reader, 0).getStructure();
+        }
+    }
+}
@@ -0,0 +1,530 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.prediction;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import weka.classifiers.trees.J48;
+import weka.classifiers.trees.j48.C45Split;
+import weka.classifiers.trees.j48.ClassifierSplitModel;
+import weka.classifiers.trees.j48.ClassifierTree;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * A {@link J48} tree compiled into flat arrays of attribute indexes, split points and leaf
+ * labels. Evaluates feature values directly, without building an {@link Instance}, and follows
+ * the same rules as {@link ClassifierTree#classifyInstance(Instance)} so that the results match
+ * Weka exactly.
+ * <p>
+ * Nodes are numbered in depth-first order, with the root being node 0. Only trees made of
+ * {@link C45Split} nodes are supported (J48's default, without binary splits). Instances that
+ * Weka would spread across several branches (i.e. missing values) are not classified by the
+ * compiled tree: {@link #UNKNOWN} is returned instead so that the caller can use Weka.
+ * </p>
+ */
+class CompiledTree implements TreeEvaluator {
+    /** Used in {@link #attributes} to mark leaf nodes */
+    static final int LEAF = -1;
+
+    /** Size of each node written by {@link #write(DataOutputStream)}: attribute, nominal flag,
+     * split point, first child, number of children and label */
+    static final int NODE_BYTES = 4 + 1 + 8 + 4 + 4 + 4;
+
+    /** Index of the attribute each node splits on, or {@link #LEAF} */
+    private final int[] attributes;
+
+    /** Whether each node splits on a nominal attribute (one branch per value) or on a numeric
+     * attribute (two branches, see {@link #splitPoints}) */
+    private final boolean[] nominal;
+
+    /** Numeric nodes send values that are smaller than or equal to their split point to their
+     * first child, and bigger values to their second child */
+    private final double[] splitPoints;
+
+    /** Index into {@link #children} of the first child of each node */
+    private final int[] firstChild;
+
+    /** Number of children of each node */
+    private final int[] numChildren;
+
+    /** Children of all nodes */
+    private final int[] children;
+
+    /** Index of the class predicted by each leaf */
+    private final int[] labels;
+
+    /**
+     * Builds a tree from already flattened arrays (see the fields of this class for details)
+     */
+    CompiledTree(int[] attributes, boolean[] nominal, double[] splitPoints, int[] firstChild,
+                 int[] numChildren, int[] children, int[] labels) {
+        this.attributes = attributes;
+        this.nominal = nominal;
+        this.splitPoints = splitPoints;
+        this.firstChild = firstChild;
+        this.numChildren = numChildren;
+        this.children = children;
+        this.labels = labels;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int classify(double[] values) {
+        int node = 0;
+        while (attributes[node] != LEAF) {
+            double value = values[attributes[node]];
+            if (Utils.isMissingValue(value))
+                return UNKNOWN;
+
+            int subset;
+            if (nominal[node]) {
+                subset = (int) value;
+                if (subset < 0 || subset >= numChildren[node])
+                    return UNKNOWN;
+            } else {
+                // Same comparison as C45Split.whichSubset()
+                subset = Utils.smOrEq(value, splitPoints[node]) ? 0 : 1;
+            }
+            node = children[firstChild[node] + subset];
+        }
+        return labels[node];
+    }
+
+    /** @return the number of nodes in this tree */
+    int numNodes() { return attributes.length; }
+
+    /** @return {@code true} if the given node is a leaf */
+    boolean isLeaf(int node) { return attributes[node] == LEAF; }
+
+    /** @return the attribute the given node splits on */
+    int getAttribute(int node) { return attributes[node]; }
+
+    /** @return {@code true} if the given node splits on a nominal attribute */
+    boolean isNominal(int node) { return nominal[node]; }
+
+    /** @return the split point of the given numeric node */
+    double getSplitPoint(int node) { return splitPoints[node]; }
+
+    /** @return the number of children of the given node */
+    int getNumChildren(int node) { return numChildren[node]; }
+
+    /** @return the {@code i}th child of the given node */
+    int getChild(int node, int i) { return children[firstChild[node] + i]; }
+
+    /** @return the class predicted by the given leaf */
+    int getLabel(int node) { return labels[node]; }
+
+    /**
+     * @return the number of nodes on the longest path from the root to a leaf. Computed in a
+     * single pass, since children always come after their parent in depth-first order.
+     */
+    int depth() {
+        int[] depths = new int[attributes.length];
+        int maxDepth = 0;
+        for (int node = 0; node < attributes.length; node++) {
+            if (depths[node] == 0)
+                depths[node] = 1;
+            maxDepth = Math.max(maxDepth, depths[node]);
+            for (int i = 0; i < numChildren[node]; i++) {
+                int child = getChild(node, i);
+                if (child > node)
+                    depths[child] = depths[node] + 1;
+            }
+        }
+        return maxDepth;
+    }
+
+    /*
+    |--------------------------------------------------------------------------
+    | Reading and writing compiled trees (see ModelBundle)
+    |--------------------------------------------------------------------------
+    */
+
+    /**
+     * Writes this tree in the format read by {@link #read(ByteBuffer)}: the number of nodes,
+     * followed by fixed-size node records (see {@link #NODE_BYTES}) and the children of all nodes.
+     * The fixed sizes let {@link MappedTree} evaluate the tree without reading it.
+     * @param out where to write the tree
+     * @throws IOException if the tree could not be written
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(attributes.length);
+        for (int node = 0; node < attributes.length; node++) {
+            out.writeInt(attributes[node]);
+            out.writeBoolean(nominal[node]);
+            out.writeDouble(splitPoints[node]);
+            out.writeInt(firstChild[node]);
+            out.writeInt(numChildren[node]);
+            out.writeInt(labels[node]);
+        }
+
+        out.writeInt(children.length);
+        for (int child : children)
+            out.writeInt(child);
+    }
+
+    /**
+     * Reads a tree written by {@link #write(DataOutputStream)}
+     * @param in buffer positioned at the start of the tree, it is advanced past the tree
+     * @return the tree
+     */
+    static CompiledTree read(ByteBuffer in) {
+        int numNodes = in.getInt();
+        int[] attributes = new int[numNodes];
+        boolean[] nominal = new boolean[numNodes];
+        double[] splitPoints = new double[numNodes];
+        int[] firstChild = new int[numNodes];
+        int[] numChildren = new int[numNodes];
+        int[] labels = new int[numNodes];
+        for (int node = 0; node < numNodes; node++) {
+            attributes[node] = in.getInt();
+            nominal[node] = in.get() != 0;
+            splitPoints[node] = in.getDouble();
+            firstChild[node] = in.getInt();
+            numChildren[node] = in.getInt();
+            labels[node] = in.getInt();
+        }
+
+        int[] children = new int[in.getInt()];
+        for (int i = 0; i < children.length; i++)
+            children[i] = in.getInt();
+
+        return new CompiledTree(attributes, nominal, splitPoints, firstChild, numChildren,
+                children, labels);
+    }
+
+    /**
+     * Makes sure that a tree that was read from a file can be evaluated without going out of
+     * bounds: every node refers to existing attributes, children and classes
+     * @param numAttributes number of attributes of the tree's classifier
+     * @param numClasses number of classes of the tree's classifier
+     * @return {@code true} if the tree is well formed
+     */
+    boolean isValid(int numAttributes, int numClasses) {
+        int numNodes = attributes.length;
+        if (numNodes == 0)
+            return false;
+
+        for (int node = 0; node < numNodes; node++) {
+            if (attributes[node] == LEAF) {
+                if (labels[node] < 0 || labels[node] >= numClasses)
+                    return false;
+                continue;
+            }
+
+            if (attributes[node] < 0 || attributes[node] >= numAttributes ||
+                    numChildren[node] < 1 || (!nominal[node] && numChildren[node] != 2) ||
+                    firstChild[node] < 0 || firstChild[node] + numChildren[node] > children.length)
+                return false;
+
+            // Children are numbered after their parents, so following them always terminates
+            for (int i = 0; i < numChildren[node]; i++) {
+                int child = getChild(node, i);
+                if (child <= node || child >= numNodes)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+    |--------------------------------------------------------------------------
+    | Compiling J48 trees
+    |--------------------------------------------------------------------------
+    */
+
+    /**
+     * Compiles the given tree
+     * @param j48 the tree to compile
+     * @param structure the structure of the data the tree was trained on
+     * @return the compiled tree, or {@code null} if the tree contains nodes that are not supported
+     */
+    static CompiledTree compile(J48 j48, Instances structure) {
+        try {
+            Builder builder = new Builder(structure);
+            builder.addNode((ClassifierTree) getField(J48.class, j48, "m_root"));
+            return builder.build();
+        } catch (Exception e) {
+            System.out.println("WARNING: Could not compile tree: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reads a field that Weka does not expose
+     */
+    private static Object getField(Class<?> cls, Object obj, String fieldName) throws
+            ReflectiveOperationException {
+        Field field = cls.getDeclaredField(fieldName);
+        field.setAccessible(true);
+        return field.get(obj);
+    }
+
+    /**
+     * Flattens a {@link ClassifierTree} into arrays, in depth-first order
+     */
+    private static class Builder {
+        private final Instances structure;
+        private final ArrayList<Integer> attributes = new ArrayList<>();
+        private final ArrayList<Boolean> nominal = new ArrayList<>();
+        private final ArrayList<Double> splitPoints = new ArrayList<>();
+        private final ArrayList<Integer> firstChild = new ArrayList<>();
+        private final ArrayList<Integer> numChildren = new ArrayList<>();
+        private final ArrayList<Integer> children = new ArrayList<>();
+        private final ArrayList<Integer> labels = new ArrayList<>();
+
+        Builder(Instances structure) {
+            this.structure = structure;
+        }
+
+        /**
+         * Adds the given node and all of its children
+         * @param tree the node to add
+         * @return index of the added node
+         */
+        int addNode(ClassifierTree tree) throws Exception {
+            ClassifierSplitModel localModel = (ClassifierSplitModel) getField(
+                    ClassifierTree.class, tree, "m_localModel");
+            if ((Boolean) getField(ClassifierTree.class, tree, "m_isLeaf")) {
+                // A leaf predicts from its own class distribution
+                double[] probs = new double[structure.numClasses()];
+                for (int j = 0; j < probs.length; j++)
+                    probs[j] = localModel.distribution().prob(j);
+                return addLeaf(probs);
+            }
+
+            if (!(localModel instanceof C45Split))
+                throw new Exception("unsupported split model " + localModel.getClass());
+
+            C45Split split = (C45Split) localModel;
+            ClassifierTree[] sons = (ClassifierTree[]) getField(ClassifierTree.class, tree,
+                    "m_sons");
+
+            int node = attributes.size();
+            attributes.add(split.attIndex());
+            nominal.add(structure.attribute(split.attIndex()).isNominal());
+            splitPoints.add(split.splitPoint());
+            firstChild.add(0);
+            numChildren.add(sons.length);
+            labels.add(0);
+
+            // Reserve space for the children so that they are next to each other
+            int childrenStart = children.size();
+            firstChild.set(node, childrenStart);
+            for (int i = 0; i < sons.length; i++)
+                children.add(0);
+
+            for (int i = 0; i < sons.length; i++) {
+                int child;
+                if ((Boolean) getField(ClassifierTree.class, sons[i], "m_isEmpty")) {
+                    // Weka predicts empty branches from the distribution of their parent
+                    double[] probs = new double[structure.numClasses()];
+                    for (int j = 0; j < probs.length; j++)
+                        probs[j] = split.classProb(j, null, i);
+                    child = addLeaf(probs);
+                } else {
+                    child = addNode(sons[i]);
+                }
+                children.set(childrenStart + i, child);
+            }
+
+            return node;
+        }
+
+        /**
+         * Adds a leaf that predicts the most likely class
+         * @param probs class probabilities at the leaf
+         * @return index of the added leaf
+         */
+        private int addLeaf(double[] probs) {
+            // Same rules as ClassifierTree.classifyInstance(): first class wins ties
+            double maxProb = -1;
+            int label = 0;
+            for (int j = 0; j < probs.length; j++) {
+                if (Utils.gr(probs[j], maxProb)) {
+                    label = j;
+                    maxProb = probs[j];
+                }
+            }
+
+            int node = attributes.size();
+            attributes.add(LEAF);
+            nominal.add(false);
+            splitPoints.add(0.0);
+            firstChild.add(0);
+            numChildren.add(0);
+            labels.add(label);
+            return node;
+        }
+
+        CompiledTree build() {
+            int numNodes = attributes.size();
+            int[] attributesArr = new int[numNodes];
+            boolean[] nominalArr = new boolean[numNodes];
+            double[] splitPointsArr = new double[numNodes];
+            int[] firstChildArr = new int[numNodes];
+            int[] numChildrenArr = new int[numNodes];
+            int[] labelsArr = new int[numNodes];
+            for (int i = 0; i < numNodes; i++) {
+                attributesArr[i] = attributes.get(i);
+                nominalArr[i] = nominal.get(i);
+                splitPointsArr[i] = splitPoints.get(i);
+                firstChildArr[i] = firstChild.get(i);
+                numChildrenArr[i] = numChildren.get(i);
+                labelsArr[i] = labels.get(i);
+            }
+
+            int[] childrenArr = new int[children.size()];
+            for (int i = 0; i < childrenArr.length; i++)
+                childrenArr[i] = children.get(i);
+
+            return new CompiledTree(attributesArr, nominalArr, splitPointsArr, firstChildArr,
+                    numChildrenArr, childrenArr, labelsArr);
+        }
+    }
+
+    /*
+    |--------------------------------------------------------------------------
+    | Checking compiled trees against Weka
+    |--------------------------------------------------------------------------
+    */
+
+    /**
+     * Makes sure that the given evaluator agrees with Weka: for every path from the root to a
+     * leaf, builds values that follow the path and classifies them with both.
+     * @param evaluator classifies values the same way as {@link #classify(double[])}; usually the
+     *                  compiled tree itself
+     * @param j48 the original tree
+     * @param structure the structure of the data the tree was trained on
+     * @return {@code true} if all paths were classified the same way
+     */
+    boolean verify(TreeEvaluator evaluator, final J48 j48, final Instances structure) {
+        return verify(evaluator, new TreeEvaluator() {
+            @Override
+            public int classify(double[] values) {
+                Instance instance = new DenseInstance(1.0, values);
+                instance.setDataset(structure);
+                try {
+                    return (int) j48.classifyInstance(instance);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    return UNKNOWN;
+                }
+            }
+        }, structure.numAttributes());
+    }
+
+    /**
+     * Makes sure that two evaluators agree on every path from the root to a leaf of this tree
+     * @param evaluator the evaluator to check
+     * @param expected classifies values correctly, e.g. Weka or this tree
+     * @param numAttributes number of attributes of the tree
+     * @return {@code true} if all paths were classified the same way
+     */
+    boolean verify(TreeEvaluator evaluator, TreeEvaluator expected, int numAttributes) {
+        double[] lower = new double[numAttributes];
+        double[] upper = new double[numAttributes];
+        Arrays.fill(lower, Double.NEGATIVE_INFINITY);
+        Arrays.fill(upper, Double.POSITIVE_INFINITY);
+        return verifyPaths(0, lower, upper, evaluator, expected);
+    }
+
+    /**
+     * Checks all paths going through the given node
+     * @param node the current node
+     * @param lower values on this path must be bigger than these bounds
+     * @param upper values on this path must be smaller than or equal to these bounds
+     */
+    private boolean verifyPaths(int node, double[] lower, double[] upper, TreeEvaluator evaluator,
+                                TreeEvaluator expected) {
+        if (isLeaf(node)) {
+            double[] values = new double[lower.length];
+            for (int a = 0; a < values.length; a++) {
+                if (upper[a] != Double.POSITIVE_INFINITY)
+                    values[a] = upper[a];
+                else if (lower[a] != Double.NEGATIVE_INFINITY)
+                    values[a] = Math.floor(lower[a]) + 1;
+            }
+
+            // Make sure the values actually lead to this leaf, some paths cannot be followed
+            if (!reaches(node, values))
+                return true;
+
+            int expectedLabel = expected.classify(values);
+            int actual = evaluator.classify(values);
+            if (expectedLabel != actual) {
+                System.out.println("WARNING: Compiled tree predicted " + actual + " instead of " +
+                        expectedLabel + " for " + Arrays.toString(values));
+                return false;
+            }
+            return true;
+        }
+
+        int attr = getAttribute(node);
+        double oldLower = lower[attr];
+        double oldUpper = upper[attr];
+        for (int i = 0; i < getNumChildren(node); i++) {
+            if (isNominal(node)) {
+                lower[attr] = i - 1;
+                upper[attr] = i;
+            } else if (i == 0) {
+                upper[attr] = Math.min(oldUpper, getSplitPoint(node));
+            } else {
+                upper[attr] = oldUpper;
+                lower[attr] = Math.max(oldLower, getSplitPoint(node));
+            }
+
+            boolean ok = verifyPaths(getChild(node, i), lower, upper, evaluator, expected);
+            lower[attr] = oldLower;
+            upper[attr] = oldUpper;
+            if (!ok)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true} if classifying the given values ends at the given leaf
+     */
+    private boolean reaches(int leaf, double[] values) {
+        int node = 0;
+        while (!isLeaf(node)) {
+            double value = values[getAttribute(node)];
+            int subset;
+            if (isNominal(node)) {
+                subset = (int) value;
+                if (subset < 0 || subset >= getNumChildren(node))
+                    return false;
+            } else {
+                subset = Utils.smOrEq(value, getSplitPoint(node)) ? 0 : 1;
+            }
+            node = getChild(node, subset);
+        }
+        return node == leaf;
+    }
+}
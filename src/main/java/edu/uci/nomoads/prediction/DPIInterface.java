@@ -21,7 +21,9 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 /**
- * Interface for Deep Packet Inspection implementations
+ * Interface for Deep Packet Inspection implementations. Once initialized, a DPI object may be
+ * searched by several threads at once, so implementations must not modify their state while
+ * searching.
  */
 public interface DPIInterface {
 
@@ -40,4 +42,36 @@ public interface DPIInterface {
      * of where it was found in the packet.
      */
     ArrayList<String> search(ByteBuffer packet, int size);
+
+    /**
+     * Perform DPI on the given packet, reporting every occurrence of the strings that were passed
+     * in previously in the init method to the given listener. Unlike
+     * {@link #search(ByteBuffer, int)}, no intermediate objects are created for found strings.
+     * @param packet a {@link ByteBuffer} containing the packet
+     * @param size size of the packet
+     * @param listener receives the found strings
+     */
+    void search(ByteBuffer packet, int size, MatchListener listener);
+
+    /**
+     * Creates DPI objects: a {@link Predictor} needs one for each of its classifiers. The
+     * server-side implementations are available as {@link DPIType}s, other implementations (e.g.
+     * a mobile one) can be plugged in by implementing this interface.
+     */
+    interface Factory {
+        /** @return a new, uninitialized DPI object */
+        DPIInterface newInstance();
+    }
+
+    /**
+     * Receives strings found by {@link #search(ByteBuffer, int, MatchListener)}
+     */
+    interface MatchListener {
+        /**
+         * Called for each occurrence of a search string in the packet
+         * @param stringId index of the found string in the array passed to the init method
+         * @param endIdx the ending position of where the string was found in the packet
+         */
+        void onMatch(int stringId, int endIdx);
+    }
 }
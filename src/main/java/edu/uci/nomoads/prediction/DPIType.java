@@ -0,0 +1,48 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.prediction;
+
+/**
+ * The server-side implementations of {@link DPIInterface} that a {@link Predictor} can use. Any
+ * other implementation can be used through {@link DPIInterface.Factory}.
+ */
+public enum DPIType implements DPIInterface.Factory {
+    /** Searches for each string in a separate pass of the packet (see {@link ServerDPI}) */
+    SERVER {
+        @Override
+        public DPIInterface newInstance() { return new ServerDPI(); }
+    },
+
+    /** Searches for all strings in a single pass of the packet (see {@link AhoCorasickDPI}) */
+    AHO_CORASICK {
+        @Override
+        public DPIInterface newInstance() { return new AhoCorasickDPI(); }
+    },
+
+    /** Searches for UTF-8 encoded strings directly in the bytes of the packet, without decoding
+     * it, in a single pass (see {@link AhoCorasickDPI}). Works with any {@link java.nio.ByteBuffer}
+     * (direct, read-only, etc.) and only searches between its position and limit. */
+    AHO_CORASICK_BYTES {
+        @Override
+        public DPIInterface newInstance() { return new AhoCorasickDPI(true); }
+    };
+
+    /** @return a new, uninitialized DPI object of this type */
+    @Override
+    public abstract DPIInterface newInstance();
+}
@@ -0,0 +1,190 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.prediction;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only map of the features of a classifier to their attribute indexes. Use
+ * {@link #indexOf(String)} to look features up in a single probe without boxing; the {@link Map}
+ * methods are only there for compatibility. Instances are immutable, and can be shared by any
+ * number of threads.
+ */
+public abstract class FeatureIndex extends AbstractMap<String, Integer> {
+    /** Returned by {@link #indexOf(String)} for strings that are not features */
+    public static final int NOT_FOUND = -1;
+
+    /** Index without any features */
+    static final FeatureIndex EMPTY = of(new String[0]);
+
+    /**
+     * @param feature the feature to look up
+     * @return the index of the feature's attribute, or {@link #NOT_FOUND}
+     */
+    public abstract int indexOf(String feature);
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && indexOf((String) key) != NOT_FOUND;
+    }
+
+    @Override
+    public Integer get(Object key) {
+        if (!(key instanceof String))
+            return null;
+        int attrIdx = indexOf((String) key);
+        return attrIdx != NOT_FOUND ? attrIdx : null;
+    }
+
+    /**
+     * @param attributes names of the attributes of a classifier, in order
+     * @return index mapping each name to its position
+     */
+    static FeatureIndex of(String[] attributes) {
+        return new Hashed(attributes);
+    }
+
+    /**
+     * @param features features mapped to their attribute indexes
+     * @return the given map if it is already a {@link FeatureIndex}, otherwise an index with the
+     * same entries
+     */
+    static FeatureIndex of(Map<String, Integer> features) {
+        if (features instanceof FeatureIndex)
+            return (FeatureIndex) features;
+
+        int numAttributes = 0;
+        for (int attrIdx : features.values())
+            numAttributes = Math.max(numAttributes, attrIdx + 1);
+        String[] attributes = new String[numAttributes];
+        for (Map.Entry<String, Integer> entry : features.entrySet())
+            attributes[entry.getValue()] = entry.getKey();
+        return new Hashed(attributes);
+    }
+
+    /**
+     * Open-addressed hash table with linear probing, kept at most half full. Takes two array
+     * slots per feature instead of a {@code HashMap} entry and a boxed index.
+     */
+    private static class Hashed extends FeatureIndex {
+        private final String[] keys;
+        private final int[] values;
+        private final int mask;
+        private final int size;
+
+        /**
+         * @param attributes attribute names, {@code null} for indexes that are not features
+         */
+        Hashed(String[] attributes) {
+            int numFeatures = 0;
+            for (String attribute : attributes) {
+                if (attribute != null)
+                    numFeatures++;
+            }
+
+            int capacity = 2;
+            while (capacity < numFeatures * 2)
+                capacity <<= 1;
+            keys = new String[capacity];
+            values = new int[capacity];
+            mask = capacity - 1;
+
+            int size = 0;
+            for (int attrIdx = 0; attrIdx < attributes.length; attrIdx++) {
+                String attribute = attributes[attrIdx];
+                if (attribute == null)
+                    continue;
+
+                int slot = slot(attribute);
+                while (keys[slot] != null && !keys[slot].equals(attribute))
+                    slot = (slot + 1) & mask;
+                if (keys[slot] == null)
+                    size++;
+                // Like Map.put(), the last attribute with a name wins
+                keys[slot] = attribute;
+                values[slot] = attrIdx;
+            }
+            this.size = size;
+        }
+
+        private int slot(String key) {
+            int h = key.hashCode();
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        @Override
+        public int indexOf(String feature) {
+            int slot = slot(feature);
+            String key;
+            while ((key = keys[slot]) != null) {
+                if (key.equals(feature))
+                    return values[slot];
+                slot = (slot + 1) & mask;
+            }
+            return NOT_FOUND;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Integer>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Integer>>() {
+                @Override
+                public int size() {
+                    return size;
+                }
+
+                @Override
+                public Iterator<Map.Entry<String, Integer>> iterator() {
+                    return new Iterator<Map.Entry<String, Integer>>() {
+                        private int slot = advance(0);
+
+                        private int advance(int slot) {
+                            while (slot < keys.length && keys[slot] == null)
+                                slot++;
+                            return slot;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return slot < keys.length;
+                        }
+
+                        @Override
+                        public Map.Entry<String, Integer> next() {
+                            if (slot >= keys.length)
+                                throw new NoSuchElementException();
+                            Map.Entry<String, Integer> next = new SimpleImmutableEntry<>(
+                                    keys[slot], values[slot]);
+                            slot = advance(slot + 1);
+                            return next;
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.prediction;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Searches packets for the features of a single classifier: the labels of its tree, followed by
+ * any known PII. Keeping one of these per classifier means that the cost of searching a packet
+ * depends on the size of the tree it is classified by, not on the number of loaded models.
+ */
+class FeatureMatcher {
+    /** Marks search strings that are not features of the classifier */
+    static final int NO_ATTRIBUTE = FeatureIndex.NOT_FOUND;
+
+    /** Searches packets for {@link #searchStrings} */
+    final DPIInterface dpiInterface;
+
+    /** The strings {@link #dpiInterface} was initialized with */
+    final String[] searchStrings;
+
+    /** Maps indexes of {@link #searchStrings} to the indexes of the attributes they count
+     * towards, or to {@link #NO_ATTRIBUTE}. Lets found strings be counted without looking them up
+     * by name. */
+    final int[] stringAttributes;
+
+    /**
+     * Prepares a matcher for a single classifier
+     * @param dpiFactory which implementation of {@link DPIInterface} to search packets with
+     * @param treeLabels labels of the classifier tree
+     * @param knownPII PII that are known in advance (see {@link ModelSnapshot#knownPII})
+     * @param features features of the classifier (see {@link ModelSnapshot#classifierFeatures})
+     */
+    FeatureMatcher(DPIInterface.Factory dpiFactory, Collection<String> treeLabels,
+                   Collection<String> knownPII, FeatureIndex features) {
+        Set<String> strings = new LinkedHashSet<>(treeLabels);
+        strings.addAll(knownPII);
+        searchStrings = strings.toArray(new String[strings.size()]);
+
+        dpiInterface = dpiFactory.newInstance();
+        dpiInterface.init(searchStrings);
+
+        stringAttributes = new int[searchStrings.length];
+        for (int i = 0; i < searchStrings.length; i++)
+            stringAttributes[i] = features.indexOf(searchStrings[i]);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.prediction;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * {@link FeatureIndex} backed by the index of a memory-mapped {@link ModelBundle}: entries sorted
+ * by the UTF-8 bytes of their names, each being the offset of the (length-prefixed) name,
+ * relative to the classifier's record, and the attribute index. Names are looked up with a binary
+ * search and are only decoded when iterating, so the index takes no heap space.
+ */
+class MappedFeatureMap extends FeatureIndex {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Size of each index entry: name offset and attribute index */
+    static final int ENTRY_BYTES = 4 + 4;
+
+    private final ByteBuffer buffer;
+
+    /** Offset that the name offsets are relative to */
+    private final int base;
+
+    /** Offset of the first index entry */
+    private final int index;
+
+    private final int size;
+
+    /**
+     * @param buffer the buffer holding the index and the names
+     * @param base offset that the name offsets are relative to
+     * @param index offset of the first index entry
+     * @param size number of index entries
+     */
+    MappedFeatureMap(ByteBuffer buffer, int base, int index, int size) {
+        this.buffer = buffer;
+        this.base = base;
+        this.index = index;
+        this.size = size;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int indexOf(String feature) {
+        byte[] name = feature.getBytes(UTF8);
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareName(base + buffer.getInt(index + mid * ENTRY_BYTES), name);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return buffer.getInt(index + mid * ENTRY_BYTES + 4);
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Compares the name at the given offset to the given name, byte by byte (unsigned) like
+     * {@link ModelBundle.Writer} sorted them
+     */
+    private int compareName(int offset, byte[] name) {
+        int length = buffer.getInt(offset);
+        int common = Math.min(length, name.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = (buffer.get(offset + 4 + i) & 0xff) - (name[i] & 0xff);
+            if (cmp != 0)
+                return cmp;
+        }
+        return length - name.length;
+    }
+
+    private String getName(int entry) {
+        int offset = base + buffer.getInt(index + entry * ENTRY_BYTES);
+        byte[] name = new byte[buffer.getInt(offset)];
+        for (int i = 0; i < name.length; i++)
+            name[i] = buffer.get(offset + 4 + i);
+        return new String(name, UTF8);
+    }
+
+    @Override
+    public Set<Map.Entry<String, Integer>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Integer>>() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, Integer>> iterator() {
+                return new Iterator<Map.Entry<String, Integer>>() {
+                    private int entry = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return entry < size;
+                    }
+
+                    @Override
+                    public Map.Entry<String, Integer> next() {
+                        if (entry >= size)
+                            throw new NoSuchElementException();
+                        Map.Entry<String, Integer> next = new SimpleImmutableEntry<>(
+                                getName(entry), buffer.getInt(index + entry * ENTRY_BYTES + 4));
+                        entry++;
+                        return next;
+                    }
+                };
+            }
+        };
+    }
+}
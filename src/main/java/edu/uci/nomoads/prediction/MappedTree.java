@@ -0,0 +1,79 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.prediction;
+
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+
+import weka.core.Utils;
+
+/**
+ * A {@link CompiledTree} that is evaluated in place, from the buffer it was written to (see
+ * {@link CompiledTree#write(DataOutputStream)}). When the buffer is a memory-mapped
+ * {@link ModelBundle}, the tree takes no heap space and is shared by all processes that map the
+ * same bundle. Only absolute reads are made, so the buffer can be shared by any number of
+ * threads.
+ */
+class MappedTree implements TreeEvaluator {
+    private final ByteBuffer buffer;
+
+    /** Offset of the first node record */
+    private final int nodes;
+
+    /** Offset of the children of all nodes */
+    private final int children;
+
+    /**
+     * @param buffer buffer holding the tree, which must have been validated (see
+     *               {@link CompiledTree#isValid(int, int)})
+     * @param offset offset of the tree in the buffer
+     */
+    MappedTree(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        int numNodes = buffer.getInt(offset);
+        nodes = offset + 4;
+        children = nodes + numNodes * CompiledTree.NODE_BYTES + 4;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int classify(double[] values) {
+        int node = nodes;
+        int attribute;
+        // Same steps as CompiledTree.classify(), with node fields read from the record
+        while ((attribute = buffer.getInt(node)) != CompiledTree.LEAF) {
+            double value = values[attribute];
+            if (Utils.isMissingValue(value))
+                return UNKNOWN;
+
+            int subset;
+            if (buffer.get(node + 4) != 0) {
+                subset = (int) value;
+                if (subset < 0 || subset >= buffer.getInt(node + 17))
+                    return UNKNOWN;
+            } else {
+                subset = Utils.smOrEq(value, buffer.getDouble(node + 5)) ? 0 : 1;
+            }
+            int child = buffer.getInt(children + 4 * (buffer.getInt(node + 13) + subset));
+            node = nodes + child * CompiledTree.NODE_BYTES;
+        }
+        return buffer.getInt(node + 21);
+    }
+}
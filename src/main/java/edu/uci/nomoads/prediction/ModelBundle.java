@@ -0,0 +1,350 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.prediction;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import weka.classifiers.trees.J48;
+import weka.core.Attribute;
+import weka.core.Instances;
+
+/**
+ * A single binary file holding everything needed to classify with all trees trained in one run:
+ * the compiled tree (see {@link CompiledTree}), attributes (features and class values) and tree
+ * labels of each classifier. It replaces a serialized {@code .model} file, an {@code .arff}
+ * header and an entry in the tree labels JSON file per classifier (see
+ * {@link edu.uci.nomoads.Util#getModelBundleFile()}), and is read with a single
+ * memory-mapped pass instead of Java deserialization.
+ * <p>
+ * Classifiers loaded from a bundle have no Weka model: {@link ModelSnapshot#domainOSModel} holds
+ * their {@link CompiledTree}s instead. The bundle can also be used in place (see
+ * {@link #read(File, String, boolean, Map, Map, Map, Map, Map)}), in which case trees and
+ * features are not copied to the heap at all, and processes that load the same bundle share a
+ * single copy of them in the page cache. Bundles are replaced rather than overwritten (see
+ * {@link Writer#write}), so a bundle stays valid for as long as it is mapped.
+ * </p>
+ * <p>
+ * The format is (all numbers big-endian, strings are an
+ * {@code int} length followed by UTF-8 bytes):
+ * </p>
+ * <pre>
+ * int magic, int version, string className, int numClassifiers, then for each classifier:
+ *   string name
+ *   int numAttributes, then for each: string name, byte type, and for nominal attributes
+ *       int numValues followed by the values
+ *   int classIndex
+ *   the feature index: for each attribute, sorted by the (unsigned) UTF-8 bytes of its name,
+ *       int offset of its name from the start of the classifier, int attribute index
+ *   int numTreeLabels followed by the labels
+ *   the tree, see {@link CompiledTree#write(DataOutputStream)}
+ * </pre>
+ */
+public class ModelBundle {
+    /** "NMAB" */
+    private static final int MAGIC = 0x4E4D4142;
+
+    /** Incremented whenever the format changes, bundles of other versions are not read */
+    private static final int FORMAT_VERSION = 2;
+
+    private static final byte TYPE_NUMERIC = 0;
+    private static final byte TYPE_NOMINAL = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Reads the given bundle into the given maps (see the fields of {@link ModelSnapshot} for
+     * details about each of them)
+     * @param bundleFile the bundle to read
+     * @param className the name of the models the bundle is expected to hold
+     * @param inPlace {@code true} to evaluate trees and look up features directly in the mapped
+     *                file ({@link MappedTree}, {@link MappedFeatureMap}) instead of copying them to
+     *                the heap. Classifiers read in place have no
+     *                {@link ModelSnapshot#domainOSStruct}, since Weka needs its attributes on the
+     *                heap and cannot classify with bundled trees anyway.
+     * @throws IOException if the file could not be read or is not a valid bundle
+     */
+    static void read(File bundleFile, String className, boolean inPlace,
+                     Map<String, Object> domainOSModel, Map<String, String> modelVersions,
+                     Map<String, Map<String, Integer>> classifierFeatures,
+                     Map<String, Instances> domainOSStruct, Map<String, Set<String>> treeLabels)
+            throws IOException {
+        MappedByteBuffer in;
+        try (FileChannel channel = FileChannel.open(bundleFile.toPath(),
+                StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if (in.getInt() != MAGIC)
+                throw new IOException("not a model bundle");
+            int version = in.getInt();
+            if (version != FORMAT_VERSION)
+                throw new IOException("unsupported bundle version " + version);
+            String bundleClassName = readString(in);
+            if (!bundleClassName.equals(className))
+                throw new IOException("bundle holds " + bundleClassName + " models");
+
+            String bundleVersion = getVersion(bundleFile);
+            int numClassifiers = in.getInt();
+            for (int c = 0; c < numClassifiers; c++) {
+                int recordStart = in.position();
+                String domainOS = readString(in);
+
+                int numAttributes = in.getInt();
+                ArrayList<Attribute> attributes = new ArrayList<>(numAttributes);
+                String[] names = new String[numAttributes];
+                int[] numValues = new int[numAttributes];
+                for (int a = 0; a < numAttributes; a++) {
+                    String name = inPlace ? skipString(in) : readString(in);
+                    byte type = in.get();
+                    if (type == TYPE_NOMINAL) {
+                        numValues[a] = in.getInt();
+                        ArrayList<String> values = new ArrayList<>(numValues[a]);
+                        for (int v = 0; v < numValues[a]; v++)
+                            values.add(inPlace ? skipString(in) : readString(in));
+                        if (!inPlace)
+                            attributes.add(new Attribute(name, values));
+                    } else if (type == TYPE_NUMERIC) {
+                        if (!inPlace)
+                            attributes.add(new Attribute(name));
+                    } else {
+                        throw new IOException("unknown attribute type " + type);
+                    }
+                    names[a] = name;
+                }
+                int classIndex = in.getInt();
+                if (classIndex < 0 || classIndex >= numAttributes)
+                    throw new IOException("invalid class index for " + domainOS);
+
+                int featureIndex = in.position();
+                in.position(featureIndex + numAttributes * MappedFeatureMap.ENTRY_BYTES);
+                if (inPlace) {
+                    for (int a = 0; a < numAttributes; a++) {
+                        int entry = featureIndex + a * MappedFeatureMap.ENTRY_BYTES;
+                        int nameOffset = in.getInt(entry);
+                        int attrIdx = in.getInt(entry + 4);
+                        if (nameOffset < 0 || recordStart + nameOffset >= featureIndex ||
+                                attrIdx < 0 || attrIdx >= numAttributes)
+                            throw new IOException("invalid feature index for " + domainOS);
+                    }
+                }
+
+                int numTreeLabels = in.getInt();
+                Set<String> domainOSTreeLabels = new HashSet<>();
+                for (int l = 0; l < numTreeLabels; l++)
+                    domainOSTreeLabels.add(readString(in));
+
+                // The tree is validated even if it is used in place, so that a corrupt bundle
+                // cannot send evaluation out of bounds
+                int treeStart = in.position();
+                CompiledTree tree = CompiledTree.read(in);
+                if (!tree.isValid(numAttributes, numValues[classIndex]))
+                    throw new IOException("invalid tree for " + domainOS);
+
+                if (inPlace) {
+                    domainOSModel.put(domainOS, new MappedTree(in, treeStart));
+                    classifierFeatures.put(domainOS, new MappedFeatureMap(in, recordStart,
+                            featureIndex, numAttributes));
+                } else {
+                    Instances structure = new Instances(domainOS, attributes, 0);
+                    structure.setClassIndex(classIndex);
+                    domainOSModel.put(domainOS, tree);
+                    domainOSStruct.put(domainOS, structure);
+                    classifierFeatures.put(domainOS, FeatureIndex.of(names));
+                }
+                modelVersions.put(domainOS, bundleVersion);
+                treeLabels.put(domainOS, domainOSTreeLabels);
+            }
+        } catch (RuntimeException e) {
+            // Buffer underflows, negative sizes, etc.
+            throw new IOException("corrupt model bundle " + bundleFile, e);
+        }
+    }
+
+    /**
+     * @param bundleFile a bundle file
+     * @return last modification time and size of the file, to tell whether it changed
+     */
+    static String getVersion(File bundleFile) {
+        return bundleFile.lastModified() + ":" + bundleFile.length();
+    }
+
+    /**
+     * Advances the given buffer past a string, without decoding it
+     * @return {@code null}
+     */
+    private static String skipString(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining())
+            throw new IOException("invalid string length " + length);
+        in.position(in.position() + length);
+        return null;
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining())
+            throw new IOException("invalid string length " + length);
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Collects trees during training and writes them into a bundle
+     */
+    public static class Writer {
+        /** Written classifiers, in the order in which they were added */
+        private final Map<String, byte[]> classifiers = new LinkedHashMap<>();
+
+        /**
+         * Adds a tree to the bundle, replacing any previous tree with the same name. Trees that
+         * cannot be compiled are left out, and are loaded from their {@code .model} files
+         * instead (see {@link Predictor}).
+         * @param domainOS name of the classifier
+         * @param j48 the trained tree
+         * @param structure the structure of the data the tree was trained on
+         * @param treeLabels the strings to search for (see {@link ModelSnapshot#treeLabels})
+         * @return {@code true} if the tree was added
+         */
+        public synchronized boolean add(String domainOS, J48 j48, Instances structure,
+                                        Collection<String> treeLabels) {
+            CompiledTree tree = CompiledTree.compile(j48, structure);
+            if (tree == null || !tree.verify(tree, j48, structure)) {
+                System.out.println("WARNING: Could not add " + domainOS + " to model bundle");
+                return false;
+            }
+
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                writeString(out, domainOS);
+
+                out.writeInt(structure.numAttributes());
+                final byte[][] names = new byte[structure.numAttributes()][];
+                int[] nameOffsets = new int[structure.numAttributes()];
+                for (int a = 0; a < structure.numAttributes(); a++) {
+                    Attribute attribute = structure.attribute(a);
+                    names[a] = attribute.name().getBytes(UTF8);
+                    nameOffsets[a] = out.size();
+                    out.writeInt(names[a].length);
+                    out.write(names[a]);
+                    if (attribute.isNominal()) {
+                        out.writeByte(TYPE_NOMINAL);
+                        out.writeInt(attribute.numValues());
+                        for (int v = 0; v < attribute.numValues(); v++)
+                            writeString(out, attribute.value(v));
+                    } else if (attribute.isNumeric()) {
+                        out.writeByte(TYPE_NUMERIC);
+                    } else {
+                        System.out.println("WARNING: Could not add " + domainOS + " to model " +
+                                "bundle, unsupported attribute " + attribute.name());
+                        return false;
+                    }
+                }
+                out.writeInt(structure.classIndex());
+
+                // Feature index, see MappedFeatureMap
+                Integer[] sorted = new Integer[names.length];
+                for (int a = 0; a < sorted.length; a++)
+                    sorted[a] = a;
+                Arrays.sort(sorted, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a1, Integer a2) {
+                        return compareBytes(names[a1], names[a2]);
+                    }
+                });
+                for (int a : sorted) {
+                    out.writeInt(nameOffsets[a]);
+                    out.writeInt(a);
+                }
+
+                out.writeInt(treeLabels.size());
+                for (String label : treeLabels)
+                    writeString(out, label);
+
+                tree.write(out);
+                out.flush();
+                classifiers.put(domainOS, bytes.toByteArray());
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+
+        /**
+         * Writes all added trees into the given file. The file is replaced in one step, so
+         * predictors never see a partially written bundle.
+         * @param bundleFile where to write the bundle
+         * @throws IOException if the bundle could not be written
+         */
+        public synchronized void write(String bundleFile) throws IOException {
+            File file = new File(bundleFile);
+            File tmpFile = new File(bundleFile + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmpFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                writeString(out, J48.class.toString().substring(6));
+                out.writeInt(classifiers.size());
+                for (byte[] classifier : classifiers.values())
+                    out.write(classifier);
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /** Compares the given arrays as unsigned bytes, the order used by MappedFeatureMap */
+        private static int compareBytes(byte[] b1, byte[] b2) {
+            int common = Math.min(b1.length, b2.length);
+            for (int i = 0; i < common; i++) {
+                int cmp = (b1[i] & 0xff) - (b2[i] & 0xff);
+                if (cmp != 0)
+                    return cmp;
+            }
+            return b1.length - b2.length;
+        }
+
+        private static void writeString(DataOutputStream out, String str) throws IOException {
+            byte[] bytes = str.getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.prediction;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import weka.core.Instances;
+
+/**
+ * Classifiers that are loaded on first use and kept in memory until they are evicted by more
+ * recently used classifiers. Only the model directory is indexed up front, so that predictors
+ * with thousands of rarely used classifiers start quickly and only keep the popular ones in
+ * memory. The general classifier is never part of the cache, it is always loaded.
+ * <p>
+ * Each loaded classifier is kept in a {@link ModelSnapshot} of its own. The cache is safe to use
+ * from several threads: a classifier that is being loaded by one thread is waited for by the
+ * others instead of being loaded again, and loading one classifier does not block threads that
+ * use other classifiers.
+ * </p>
+ */
+public class ModelCache {
+    /**
+     * Loads a single classifier
+     */
+    interface Loader {
+        /**
+         * @param classifierName the classifier to load
+         * @param model where to load the classifier from
+         * @param knownPII PII that the classifier's matcher should search for
+         * @return a snapshot containing only the given classifier
+         * @throws Exception if an error occurred while trying to read the classifier
+         */
+        ModelSnapshot load(String classifierName, IndexEntry model, Set<String> knownPII)
+                throws Exception;
+    }
+
+    /**
+     * What is known about a classifier before it is loaded
+     */
+    static class IndexEntry {
+        /** Path to the model file */
+        final String modelFile;
+
+        /** See {@link ModelSnapshot#modelVersions} */
+        final String version;
+
+        /** Strings to search for, see {@link ModelSnapshot#treeLabels} */
+        final Set<String> treeLabels;
+
+        IndexEntry(String modelFile, String version, Set<String> treeLabels) {
+            this.modelFile = modelFile;
+            this.version = version;
+            this.treeLabels = Collections.unmodifiableSet(treeLabels);
+        }
+    }
+
+    /** Maximum number of classifiers to keep in memory */
+    private final int capacity;
+
+    /** Classifiers that can be loaded, mapped by name */
+    private final Map<String, IndexEntry> index;
+
+    private final Loader loader;
+
+    /** Loaded classifiers, from least to most recently used. Guarded by itself. */
+    private final LinkedHashMap<String, ModelSnapshot> loaded;
+
+    /** Classifiers that are being loaded. Guarded by {@link #loaded}, so that a classifier is
+     * always either loaded, being loaded or neither. */
+    private final HashMap<String, FutureTask<ModelSnapshot>> loading = new HashMap<>();
+
+    /** Stands in for classifiers that could not be loaded, so that they are not retried until
+     * they are evicted */
+    private final ModelSnapshot failed;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong failures;
+    private final AtomicLong evictions;
+    private final AtomicLong loadTimeNanos;
+
+    /**
+     * @param capacity maximum number of classifiers to keep in memory
+     * @param dpiFactory which implementation of {@link DPIInterface} the classifiers use
+     * @param index classifiers that can be loaded, mapped by name
+     * @param loader loads classifiers on first use
+     * @param previous the cache these classifiers are replacing (see {@link Predictor#reload()}),
+     *                 or {@code null}. Its metrics are carried over, as well as its classifiers
+     *                 whose model files did not change.
+     */
+    ModelCache(final int capacity, DPIInterface.Factory dpiFactory, Map<String, IndexEntry> index,
+               Loader loader, ModelCache previous) {
+        this.capacity = capacity;
+        this.index = Collections.unmodifiableMap(new HashMap<>(index));
+        this.loader = loader;
+        this.loaded = new LinkedHashMap<String, ModelSnapshot>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ModelSnapshot> eldest) {
+                if (size() <= capacity)
+                    return false;
+                evictions.incrementAndGet();
+                return true;
+            }
+        };
+        failed = new ModelSnapshot(dpiFactory, new HashMap<String, Object>(0),
+                new HashMap<String, String>(0), new HashMap<String, Map<String, Integer>>(0),
+                new HashMap<String, Instances>(0), new HashMap<String, Set<String>>(0),
+                Collections.<String>emptySet());
+
+        if (previous == null) {
+            hits = new AtomicLong();
+            misses = new AtomicLong();
+            failures = new AtomicLong();
+            evictions = new AtomicLong();
+            loadTimeNanos = new AtomicLong();
+            return;
+        }
+
+        hits = previous.hits;
+        misses = previous.misses;
+        failures = previous.failures;
+        evictions = previous.evictions;
+        loadTimeNanos = previous.loadTimeNanos;
+        synchronized (previous.loaded) {
+            for (Map.Entry<String, ModelSnapshot> entry : previous.loaded.entrySet()) {
+                IndexEntry oldModel = previous.index.get(entry.getKey());
+                IndexEntry newModel = this.index.get(entry.getKey());
+                if (entry.getValue() != previous.failed && newModel != null &&
+                        newModel.version.equals(oldModel.version))
+                    loaded.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @param classifierName name of a classifier
+     * @return {@code true} if the classifier is loaded by this cache
+     */
+    boolean contains(String classifierName) {
+        return index.containsKey(classifierName);
+    }
+
+    /** @return names of all classifiers that can be loaded by this cache */
+    Set<String> getClassifierNames() {
+        return index.keySet();
+    }
+
+    /**
+     * Retrieves a classifier, loading it if it is not in memory
+     * @param classifierName the classifier to retrieve (see {@link #contains(String)})
+     * @param parent the snapshot the classifier is used from. The returned classifier searches
+     *               for the same known PII.
+     * @return a snapshot containing only the given classifier, or {@code null} if the classifier
+     * could not be loaded
+     */
+    ModelSnapshot get(final String classifierName, final ModelSnapshot parent) {
+        // Look the classifier up and claim it in one step, so that it cannot finish loading in
+        // between and be loaded again
+        ModelSnapshot cached;
+        FutureTask<ModelSnapshot> existing = null;
+        FutureTask<ModelSnapshot> task = null;
+        synchronized (loaded) {
+            cached = loaded.get(classifierName);
+            if (cached == null) {
+                existing = loading.get(classifierName);
+                if (existing == null) {
+                    task = new FutureTask<>(new Callable<ModelSnapshot>() {
+                        @Override
+                        public ModelSnapshot call() throws Exception {
+                            return loader.load(classifierName, index.get(classifierName),
+                                    parent.knownPII);
+                        }
+                    });
+                    loading.put(classifierName, task);
+                }
+            }
+        }
+
+        if (cached == failed) {
+            failures.incrementAndGet();
+            return null;
+        }
+        if (cached != null) {
+            hits.incrementAndGet();
+            if (cached.knownPII == parent.knownPII)
+                return cached;
+
+            // Known PII changed since the classifier was loaded
+            ModelSnapshot updated = cached.withKnownPII(parent.knownPII);
+            synchronized (loaded) {
+                if (loaded.get(classifierName) == cached)
+                    loaded.put(classifierName, updated);
+            }
+            return updated;
+        }
+
+        misses.incrementAndGet();
+        if (existing != null) {
+            // Another thread is already loading this classifier
+            ModelSnapshot result = getResult(classifierName, existing);
+            return result == failed ? null : result;
+        }
+
+        long start = System.nanoTime();
+        task.run();
+        ModelSnapshot result = getResult(classifierName, task);
+        loadTimeNanos.addAndGet(System.nanoTime() - start);
+        if (result == failed)
+            failures.incrementAndGet();
+
+        synchronized (loaded) {
+            loaded.put(classifierName, result);
+            loading.remove(classifierName);
+        }
+        return result == failed ? null : result;
+    }
+
+    private ModelSnapshot getResult(String classifierName, FutureTask<ModelSnapshot> task) {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            System.out.println("WARNING: Could not load " + classifierName + ", using the " +
+                    "general classifier instead");
+            return failed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failed;
+        }
+    }
+
+    /** @return maximum number of classifiers kept in memory */
+    public int getCapacity() { return capacity; }
+
+    /** @return number of classifiers currently in memory */
+    public int size() {
+        synchronized (loaded) {
+            return loaded.size();
+        }
+    }
+
+    /** @return number of times a classifier was already in memory */
+    public long getHits() { return hits.get(); }
+
+    /** @return number of times a classifier had to be loaded */
+    public long getMisses() { return misses.get(); }
+
+    /** @return number of classifiers that could not be loaded, plus the number of times one of
+     * them was looked up again before being evicted */
+    public long getFailures() { return failures.get(); }
+
+    /** @return number of classifiers that were removed from memory to make room for others */
+    public long getEvictions() { return evictions.get(); }
+
+    /** @return total time spent loading classifiers, in milliseconds */
+    public long getLoadTimeMillis() { return loadTimeNanos.get() / 1000000; }
+
+    @Override
+    public String toString() {
+        return "ModelCache{size=" + size() + "/" + capacity + ", hits=" + getHits() +
+                ", misses=" + getMisses() + ", failures=" + getFailures() + ", evictions=" +
+                getEvictions() + ", loadTimeMillis=" + getLoadTimeMillis() + "}";
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.prediction;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import weka.core.Instances;
+
+/**
+ * All models of a {@link Predictor}, together with everything needed to use them: features,
+ * data structures, DPI matchers and tree evaluators.
+ * <p>
+ * A snapshot is never modified once it is built. Changes (e.g. new known PII) create a new
+ * snapshot that the predictor switches to in a single write, so a thread that reads the
+ * snapshot once per packet always sees a consistent set of models, without any locking.
+ * </p>
+ */
+public final class ModelSnapshot {
+    /** Models, mapped by classifier name (see {@link Predictor#loadDomainModel(String, String)}) */
+    final Map<String, Object> domainOSModel;
+
+    /** Last modification time and size of the file each model was loaded from, used to tell
+     * which models changed when reloading (see {@link Predictor#reload()}) */
+    final Map<String, String> modelVersions;
+
+    /** Attribute indexes of the features of each classifier */
+    final Map<String, FeatureIndex> classifierFeatures;
+
+    /** The structure of the data each classifier was trained on */
+    final Map<String, Instances> domainOSStruct;
+
+    /** Feature set - for each classifier, the set of strings we should search for with DPI */
+    final Map<String, Set<String>> treeLabels;
+
+    /** Creates the {@link DPIInterface} objects of the matchers */
+    final DPIInterface.Factory dpiFactory;
+
+    /** A set of known PII. These can be used as features when doing non-PII classification, or
+     * these can simply be PII that do not require classification and can be found via
+     * string matching instead. */
+    final Set<String> knownPII;
+
+    /** Used to search for known PII and features that are used by each classifier */
+    final Map<String, FeatureMatcher> classifierMatchers;
+
+    /** Used to search for known PII when there is no classifier for a packet */
+    final FeatureMatcher knownPIIMatcher;
+
+    /** Evaluates trees directly from feature counts, see {@link AdsPredictor}. Empty for
+     * classifiers that are evaluated by Weka. */
+    final Map<String, TreeEvaluator> treeEvaluators;
+
+    /** Classifiers that are loaded on first use, or {@code null} if all classifiers are loaded
+     * into this snapshot (see {@link ModelCache}) */
+    final ModelCache lazyModels;
+
+    /**
+     * Builds a snapshot of the given models and prepares matchers for them. The given maps are
+     * copied, so they may be reused by the caller.
+     * @param dpiFactory which implementation of {@link DPIInterface} is to be used for searching
+     * packets for features
+     * @param domainOSModel models, mapped by classifier name
+     * @param modelVersions versions of the model files (see {@link #modelVersions})
+     * @param classifierFeatures attribute indexes of the features of each classifier
+     * @param domainOSStruct the structure of the data each classifier was trained on
+     * @param treeLabels strings to search for, for each classifier
+     * @param knownPII PII that are known in advance, as returned by {@link #freeze(Collection)}
+     */
+    ModelSnapshot(DPIInterface.Factory dpiFactory, Map<String, Object> domainOSModel,
+                  Map<String, String> modelVersions,
+                  Map<String, Map<String, Integer>> classifierFeatures,
+                  Map<String, Instances> domainOSStruct, Map<String, Set<String>> treeLabels,
+                  Set<String> knownPII) {
+        this.dpiFactory = dpiFactory;
+        this.domainOSModel = Collections.unmodifiableMap(new HashMap<>(domainOSModel));
+        this.modelVersions = Collections.unmodifiableMap(new HashMap<>(modelVersions));
+        this.classifierFeatures = copyFeatures(classifierFeatures);
+        this.domainOSStruct = Collections.unmodifiableMap(new HashMap<>(domainOSStruct));
+        this.treeLabels = copyTreeLabels(treeLabels);
+        this.knownPII = knownPII;
+        this.treeEvaluators = Collections.emptyMap();
+        this.lazyModels = null;
+
+        classifierMatchers = createMatchers();
+        knownPIIMatcher = createKnownPIIMatcher();
+    }
+
+    /**
+     * Copies the given snapshot, replacing some of its parts
+     */
+    private ModelSnapshot(ModelSnapshot base, Set<String> knownPII,
+                          Map<String, FeatureMatcher> classifierMatchers,
+                          FeatureMatcher knownPIIMatcher,
+                          Map<String, TreeEvaluator> treeEvaluators, ModelCache lazyModels) {
+        this.dpiFactory = base.dpiFactory;
+        this.domainOSModel = base.domainOSModel;
+        this.modelVersions = base.modelVersions;
+        this.classifierFeatures = base.classifierFeatures;
+        this.domainOSStruct = base.domainOSStruct;
+        this.treeLabels = base.treeLabels;
+        this.knownPII = knownPII;
+        this.treeEvaluators = treeEvaluators;
+        this.lazyModels = lazyModels;
+
+        // Matchers depend on known PII, so they are only reused if these did not change
+        this.classifierMatchers = classifierMatchers != null ? classifierMatchers :
+                createMatchers();
+        this.knownPIIMatcher = knownPIIMatcher != null ? knownPIIMatcher :
+                createKnownPIIMatcher();
+    }
+
+    /**
+     * Prepares strings to search for: each classifier only searches for its own tree labels
+     */
+    private Map<String, FeatureMatcher> createMatchers() {
+        Map<String, FeatureMatcher> matchers = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry : treeLabels.entrySet()) {
+            String domainOS = entry.getKey();
+            matchers.put(domainOS, new FeatureMatcher(dpiFactory, entry.getValue(),
+                    knownPII, classifierFeatures.get(domainOS)));
+        }
+        return Collections.unmodifiableMap(matchers);
+    }
+
+    private FeatureMatcher createKnownPIIMatcher() {
+        return new FeatureMatcher(dpiFactory, new HashSet<String>(0), knownPII, FeatureIndex.EMPTY);
+    }
+
+    /**
+     * @param knownPII the new set of known PII, as returned by {@link #freeze(Collection)}
+     * @return a copy of this snapshot whose matchers search for the given PII
+     */
+    ModelSnapshot withKnownPII(Set<String> knownPII) {
+        return new ModelSnapshot(this, knownPII, null, null, treeEvaluators, lazyModels);
+    }
+
+    /**
+     * @param treeEvaluators evaluators of the trees of this snapshot, mapped by classifier name
+     * @return a copy of this snapshot that uses the given evaluators
+     */
+    ModelSnapshot withTreeEvaluators(Map<String, TreeEvaluator> treeEvaluators) {
+        return new ModelSnapshot(this, knownPII, classifierMatchers, knownPIIMatcher,
+                Collections.unmodifiableMap(new HashMap<>(treeEvaluators)), lazyModels);
+    }
+
+    /**
+     * @param lazyModels classifiers to load on first use
+     * @return a copy of this snapshot that also uses the given classifiers
+     */
+    ModelSnapshot withLazyModels(ModelCache lazyModels) {
+        return new ModelSnapshot(this, knownPII, classifierMatchers, knownPIIMatcher,
+                treeEvaluators, lazyModels);
+    }
+
+    /**
+     * Finds the snapshot that holds the given classifier. Classifiers that are loaded on first
+     * use live in snapshots of their own (see {@link ModelCache}); all other classifiers, as well
+     * as the general classifier, are in this snapshot.
+     * @param classifierName name of the classifier that is about to be used
+     * @return the snapshot to take the classifier from. Its methods fall back to the general
+     * classifier just like the ones of this snapshot.
+     */
+    public ModelSnapshot resolve(String classifierName) {
+        if (lazyModels == null || !lazyModels.contains(classifierName))
+            return this;
+
+        ModelSnapshot loaded = lazyModels.get(classifierName, this);
+        // Classifiers that could not be loaded fall back to the general classifier
+        return loaded != null ? loaded : this;
+    }
+
+    /**
+     * @param knownPII PII that are known in advance
+     * @return an unmodifiable copy of the given PII, to be shared by snapshots
+     */
+    static Set<String> freeze(Collection<String> knownPII) {
+        return Collections.unmodifiableSet(new HashSet<>(knownPII));
+    }
+
+    /** @return names of the classifiers that have a model, including ones that are loaded on
+     * first use */
+    public Set<String> getClassifierNames() {
+        if (lazyModels == null)
+            return domainOSModel.keySet();
+
+        Set<String> names = new HashSet<>(domainOSModel.keySet());
+        names.addAll(lazyModels.getClassifierNames());
+        return Collections.unmodifiableSet(names);
+    }
+
+    /** @see Predictor#getClassifierMatcher(String) */
+    FeatureMatcher getClassifierMatcher(String classifier) {
+        if (classifierMatchers.containsKey(classifier))
+            return classifierMatchers.get(classifier);
+
+        if (classifierMatchers.containsKey(Predictor.GENERAL_CLASSIFIER))
+            return classifierMatchers.get(Predictor.GENERAL_CLASSIFIER);
+
+        return knownPIIMatcher;
+    }
+
+    /** @see Predictor#getClassifierFeatures(String) */
+    public FeatureIndex getClassifierFeatures(String classifier) {
+        if (classifierFeatures.containsKey(classifier))
+            return classifierFeatures.get(classifier);
+
+        if (classifierFeatures.containsKey(Predictor.GENERAL_CLASSIFIER))
+            return classifierFeatures.get(Predictor.GENERAL_CLASSIFIER);
+
+        return FeatureIndex.EMPTY;
+    }
+
+    /** @see Predictor#getClassifierModel(String) */
+    public Object getClassifierModel(String classifierName) {
+        if (domainOSModel.containsKey(classifierName))
+            return domainOSModel.get(classifierName);
+
+        return domainOSModel.get(Predictor.GENERAL_CLASSIFIER);
+    }
+
+    /** @see Predictor#getClassifierInstances(String) */
+    public Instances getClassifierInstances(String classifierName) {
+        if (domainOSStruct.containsKey(classifierName))
+            return domainOSStruct.get(classifierName);
+
+        return domainOSStruct.get(Predictor.GENERAL_CLASSIFIER);
+    }
+
+    /**
+     * @param classifierName the name of the classifier whose evaluator to retrieve
+     * @return the tree evaluator of the specified classifier if a model for it exists, otherwise
+     * the tree evaluator of the general classifier. {@code null} is returned if the selected tree
+     * has no evaluator.
+     */
+    TreeEvaluator getTreeEvaluator(String classifierName) {
+        if (domainOSModel.containsKey(classifierName))
+            return treeEvaluators.get(classifierName);
+
+        return treeEvaluators.get(Predictor.GENERAL_CLASSIFIER);
+    }
+
+    private static Map<String, FeatureIndex> copyFeatures(
+            Map<String, Map<String, Integer>> classifierFeatures) {
+        Map<String, FeatureIndex> copy = new HashMap<>();
+        for (Map.Entry<String, Map<String, Integer>> entry : classifierFeatures.entrySet())
+            copy.put(entry.getKey(), FeatureIndex.of(entry.getValue()));
+        return Collections.unmodifiableMap(copy);
+    }
+
+    private static Map<String, Set<String>> copyTreeLabels(Map<String, Set<String>> treeLabels) {
+        Map<String, Set<String>> copy = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry : treeLabels.entrySet())
+            copy.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<>(entry.getValue())));
+        return Collections.unmodifiableMap(copy);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.prediction;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloads the models of a {@link Predictor} in the background whenever its models change.
+ * Changes are collected until the files stay quiet for a while, so that a whole round of training
+ * is picked up by a single reload. See {@link Predictor#watchModelDir(long)}.
+ * <p>
+ * Predictors that load the model bundle are only reloaded once the bundle itself is replaced:
+ * training writes it last, after all other outputs, so it marks the end of a round. Other
+ * predictors are reloaded whenever a file in the model directory or the tree labels file changes.
+ * </p>
+ */
+public class ModelWatcher implements Closeable {
+    private final Predictor predictor;
+    private final WatchService watchService;
+    private final long quietPeriodMillis;
+    private final Thread thread;
+
+    /** Directory in which any change causes a reload, or {@code null} */
+    private final Path modelDir;
+    /** File whose changes cause a reload */
+    private final Path triggerFile;
+
+    /**
+     * Starts watching the given files. Call {@link #start()} to start reloading.
+     * @param predictor the predictor to reload
+     * @param modelDir the directory that contains the models
+     * @param treeLabelsFile the file that contains the tree labels
+     * @param bundleFile the model bundle if the predictor loads it, otherwise {@code null}
+     * @param quietPeriodMillis how long the files must stay unchanged before reloading
+     * @throws IOException if the files could not be watched
+     */
+    ModelWatcher(Predictor predictor, Path modelDir, Path treeLabelsFile, Path bundleFile,
+                 long quietPeriodMillis) throws IOException {
+        this.predictor = predictor;
+        this.quietPeriodMillis = quietPeriodMillis;
+        if (bundleFile != null) {
+            this.modelDir = null;
+            triggerFile = bundleFile.toAbsolutePath().normalize();
+        } else {
+            this.modelDir = modelDir.toAbsolutePath().normalize();
+            triggerFile = treeLabelsFile.toAbsolutePath().normalize();
+        }
+
+        watchService = modelDir.getFileSystem().newWatchService();
+        if (this.modelDir != null)
+            register(this.modelDir);
+        // Registering the same directory again has no effect
+        register(triggerFile.getParent());
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "ModelWatcher-" + modelDir.getFileName());
+        thread.setDaemon(true);
+    }
+
+    private void register(Path dir) throws IOException {
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    /**
+     * Starts reloading in the background
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops watching the directory. Any reload that is in progress is finished first.
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                // Wait for the rest of the changes
+                boolean changed = false;
+                while (key != null) {
+                    Path dir = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents())
+                        changed |= triggersReload(dir, event);
+                    key.reset();
+                    key = watchService.poll(quietPeriodMillis, TimeUnit.MILLISECONDS);
+                }
+                if (!changed)
+                    continue;
+
+                try {
+                    predictor.reload();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    System.out.println("WARNING: Could not reload models, keeping the " +
+                            "previous ones");
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Watcher was closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param dir the watched directory in which the event happened
+     * @param event the event
+     * @return {@code true} if the event changes the models
+     */
+    private boolean triggersReload(Path dir, WatchEvent<?> event) {
+        // Events were lost, so any file may have changed
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+            return true;
+        return dir.equals(modelDir) || dir.resolve((Path) event.context()).equals(triggerFile);
+    }
+}
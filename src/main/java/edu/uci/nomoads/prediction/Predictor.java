@@ -22,7 +22,9 @@ import org.json.simple.parser.JSONParser;
 
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -30,28 +32,47 @@ import java.util.Set;
 
 import edu.uci.nomoads.Util;
 import weka.core.Instances;
-import weka.core.converters.ArffLoader;
 
 /**
  * Parent class for other predictors (binary, multi-label, etc.)
+ * <p>
+ * Predictors are thread-safe: all models are kept in an immutable {@link ModelSnapshot} that is
+ * replaced as a whole when it changes (e.g. in {@link #addKnownPII(Collection)}). Methods that
+ * need several parts of the models (features, matcher, tree, etc.) should read
+ * {@link #getSnapshot()} once and use it throughout, so that they never mix parts of different
+ * snapshots.
+ * </p>
  */
 public abstract class Predictor {
     public static final String GENERAL_CLASSIFIER = "general_android";
 
-    protected final Map<String, Object> domainOSModel;
-    protected final Map<String, Map<String, Integer>> classifierFeatures;
-    protected final Map<String, Instances> domainOSStruct;
+    /** Creates the {@link DPIInterface} objects that search packets, one per classifier */
+    protected final DPIInterface.Factory dpiFactory;
 
-    /** Feature set - the set of strings we should search for with DPI */
-    protected final Set<String> treeLabels;
+    /** The name of the models to load (e.g. J48.class.toString().substring(6)) */
+    private final String className;
 
-    /** Used to search for known PII and features that are used by the classifiers */
-    protected final DPIInterface dpiInterface;
+    /** Points to the model, features and tree label files, or {@code null} if the models were
+     * handed to the predictor rather than loaded from files */
+    private final Util util;
 
-    /** A set of known PII. These can be used as features when doing non-PII classification, or
-     * these can simply be PII that do not require classification and can be found via
-     * string matching instead. Defaults to an empty set. */
-    protected Set<String> knownPII;
+    /** If positive, classifiers other than {@link #GENERAL_CLASSIFIER} are loaded on first use,
+     * and at most this many of them are kept in memory (see {@link ModelCache}) */
+    private final int lazyCacheSize;
+
+    /** Whether to load models from the bundle written during training, see {@link ModelBundle} */
+    private final boolean useModelBundle;
+
+    /** Whether the bundle is used in place rather than copied to the heap, see
+     * {@link PredictorOptions#setShareModelBundle(boolean)} */
+    private final boolean shareModelBundle;
+
+    /** Version of models that were not loaded from a file (see
+     * {@link ModelSnapshot#modelVersions}) */
+    private static final String IN_MEMORY_VERSION = "in-memory";
+
+    /** The models currently used for prediction */
+    protected volatile ModelSnapshot snapshot;
 
     /**
      * Constructor:
@@ -59,70 +80,154 @@ public abstract class Predictor {
      * to be used during prediction
      * @param className the name of the model to load (e.g. J48.class.toString().substring(6))
      * @param util utility object
-     * @param dpiInterface which implementation of {@link DPIInterface} is to be used for searching
+     * @param dpiFactory creates the {@link DPIInterface} objects that search packets for
+     *                   features: one of the {@link DPIType}s, or any other implementation
+     * @param knownPII set of PII that are known in advance (see {@link ModelSnapshot#knownPII})
+     */
+    public Predictor(String className, Util util, DPIInterface.Factory dpiFactory,
+                     Collection<String> knownPII) throws Exception {
+        this(className, util, knownPII, new PredictorOptions().setDpiFactory(dpiFactory));
+    }
+
+    /**
+     * Constructor:
+     * Loads models for the given class name as selected by the given options: either all of them
+     * up front, or only the general one while indexing the others so that they can be loaded on
+     * first use
+     * @param className the name of the model to load (e.g. J48.class.toString().substring(6))
+     * @param util utility object
+     * @param knownPII set of PII that are known in advance (see {@link ModelSnapshot#knownPII})
+     * @param options how to load and evaluate the models
+     */
+    public Predictor(String className, Util util, Collection<String> knownPII,
+                     PredictorOptions options) throws Exception {
+        this.dpiFactory = options.getDpiFactory();
+        this.className = className;
+        this.util = util;
+        this.lazyCacheSize = options.getLazyCacheSize();
+        this.useModelBundle = options.getUseModelBundle();
+        this.shareModelBundle = options.getShareModelBundle();
+
+        snapshot = loadSnapshot(null, ModelSnapshot.freeze(knownPII));
+    }
+
+    /**
+     * Constructor:
+     * Uses the given models instead of loading them from files, e.g. ones that were just trained
+     * (see {@link #singleModel(DPIInterface.Factory, String, Object, Instances, Collection)}).
+     * Such predictors cannot be reloaded.
+     * @param className the name of the given models (e.g. J48.class.toString().substring(6))
+     * @param loaded the models to use
+     * @param options how to evaluate the models. Options about loading models do not apply.
+     */
+    protected Predictor(String className, ModelSnapshot loaded, PredictorOptions options) {
+        this.dpiFactory = options.getDpiFactory();
+        this.className = className;
+        this.util = null;
+        this.lazyCacheSize = 0;
+        this.useModelBundle = false;
+        this.shareModelBundle = false;
+
+        snapshot = loaded;
+    }
+
+    /**
+     * Builds a snapshot of a single model that is already in memory, the same way
+     * {@link #loadSnapshot(ModelSnapshot, Set)} would after reading it from its files
+     * @param dpiFactory which implementation of {@link DPIInterface} is to be used for searching
      * packets for features
-     * @param knownPII set of PII that are known in advance (see {@link #knownPII})
+     * @param domainOS name of the classifier
+     * @param model the model
+     * @param structure the structure of the data the model was trained on
+     * @param domainOSTreeLabels the tree labels of the model
+     * @return snapshot of the model, with no known PII
      */
-    public Predictor(String className, Util util, DPIInterface dpiInterface, Collection<String>
-            knownPII) throws Exception {
-        this.dpiInterface = dpiInterface;
+    protected static ModelSnapshot singleModel(DPIInterface.Factory dpiFactory, String domainOS,
+                                               Object model, Instances structure,
+                                               Collection<String> domainOSTreeLabels) {
+        structure = new Instances(structure, 0);
+        structure.setClassIndex(structure.numAttributes() - 1);
+
+        String[] attributes = new String[structure.numAttributes()];
+        for (int j = 0; j < structure.numAttributes(); j++) {
+            attributes[j] = structure.attribute(j).name();
+        }
+
+        Map<String, Map<String, Integer>> classifierFeatures = new HashMap<>(2);
+        classifierFeatures.put(domainOS, FeatureIndex.of(attributes));
+        return new ModelSnapshot(dpiFactory, Collections.singletonMap(domainOS, model),
+                Collections.singletonMap(domainOS, IN_MEMORY_VERSION), classifierFeatures,
+                Collections.singletonMap(domainOS, structure),
+                Collections.<String, Set<String>>singletonMap(domainOS,
+                        new HashSet<>(domainOSTreeLabels)),
+                ModelSnapshot.freeze(Collections.<String>emptyList()));
+    }
+
+    /**
+     * Loads all models for {@link #className}, along with their features and tree labels. In lazy
+     * mode (see {@link #lazyCacheSize}), only the general model is loaded and the other ones are
+     * indexed.
+     * @param previous the snapshot that is currently in use, or {@code null}. Models whose files
+     *                 did not change since they were loaded into it are reused.
+     * @param knownPII set of PII that are known in advance (see {@link ModelSnapshot#knownPII})
+     * @return snapshot of the loaded models
+     * @throws Exception if an error occurred while trying to read the models
+     */
+    private ModelSnapshot loadSnapshot(ModelSnapshot previous, Set<String> knownPII)
+            throws Exception {
+        if (useModelBundle) {
+            File bundleFile = new File(util.getModelBundleFile());
+            if (bundleFile.exists())
+                return loadBundle(bundleFile, previous, knownPII);
+            System.out.println("WARNING: No model bundle found at " + bundleFile +
+                    ", loading model files instead");
+        }
 
-        domainOSModel = new HashMap<String, Object>();
-        classifierFeatures = new HashMap<String, Map<String, Integer>>();
-        domainOSStruct = new HashMap<String, Instances>();
-        treeLabels = new HashSet<>();
+        Map<String, Object> domainOSModel = new HashMap<String, Object>();
+        Map<String, String> modelVersions = new HashMap<>();
+        Map<String, Map<String, Integer>> classifierFeatures =
+                new HashMap<String, Map<String, Integer>>();
+        Map<String, Instances> domainOSStruct = new HashMap<String, Instances>();
+        Map<String, Set<String>> treeLabels = new HashMap<>();
+        Map<String, ModelCache.IndexEntry> lazyIndex = new HashMap<>();
 
  //       try {
             File modelFolder = new File(util.getModelDir());
             File[] models = modelFolder.listFiles();
-            if (models == null)
-                return; // TODO: 239 Print out warning or throw exception
+            if (models == null) {
+                return new ModelSnapshot(dpiFactory, domainOSModel, modelVersions,
+                        classifierFeatures, domainOSStruct, treeLabels, knownPII);
+                // TODO: 239 Print out warning or throw exception
+            }
 
             JSONParser parser = new JSONParser();
-            JSONObject jsonTreeLabels = (JSONObject) parser.parse(new FileReader(
-                    util.getTreeLabelsFile()));
+            JSONObject jsonTreeLabels;
+            try (FileReader reader = new FileReader(util.getTreeLabelsFile())) {
+                jsonTreeLabels = (JSONObject) parser.parse(reader);
+            }
             for (int i = 0; i < models.length; i++) {
                 String fn = models[i].getName();
-                if (!fn.endsWith(className + ".model"))
+                String domainOS = getDomainOS(fn);
+                if (domainOS == null)
                     continue;
-                String domainOS = fn.substring(0,
-                        fn.length() - className.length() - ".model".length() - 1);
-                loadDomainModel(util.getModelDir() + fn, domainOS);
+                String version = models[i].lastModified() + ":" + models[i].length();
 
-
-                ArffLoader loader = new ArffLoader();
-                String arffStructureFile = util.getFeaturesDir() + domainOS + ".arff";
-                File af = new File(arffStructureFile);
-                if (!af.exists())
+                if (lazyCacheSize > 0 && !domainOS.equals(GENERAL_CLASSIFIER)) {
+                    // Classifiers without features would fall back to the general one anyway
+                    if (ArffFiles.find(util.getFeaturesDir(), domainOS) != null)
+                        lazyIndex.put(domainOS, new ModelCache.IndexEntry(util.getModelDir() +
+                                fn, version, getTreeLabels(jsonTreeLabels, domainOS)));
                     continue;
-
-                loader.setFile(new File(arffStructureFile));
-                Instances structure;
-                try {
-                    structure = loader.getStructure();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    System.exit(-1);
-                    break; // Make compiler happy
-                }
-                structure.setClassIndex(structure.numAttributes() - 1);
-                domainOSStruct.put(domainOS, structure);
-
-                // Load tree labels
-                JSONObject treeLabels = (JSONObject) jsonTreeLabels.get(domainOS);
-                if (treeLabels != null && treeLabels.size() > 0) {
-                    for (Object k : treeLabels.keySet()) {
-                        this.treeLabels.add(treeLabels.get(k) + "");
-                    }
-                    //System.out.println("number of loaded tree nodes: " + treeLabels.size());
                 }
 
-                // Load features
-                Map<String, Integer> fi = new HashMap<String, Integer>();
-                for (int j = 0; j < structure.numAttributes(); j++) {
-                    fi.put(structure.attribute(j).name(), j);
-                }
-                classifierFeatures.put(domainOS, fi);
+                // Only read models that are new or have changed
+                Object model = null;
+                if (previous != null && version.equals(previous.modelVersions.get(domainOS)))
+                    model = previous.domainOSModel.get(domainOS);
+                loadClassifier(domainOS, util.getModelDir() + fn, version, model,
+                        getTreeLabels(jsonTreeLabels, domainOS), previous == null,
+                        domainOSModel, modelVersions, classifierFeatures, domainOSStruct,
+                        treeLabels);
             }
 /*        } catch (Exception e) {
             // TODO: 239
@@ -131,31 +236,297 @@ public abstract class Predictor {
         }*/
 
         // Prepare strings to search for
-        addKnownPII(knownPII);
+        ModelSnapshot loaded = new ModelSnapshot(dpiFactory, domainOSModel, modelVersions,
+                classifierFeatures, domainOSStruct, treeLabels, knownPII);
+        if (lazyCacheSize <= 0)
+            return loaded;
+
+        return loaded.withLazyModels(new ModelCache(lazyCacheSize, dpiFactory, lazyIndex,
+                new ModelCache.Loader() {
+                    @Override
+                    public ModelSnapshot load(String classifierName, ModelCache.IndexEntry model,
+                                              Set<String> knownPII) throws Exception {
+                        return loadLazyClassifier(classifierName, model, knownPII);
+                    }
+                }, previous != null ? previous.lazyModels : null));
     }
 
     /**
-     * Adds {@link #knownPII} to the set of strings to be searched by {@link #dpiInterface} in
-     * addition to the feature set.
-     * @param knownPII the set of pre-defined/known PII
+     * Loads all classifiers from a bundle written during training. Lazy mode does not apply to
+     * bundles, since they are read in a single pass anyway. Classifiers whose trees could not be
+     * bundled (see {@link ModelBundle.Writer#add}) are loaded from their model files. They are
+     * given the version of the bundle, since both are written by the same training run.
+     * @param bundleFile the bundle to load
+     * @param previous the snapshot that is currently in use, or {@code null}. It is reused if it
+     *                 was loaded from the same bundle.
+     * @param knownPII set of PII that are known in advance (see {@link ModelSnapshot#knownPII})
+     * @return snapshot of the bundled models
+     * @throws Exception if the bundle could not be read
      */
-    public synchronized void addKnownPII(Collection<String> knownPII) {
-        String[] searchStrings = new String[treeLabels.size() + knownPII.size()];
-        // Add tree labels to strings to search for
-        int i = 0;
-        for (String treeLabel : treeLabels) {
-            searchStrings[i] = treeLabel;
-            i++;
+    private ModelSnapshot loadBundle(File bundleFile, ModelSnapshot previous,
+                                     Set<String> knownPII) throws Exception {
+        String version = ModelBundle.getVersion(bundleFile);
+        if (previous != null && !previous.modelVersions.isEmpty() &&
+                previous.lazyModels == null) {
+            boolean unchanged = true;
+            for (String modelVersion : previous.modelVersions.values())
+                unchanged &= version.equals(modelVersion);
+            if (unchanged)
+                return knownPII == previous.knownPII ? previous :
+                        previous.withKnownPII(knownPII);
+        }
+
+        Map<String, Object> domainOSModel = new HashMap<String, Object>();
+        Map<String, String> modelVersions = new HashMap<>();
+        Map<String, Map<String, Integer>> classifierFeatures =
+                new HashMap<String, Map<String, Integer>>();
+        Map<String, Instances> domainOSStruct = new HashMap<String, Instances>();
+        Map<String, Set<String>> treeLabels = new HashMap<>();
+        try {
+            ModelBundle.read(bundleFile, className, shareModelBundle, domainOSModel,
+                    modelVersions, classifierFeatures, domainOSStruct, treeLabels);
+
+            File[] models = new File(util.getModelDir()).listFiles();
+            JSONObject jsonTreeLabels = null;
+            for (int i = 0; models != null && i < models.length; i++) {
+                String domainOS = getDomainOS(models[i].getName());
+                if (domainOS == null || domainOSModel.containsKey(domainOS))
+                    continue;
+
+                if (jsonTreeLabels == null) {
+                    try (FileReader reader = new FileReader(util.getTreeLabelsFile())) {
+                        jsonTreeLabels = (JSONObject) new JSONParser().parse(reader);
+                    }
+                }
+                System.out.println("WARNING: " + domainOS + " is not in the model bundle, " +
+                        "loading its model file instead");
+                loadClassifier(domainOS, models[i].getPath(), version, null,
+                        getTreeLabels(jsonTreeLabels, domainOS), previous == null,
+                        domainOSModel, modelVersions, classifierFeatures, domainOSStruct,
+                        treeLabels);
+            }
+        } catch (Exception e) {
+            // Keep using the previous models if this is a reload
+            if (previous != null)
+                throw e;
+            e.printStackTrace();
+            System.exit(-1);
+            return null; // Make compiler happy
+        }
+
+        return new ModelSnapshot(dpiFactory, domainOSModel, modelVersions, classifierFeatures,
+                domainOSStruct, treeLabels, knownPII);
+    }
+
+    /**
+     * @param modelFileName name of a file in the model directory
+     * @return name of the classifier whose model is in the given file, or {@code null} if the
+     * file does not hold a model for {@link #className}
+     */
+    private String getDomainOS(String modelFileName) {
+        String suffix = className + ".model";
+        if (!modelFileName.endsWith(suffix))
+            return null;
+        return modelFileName.substring(0, modelFileName.length() - suffix.length() - 1);
+    }
+
+    /**
+     * Loads a single classifier that was indexed by {@link #loadSnapshot(ModelSnapshot, Set)}
+     * @param domainOS the classifier to load
+     * @param model where to load it from
+     * @param knownPII set of PII that are known in advance (see {@link ModelSnapshot#knownPII})
+     * @return a snapshot containing only the given classifier, prepared for prediction
+     * @throws Exception if an error occurred while trying to read the classifier
+     */
+    private ModelSnapshot loadLazyClassifier(String domainOS, ModelCache.IndexEntry model,
+                                             Set<String> knownPII) throws Exception {
+        Map<String, Object> domainOSModel = new HashMap<String, Object>(2);
+        Map<String, String> modelVersions = new HashMap<>(2);
+        Map<String, Map<String, Integer>> classifierFeatures =
+                new HashMap<String, Map<String, Integer>>(2);
+        Map<String, Instances> domainOSStruct = new HashMap<String, Instances>(2);
+        Map<String, Set<String>> treeLabels = new HashMap<>(2);
+        loadClassifier(domainOS, model.modelFile, model.version, null, model.treeLabels, false,
+                domainOSModel, modelVersions, classifierFeatures, domainOSStruct, treeLabels);
+
+        ModelSnapshot loaded = new ModelSnapshot(dpiFactory, domainOSModel, modelVersions,
+                classifierFeatures, domainOSStruct, treeLabels, knownPII);
+        return prepareSnapshot(loaded, null);
+    }
+
+    /**
+     * Loads a single classifier into the given maps
+     * @param domainOS the classifier to load
+     * @param pathToModel path to the model file
+     * @param version see {@link ModelSnapshot#modelVersions}
+     * @param model the already loaded model, or {@code null} to load it from the model file
+     * @param domainOSTreeLabels the tree labels of the classifier
+     * @param exitOnError whether to exit if the features of the classifier cannot be read (as
+     *                    opposed to throwing an exception)
+     * @throws Exception if an error occurred while trying to read the classifier
+     */
+    private void loadClassifier(String domainOS, String pathToModel, String version, Object model,
+                                Set<String> domainOSTreeLabels, boolean exitOnError,
+                                Map<String, Object> domainOSModel,
+                                Map<String, String> modelVersions,
+                                Map<String, Map<String, Integer>> classifierFeatures,
+                                Map<String, Instances> domainOSStruct,
+                                Map<String, Set<String>> treeLabels) throws Exception {
+        domainOSModel.put(domainOS, model != null ? model : loadDomainModel(pathToModel,
+                domainOS));
+        modelVersions.put(domainOS, version);
+
+        File af = ArffFiles.find(util.getFeaturesDir(), domainOS);
+        if (af == null)
+            return;
+
+        // Only the header is read, and the file is closed right away since models may be
+        // reloaded many times
+        Instances structure;
+        try {
+            structure = ArffFiles.readStructure(af);
+        } catch (Exception e) {
+            // Keep using the previous models if this is a reload
+            if (!exitOnError)
+                throw e;
+            e.printStackTrace();
+            System.exit(-1);
+            return; // Make compiler happy
         }
+        structure.setClassIndex(structure.numAttributes() - 1);
+        domainOSStruct.put(domainOS, structure);
+        treeLabels.put(domainOS, domainOSTreeLabels);
 
-        // Add known PII
-        this.knownPII = new HashSet<>(knownPII.size());
-        for (String pii : knownPII) {
-            this.knownPII.add(pii);
-            searchStrings[i] = pii;
-            i++;
+        // Load features
+        String[] attributes = new String[structure.numAttributes()];
+        for (int j = 0; j < structure.numAttributes(); j++) {
+            attributes[j] = structure.attribute(j).name();
+        }
+        classifierFeatures.put(domainOS, FeatureIndex.of(attributes));
+    }
+
+    /**
+     * @param jsonTreeLabels contents of {@link Util#getTreeLabelsFile()}
+     * @param domainOS the classifier whose tree labels to retrieve
+     * @return the tree labels of the given classifier
+     */
+    private static Set<String> getTreeLabels(JSONObject jsonTreeLabels, String domainOS) {
+        Set<String> domainOSTreeLabels = new HashSet<>();
+        JSONObject jsonDomainOSLabels = (JSONObject) jsonTreeLabels.get(domainOS);
+        if (jsonDomainOSLabels != null && jsonDomainOSLabels.size() > 0) {
+            for (Object k : jsonDomainOSLabels.keySet()) {
+                domainOSTreeLabels.add(jsonDomainOSLabels.get(k) + "");
+            }
+            //System.out.println("number of loaded tree nodes: " + treeLabels.size());
         }
-        dpiInterface.init(searchStrings);
+        return domainOSTreeLabels;
+    }
+
+    /**
+     * Reloads the model directory: new and changed models are read, along with the features and
+     * tree labels of all models, and the DPI matchers are rebuilt. The new models are then
+     * published all at once, so classifications that are in progress keep using the previous
+     * models and are never blocked. If anything fails to load, the previous models are kept.
+     * @throws Exception if an error occurred while trying to read the models
+     * @throws IllegalStateException if the models were not loaded from files
+     */
+    public synchronized void reload() throws Exception {
+        if (util == null)
+            throw new IllegalStateException("Models were not loaded from files");
+        ModelSnapshot previous = snapshot;
+        ModelSnapshot loaded = loadSnapshot(previous, previous.knownPII);
+        snapshot = prepareSnapshot(loaded, previous);
+    }
+
+    /**
+     * Watches the model directory and calls {@link #reload()} whenever models are added or
+     * changed. Predictors that load the model bundle are reloaded whenever training writes a new
+     * bundle (see {@link ModelWatcher}).
+     * @param quietPeriodMillis how long the directory must stay unchanged before reloading, so
+     *                          that models are not read while they are still being written
+     * @return the started watcher, which should be closed once reloading is no longer needed
+     * @throws IOException if the directory could not be watched
+     * @throws IllegalStateException if the models were not loaded from files
+     */
+    public ModelWatcher watchModelDir(long quietPeriodMillis) throws IOException {
+        if (util == null)
+            throw new IllegalStateException("Models were not loaded from files");
+        ModelWatcher watcher = new ModelWatcher(this, new File(util.getModelDir()).toPath(),
+                new File(util.getTreeLabelsFile()).toPath(),
+                useModelBundle ? new File(util.getModelBundleFile()).toPath() : null,
+                quietPeriodMillis);
+        watcher.start();
+        return watcher;
+    }
+
+    /**
+     * @return the classifiers that are loaded on first use, or {@code null} if all classifiers
+     * are loaded up front. Useful for monitoring the cache.
+     */
+    public ModelCache getModelCache() {
+        return snapshot.lazyModels;
+    }
+
+    /**
+     * @return {@code true} if classifiers other than the general one are loaded on first use
+     */
+    protected boolean isLazy() {
+        return lazyCacheSize > 0;
+    }
+
+    /**
+     * Lets subclasses prepare newly loaded models for prediction before they are published (e.g.
+     * by compiling them). Called by {@link #reload()} and for each classifier that is loaded on
+     * first use; since subclasses are not initialized yet
+     * when {@link Predictor}'s constructor runs, they should call it at the end of their own
+     * constructors.
+     * @param loaded the newly loaded models
+     * @param previous the models that are currently in use, or {@code null} if there are none.
+     *                 Anything prepared for models that did not change can be reused.
+     * @return the snapshot to publish
+     */
+    protected ModelSnapshot prepareSnapshot(ModelSnapshot loaded, ModelSnapshot previous) {
+        return loaded;
+    }
+
+    /**
+     * @return the models currently used for prediction. The returned snapshot never changes, so
+     * it can be used for a whole prediction even if the models are replaced in the meantime.
+     */
+    public ModelSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Adds known PII to the set of strings to be searched by each classifier's
+     * {@link FeatureMatcher}, in addition to the classifier's feature set. Threads that are in
+     * the middle of a prediction keep using the previous matchers.
+     * @param knownPII the set of pre-defined/known PII
+     */
+    public synchronized void addKnownPII(Collection<String> knownPII) {
+        snapshot = snapshot.withKnownPII(ModelSnapshot.freeze(knownPII));
+    }
+
+    /**
+     * Convenience method for retrieving the {@link FeatureMatcher} of a particular classifier
+     * @param classifier the classifier whose matcher to retrieve
+     * @return matcher associated with a particular classifier if a model for it exists;
+     * otherwise the general classifier matcher is returned, if one exists; otherwise a matcher
+     * that only searches for known PII is returned.
+     */
+    protected FeatureMatcher getClassifierMatcher(String classifier) {
+        return snapshot.resolve(classifier).getClassifierMatcher(classifier);
+    }
+
+    /**
+     * Convenience method for retrieving the DPI object that searches packets for the features of
+     * a particular classifier, as well as for known PII. Each classifier has its own, created by
+     * {@link #dpiFactory}.
+     * @param classifier the classifier whose DPI object to retrieve
+     * @return see {@link #getClassifierMatcher(String)} for which classifier's object is returned
+     */
+    protected DPIInterface getDpiInterface(String classifier) {
+        return getClassifierMatcher(classifier).dpiInterface;
     }
 
     /**
@@ -163,16 +534,10 @@ public abstract class Predictor {
      * @param classifier the classifier whose features to retrieve
      * @return features associated with a particular classifier if a model for it exists;
      * otherwise general classifier features are returned, if one exists; otherwise an empty
-     * {@link HashMap} is returned.
+     * index is returned. The returned index cannot be modified.
      */
-    public Map<String, Integer> getClassifierFeatures(String classifier) {
-        if (classifierFeatures.containsKey(classifier))
-            return classifierFeatures.get(classifier);
-
-        if (classifierFeatures.containsKey(GENERAL_CLASSIFIER))
-            return classifierFeatures.get(GENERAL_CLASSIFIER);
-
-        return new HashMap<>(0);
+    public FeatureIndex getClassifierFeatures(String classifier) {
+        return snapshot.resolve(classifier).getClassifierFeatures(classifier);
     }
 
     /**
@@ -184,10 +549,7 @@ public abstract class Predictor {
      * If there is no general classifier model, {@code null} is returned.
      */
     public Object getClassifierModel(String classifierName) {
-        if (domainOSModel.containsKey(classifierName))
-            return domainOSModel.get(classifierName);
-
-        return domainOSModel.get(Predictor.GENERAL_CLASSIFIER);
+        return snapshot.resolve(classifierName).getClassifierModel(classifierName);
     }
 
     /**
@@ -199,19 +561,20 @@ public abstract class Predictor {
      * If there is no general classifier structure, {@code null} is returned.
      */
     public Instances getClassifierInstances(String classifierName) {
-        if (domainOSStruct.containsKey(classifierName))
-            return domainOSStruct.get(classifierName);
-
-        return domainOSStruct.get(Predictor.GENERAL_CLASSIFIER);
+        return snapshot.resolve(classifierName).getClassifierInstances(classifierName);
     }
 
     /**
      * Loads the given model based on the type of predictor/classifier is selected upon
-     * initialization
+     * initialization. The model is returned rather than stored by the subclass, since the
+     * predictor publishes all models at once in an immutable {@link ModelSnapshot}. Models must
+     * not be modified once loaded, since they are shared by all threads using the predictor.
      * @param pathToModel path to the model file
-     * @param domainOS the domain (TLD) and operating system to which this model should be mapped
-     *                 for future uses (see {@link #domainOSModel})
+     * @param domainOS the domain (TLD) and operating system to which this model will be mapped
+     *                 (see {@link ModelSnapshot#domainOSModel})
+     * @return the loaded model
      * @throws Exception if an error occurred while trying to read the model
      */
-    protected abstract void loadDomainModel(String pathToModel, String domainOS) throws Exception;
+    protected abstract Object loadDomainModel(String pathToModel, String domainOS)
+            throws Exception;
 }
@@ -0,0 +1,106 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.prediction;
+
+/**
+ * Settings that control how a {@link Predictor} loads and evaluates its models. The defaults load
+ * all models from their {@code .model} files up front, search packets with {@link ServerDPI} and
+ * evaluate trees from arrays.
+ */
+public class PredictorOptions {
+    private DPIInterface.Factory dpiFactory = DPIType.SERVER;
+    private int maxGeneratedTrees = 0;
+    private int lazyCacheSize = 0;
+    private boolean useModelBundle = false;
+    private boolean shareModelBundle = false;
+
+    /**
+     * @param dpiType which implementation of {@link DPIInterface} is to be used for searching
+     * packets for features
+     * @return this object
+     */
+    public PredictorOptions setDpiType(DPIType dpiType) {
+        return setDpiFactory(dpiType);
+    }
+
+    /**
+     * @param dpiFactory creates the {@link DPIInterface} objects that search packets for
+     *                   features, for implementations other than the {@link DPIType}s
+     * @return this object
+     */
+    public PredictorOptions setDpiFactory(DPIInterface.Factory dpiFactory) {
+        this.dpiFactory = dpiFactory;
+        return this;
+    }
+
+    /**
+     * @param maxGeneratedTrees classes are only generated for trees if there are at most this
+     *                          many models, otherwise trees are evaluated from arrays (see
+     *                          {@link TreeClassGenerator}). Use 0 to never generate classes.
+     * @return this object
+     */
+    public PredictorOptions setMaxGeneratedTrees(int maxGeneratedTrees) {
+        this.maxGeneratedTrees = maxGeneratedTrees;
+        return this;
+    }
+
+    /**
+     * @param lazyCacheSize 0 to load all models up front, otherwise the maximum number of models
+     *                      (besides the general one) to keep in memory (see {@link ModelCache})
+     * @return this object
+     */
+    public PredictorOptions setLazyCacheSize(int lazyCacheSize) {
+        this.lazyCacheSize = lazyCacheSize;
+        return this;
+    }
+
+    /**
+     * @param useModelBundle {@code true} to load all models from the bundle written during
+     *                       training (see {@link ModelBundle}) instead of from their
+     *                       {@code .model} files, if the bundle exists
+     * @return this object
+     */
+    public PredictorOptions setUseModelBundle(boolean useModelBundle) {
+        this.useModelBundle = useModelBundle;
+        return this;
+    }
+
+    /**
+     * @param shareModelBundle {@code true} to evaluate trees and look up features directly in the
+     *                         memory-mapped model bundle instead of copying them to the heap, so
+     *                         that all processes using the same bundle share a single copy of
+     *                         them (see {@link ModelBundle}). Implies
+     *                         {@link #setUseModelBundle(boolean)}. Classes are not generated for
+     *                         shared trees, since they would be loaded by each process.
+     * @return this object
+     */
+    public PredictorOptions setShareModelBundle(boolean shareModelBundle) {
+        this.shareModelBundle = shareModelBundle;
+        return this;
+    }
+
+    public DPIInterface.Factory getDpiFactory() { return dpiFactory; }
+
+    public int getMaxGeneratedTrees() { return maxGeneratedTrees; }
+
+    public int getLazyCacheSize() { return lazyCacheSize; }
+
+    public boolean getUseModelBundle() { return useModelBundle || shareModelBundle; }
+
+    public boolean getShareModelBundle() { return shareModelBundle; }
+}
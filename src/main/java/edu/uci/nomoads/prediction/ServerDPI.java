@@ -23,9 +23,9 @@ import java.util.ArrayList;
 
 /**
  * A naive implementation of DPI: searches a given packet for all provided {@link #searchStrings}
- * in multiple passes of the packet. This could be improved with an implementation of the
- * Aho-Corasick algorithm, but the speed is not as crucial on a server. AntMonitor provides a
- * very efficient Aho-Corasick implementation for when this library is used on the mobile device.
+ * in multiple passes of the packet. See {@link AhoCorasickDPI} for a single-pass implementation
+ * that scales better with the number of search strings. AntMonitor provides a very efficient
+ * Aho-Corasick implementation for when this library is used on the mobile device.
  */
 class ServerDPI implements DPIInterface {
     private String[] searchStrings;
@@ -61,6 +61,26 @@ class ServerDPI implements DPIInterface {
         return foundStrings;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void search(ByteBuffer packet, int size, MatchListener listener) {
+        String strPacket = byteBufferToString(packet, size);
+
+        for (int stringId = 0; stringId < searchStrings.length; stringId++) {
+            String searchStr = searchStrings[stringId];
+            int i = strPacket.indexOf(searchStr);
+
+            // Loop until all occurrences of specific string are found
+            while (i != -1) {
+                i += searchStr.length();
+                listener.onMatch(stringId, i);
+                i = strPacket.indexOf(searchStr, i);
+            }
+        }
+    }
+
     /**
      * Converts given ByteBuffer to String based on the UTF-8 encoding (we operate on a
      * ByteBuffer to match any mobile implementations of {@link DPIInterface}).
@@ -68,7 +88,7 @@ class ServerDPI implements DPIInterface {
      * @param size size of the packet
      * @return String representation of the ByteBuffer
      */
-    private String byteBufferToString(ByteBuffer buffer, int size) {
+    static String byteBufferToString(ByteBuffer buffer, int size) {
         String strPacket = new String(buffer.array(), 0, size, Charset.forName("UTF-8"));
         return strPacket;
     }
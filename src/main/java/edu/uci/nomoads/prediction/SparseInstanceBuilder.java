@@ -0,0 +1,149 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.prediction;
+
+import java.util.Arrays;
+
+import weka.core.Instance;
+import weka.core.SparseInstance;
+
+/**
+ * Builds {@link SparseInstance}s from the attributes that are actually set, instead of from a
+ * dense array of all attribute values. Building an instance takes time and memory in proportion
+ * to the number of values set, not to the number of attributes, which matters for classifiers
+ * with thousands of features where a data point only has a few of them. A builder can be reused
+ * for any number of instances, but it is not thread-safe.
+ */
+public final class SparseInstanceBuilder {
+    private final int numAttributes;
+
+    /* Values set so far, in the order they were set */
+    private int[] indices;
+    private double[] values;
+    private boolean[] increments;
+    private int size = 0;
+
+    /** Buffer for sorting values by their index, see {@link #build(double)} */
+    private long[] order;
+
+    /**
+     * @param numAttributes number of attributes of the instances to build, including the class
+     */
+    public SparseInstanceBuilder(int numAttributes) {
+        this.numAttributes = numAttributes;
+
+        // Grows as needed, instances with few attributes need no more than that
+        int capacity = Math.max(1, Math.min(numAttributes, 16));
+        indices = new int[capacity];
+        values = new double[capacity];
+        increments = new boolean[capacity];
+        order = new long[capacity];
+    }
+
+    /**
+     * @return number of attributes of the instances built, including the class
+     */
+    public int numAttributes() {
+        return numAttributes;
+    }
+
+    /**
+     * Sets the value of an attribute, replacing any value it was set or incremented to so far
+     * @param index index of the attribute
+     * @param value the value
+     * @return this builder
+     */
+    public SparseInstanceBuilder set(int index, double value) {
+        return append(index, value, false);
+    }
+
+    /**
+     * Adds to the value of an attribute, which starts at 0
+     * @param index index of the attribute
+     * @param value the value to add
+     * @return this builder
+     */
+    public SparseInstanceBuilder add(int index, double value) {
+        return append(index, value, true);
+    }
+
+    private SparseInstanceBuilder append(int index, double value, boolean increment) {
+        if (index < 0 || index >= numAttributes)
+            throw new ArrayIndexOutOfBoundsException(index);
+
+        if (size == indices.length) {
+            indices = Arrays.copyOf(indices, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+            increments = Arrays.copyOf(increments, size * 2);
+        }
+        indices[size] = index;
+        values[size] = value;
+        increments[size] = increment;
+        size++;
+        return this;
+    }
+
+    /**
+     * Builds an instance from the values set so far, and clears the builder for the next one.
+     * The instance is the same as one built from a dense array of all values (see
+     * {@link SparseInstance#SparseInstance(double, double[])}): attributes whose value is 0 are
+     * left out.
+     * @param weight the weight of the instance
+     * @return the instance
+     */
+    public Instance build(double weight) {
+        // Sort values by index, keeping the order in which values of the same index were set
+        if (order.length < size)
+            order = new long[indices.length];
+        for (int i = 0; i < size; i++)
+            order[i] = ((long) indices[i] << 32) | i;
+        Arrays.sort(order, 0, size);
+
+        int[] sparseIndices = new int[size];
+        double[] sparseValues = new double[size];
+        int numValues = 0;
+        for (int i = 0; i < size; ) {
+            int index = indices[(int) order[i]];
+            double value = 0;
+            for (; i < size && indices[(int) order[i]] == index; i++) {
+                int entry = (int) order[i];
+                value = increments[entry] ? value + values[entry] : values[entry];
+            }
+
+            if (value != 0) {
+                sparseIndices[numValues] = index;
+                sparseValues[numValues] = value;
+                numValues++;
+            }
+        }
+        size = 0;
+
+        if (numValues < sparseIndices.length) {
+            sparseIndices = Arrays.copyOf(sparseIndices, numValues);
+            sparseValues = Arrays.copyOf(sparseValues, numValues);
+        }
+        return new SparseInstance(weight, sparseValues, sparseIndices, numAttributes);
+    }
+
+    /**
+     * Discards the values set so far
+     */
+    public void clear() {
+        size = 0;
+    }
+}
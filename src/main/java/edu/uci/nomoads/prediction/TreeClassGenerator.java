@@ -0,0 +1,289 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.prediction;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import weka.core.Utils;
+
+/**
+ * Turns {@link CompiledTree}s into Java classes made of nested {@code if} statements, compiles
+ * them in memory and loads them with a dedicated class loader. Once the JIT compiles such a
+ * class, the tree is evaluated as plain branches, without reading any arrays.
+ * <p>
+ * Generating classes requires a JDK (see {@link ToolProvider#getSystemJavaCompiler()}). Trees
+ * that could not be generated should be evaluated with {@link CompiledTree} instead.
+ * </p>
+ */
+class TreeClassGenerator {
+    /** Trees with more nodes than this are not generated, since a method cannot be bigger than
+     * 64KB of bytecode */
+    static final int MAX_TREE_NODES = 2000;
+
+    /** Trees deeper than this are not generated, since javac recurses into nested statements
+     * and would run out of stack */
+    static final int MAX_TREE_DEPTH = 200;
+
+    /** Number of classes compiled together: compiling a few at a time keeps the cost of starting
+     * the compiler low, while a class that fails to compile only takes its batch down with it */
+    private static final int BATCH_SIZE = 16;
+
+    /** Package of the generated classes */
+    private static final String PACKAGE = "edu.uci.nomoads.prediction.generated";
+
+    /**
+     * Generates, compiles and loads a class for each of the given trees
+     * @param trees the trees to generate classes for, mapped by classifier name
+     * @return evaluators of the generated classes, mapped by classifier name. Trees that were too
+     * big or too deep, or whose classes could not be compiled, are not included.
+     */
+    static Map<String, TreeEvaluator> generate(Map<String, CompiledTree> trees) {
+        Map<String, TreeEvaluator> evaluators = new HashMap<>();
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            System.out.println("WARNING: No Java compiler available, cannot generate tree " +
+                    "classes");
+            return evaluators;
+        }
+
+        Map<String, String> classNames = new HashMap<>();
+        Map<String, ByteArrayOutputStream> classes = new HashMap<>();
+        List<JavaFileObject> batch = new ArrayList<>();
+        for (Map.Entry<String, CompiledTree> entry : trees.entrySet()) {
+            CompiledTree tree = entry.getValue();
+            if (tree.numNodes() > MAX_TREE_NODES || tree.depth() > MAX_TREE_DEPTH) {
+                System.out.println("WARNING: Tree of " + entry.getKey() + " is too big to " +
+                        "generate a class for");
+                continue;
+            }
+
+            String className = "Tree" + classNames.size();
+            classNames.put(entry.getKey(), PACKAGE + "." + className);
+            batch.add(new SourceFile(PACKAGE + "." + className,
+                    generateSource(className, tree)));
+            if (batch.size() == BATCH_SIZE) {
+                compile(compiler, batch, classes);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty())
+            compile(compiler, batch, classes);
+        if (classes.isEmpty())
+            return evaluators;
+
+        GeneratedClassLoader classLoader = new GeneratedClassLoader(classes);
+        for (Map.Entry<String, String> entry : classNames.entrySet()) {
+            if (!classes.containsKey(entry.getValue()))
+                continue;
+
+            try {
+                Class<?> cls = classLoader.loadClass(entry.getValue());
+                evaluators.put(entry.getKey(),
+                        (TreeEvaluator) cls.getDeclaredConstructor().newInstance());
+            } catch (ReflectiveOperationException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return evaluators;
+    }
+
+    /**
+     * Compiles the given sources together
+     * @param compiler the compiler to use
+     * @param sources the sources to compile
+     * @param classes where to put the bytecode of the compiled classes, mapped by class name.
+     *                Nothing is added if the sources could not be compiled.
+     */
+    private static void compile(JavaCompiler compiler, List<JavaFileObject> sources,
+                                Map<String, ByteArrayOutputStream> classes) {
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        List<String> options = new ArrayList<>();
+        options.add("-classpath");
+        options.add(System.getProperty("java.class.path"));
+
+        boolean compiled;
+        ClassFileManager fileManager = null;
+        try (StandardJavaFileManager standardManager =
+                     compiler.getStandardFileManager(diagnostics, null, null)) {
+            fileManager = new ClassFileManager(standardManager);
+            compiled = compiler.getTask(null, fileManager, diagnostics, options, null,
+                    sources).call();
+        } catch (IOException | RuntimeException | StackOverflowError e) {
+            e.printStackTrace();
+            compiled = false;
+        }
+        if (!compiled) {
+            System.out.println("WARNING: Could not compile tree classes:");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics())
+                System.out.println(diagnostic);
+            return;
+        }
+
+        classes.putAll(fileManager.classes);
+    }
+
+    /**
+     * Generates the source code of a class that evaluates the given tree
+     * @param className simple name of the class
+     * @param tree the tree to evaluate
+     * @return source code of the class
+     */
+    static String generateSource(String className, CompiledTree tree) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(PACKAGE).append(";\n\n");
+        sb.append("public final class ").append(className).append(" implements ")
+                .append(TreeEvaluator.class.getName()).append(" {\n");
+        sb.append("    @Override\n");
+        sb.append("    public int classify(double[] v) {\n");
+        generateNode(sb, tree, 0, 2);
+        sb.append("    }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Generates the statements that evaluate the given node and all of its children
+     * @param sb where to write the statements
+     * @param tree the tree the node belongs to
+     * @param node the node to generate
+     * @param depth indentation level of the statements
+     */
+    private static void generateNode(StringBuilder sb, CompiledTree tree, int node, int depth) {
+        if (tree.isLeaf(node)) {
+            indent(sb, depth).append("return ").append(tree.getLabel(node)).append(";\n");
+            return;
+        }
+
+        // Same rules as CompiledTree.classify(): missing values are left to Weka
+        String value = "v[" + tree.getAttribute(node) + "]";
+        indent(sb, depth).append("if (Double.isNaN(").append(value).append(")) return ")
+                .append(TreeEvaluator.UNKNOWN).append(";\n");
+
+        if (tree.isNominal(node)) {
+            indent(sb, depth).append("switch ((int) ").append(value).append(") {\n");
+            for (int i = 0; i < tree.getNumChildren(node); i++) {
+                indent(sb, depth + 1).append("case ").append(i).append(":\n");
+                generateNode(sb, tree, tree.getChild(node, i), depth + 2);
+            }
+            indent(sb, depth + 1).append("default:\n");
+            indent(sb, depth + 2).append("return ").append(TreeEvaluator.UNKNOWN).append(";\n");
+            indent(sb, depth).append("}\n");
+        } else {
+            // Same comparison as Utils.smOrEq()
+            indent(sb, depth).append("if (").append(value).append(" - ")
+                    .append(Double.toString(tree.getSplitPoint(node))).append(" < ")
+                    .append(Double.toString(Utils.SMALL)).append(") {\n");
+            generateNode(sb, tree, tree.getChild(node, 0), depth + 1);
+            indent(sb, depth).append("} else {\n");
+            generateNode(sb, tree, tree.getChild(node, 1), depth + 1);
+            indent(sb, depth).append("}\n");
+        }
+    }
+
+    private static StringBuilder indent(StringBuilder sb, int depth) {
+        for (int i = 0; i < depth; i++)
+            sb.append("    ");
+        return sb;
+    }
+
+    /**
+     * Source code that is kept in memory
+     */
+    private static class SourceFile extends SimpleJavaFileObject {
+        private final String source;
+
+        SourceFile(String className, String source) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension),
+                    Kind.SOURCE);
+            this.source = source;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return source;
+        }
+    }
+
+    /**
+     * Keeps compiled classes in memory instead of writing them to disk
+     */
+    private static class ClassFileManager extends
+            ForwardingJavaFileManager<StandardJavaFileManager> {
+        /** Bytecode of the compiled classes, mapped by class name */
+        final Map<String, ByteArrayOutputStream> classes = new HashMap<>();
+
+        ClassFileManager(StandardJavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                   JavaFileObject.Kind kind, FileObject sibling) {
+            final ByteArrayOutputStream bytecode = new ByteArrayOutputStream();
+            classes.put(className, bytecode);
+            return new SimpleJavaFileObject(URI.create("bytes:///" + className.replace('.', '/')
+                    + kind.extension), kind) {
+                @Override
+                public OutputStream openOutputStream() {
+                    return bytecode;
+                }
+            };
+        }
+    }
+
+    /**
+     * Loads the generated classes. Each call to {@link #generate(Map)} uses a new loader, so the
+     * classes can be garbage collected together with the evaluators once the models are replaced.
+     */
+    private static class GeneratedClassLoader extends ClassLoader {
+        private final Map<String, ByteArrayOutputStream> classes;
+
+        GeneratedClassLoader(Map<String, ByteArrayOutputStream> classes) {
+            super(TreeEvaluator.class.getClassLoader());
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            ByteArrayOutputStream bytecode = classes.get(name);
+            if (bytecode == null)
+                throw new ClassNotFoundException(name);
+
+            byte[] bytes = bytecode.toByteArray();
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
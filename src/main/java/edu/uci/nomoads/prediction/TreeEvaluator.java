@@ -0,0 +1,35 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.prediction;
+
+/**
+ * Evaluates a decision tree directly on attribute values, without going through Weka. Public so
+ * that classes generated by {@link TreeClassGenerator} can implement it.
+ */
+public interface TreeEvaluator {
+    /** Returned by {@link #classify(double[])} when the tree cannot classify the given values */
+    int UNKNOWN = -1;
+
+    /**
+     * Classifies the given attribute values
+     * @param values values of all attributes of the classifier (e.g. feature counts), in the same
+     *               order as in its {@link weka.core.Instances} structure
+     * @return index of the predicted class, or {@link #UNKNOWN} if Weka should be used instead
+     */
+    int classify(double[] values);
+}
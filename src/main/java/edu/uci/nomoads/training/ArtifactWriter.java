@@ -0,0 +1,178 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.training;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes training outputs (models, .arff and .dot files, etc.) on a background thread, so that
+ * training threads do not wait for the disk. At most {@link #queueSize} files wait to be written;
+ * beyond that, training threads write files themselves, which keeps unwritten data from piling up
+ * in memory.
+ * <p>
+ * Each file is written next to its destination and then moved over it, so readers never see a
+ * partially written file. Failures are collected and reported by {@link #close()}.
+ * </p>
+ */
+class ArtifactWriter implements Closeable {
+    /** Writes the contents of a single file */
+    interface Content {
+        /**
+         * @param out the stream to write to, which is buffered and closed by the caller
+         * @throws Exception if the contents could not be written
+         */
+        void writeTo(OutputStream out) throws Exception;
+    }
+
+    /** Maximum number of files waiting to be written */
+    private final int queueSize;
+
+    /** Files that could not be written, along with why */
+    private final List<String> failedFiles = new ArrayList<>();
+    private final List<Exception> failures = new ArrayList<>();
+
+    /** Writes queued files, or {@code null} if none were queued since the last {@link #close()} */
+    private ThreadPoolExecutor executor;
+
+    /**
+     * @param queueSize maximum number of files waiting to be written
+     */
+    ArtifactWriter(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Queues the given file to be written
+     * @param path where to write the file
+     * @param content the contents of the file
+     */
+    void write(final String path, final Content content) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                String tmpPath = path + ".tmp";
+                try {
+                    try (OutputStream out = new BufferedOutputStream(Channels.newOutputStream(
+                            FileChannel.open(Paths.get(tmpPath), StandardOpenOption.CREATE,
+                                    StandardOpenOption.TRUNCATE_EXISTING,
+                                    StandardOpenOption.WRITE)), 1 << 16)) {
+                        content.writeTo(out);
+                    }
+                    ServerUtils.replaceFile(tmpPath, path);
+                } catch (Exception e) {
+                    new File(tmpPath).delete();
+                    failed(path, e);
+                }
+            }
+        };
+        getExecutor().execute(task);
+    }
+
+    /**
+     * Queues the given text to be written to a file
+     * @param path where to write the file
+     * @param text the contents of the file, which are written in UTF-8
+     */
+    void write(String path, final String text) {
+        write(path, new Content() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(text.getBytes(Charset.forName("UTF-8")));
+            }
+        });
+    }
+
+    /**
+     * Records a file that could not be written, to be reported by {@link #close()}
+     * @param path the file
+     * @param e why it could not be written
+     */
+    synchronized void failed(String path, Exception e) {
+        failedFiles.add(path);
+        failures.add(e);
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            // Files are written by the caller while the queue is full
+            executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "ArtifactWriter");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return executor;
+    }
+
+    /**
+     * Waits for all queued files to be written. Files can still be queued afterwards, but not
+     * while this is in progress.
+     * @throws IOException listing all files that could not be written since the last call, with
+     * the reasons attached as suppressed exceptions
+     */
+    @Override
+    public void close() throws IOException {
+        ThreadPoolExecutor executor;
+        synchronized (this) {
+            executor = this.executor;
+            this.executor = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+                    System.out.println("Waiting for training outputs to be written...");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing training outputs", e);
+            }
+        }
+
+        synchronized (this) {
+            if (failures.isEmpty())
+                return;
+
+            IOException report = new IOException("Could not write " + failedFiles.size() +
+                    " training output(s): " + failedFiles);
+            for (Exception failure : failures)
+                report.addSuppressed(failure);
+            failedFiles.clear();
+            failures.clear();
+            throw report;
+        }
+    }
+}
@@ -50,16 +50,37 @@ class Config {
     /** Name of config key specifying the JSON label key in data files */
     private static final String labelConfig = "label";
 
+    /** Whether to keep tokenized training flows on disk for use by later runs (see
+     * {@link TokenCache}). Optional, defaults to false. */
+    private static final String tokenCache = "tokenCache";
+
     /** Configurations that are expected to be found in the config file. */
     private final Set<String> expectedConfigs = new HashSet<>(Arrays.asList(dataRootDir,
             trainerClass, dataSplit, crossValidation, stopwordConfig, labelConfig));
 
+    /** Number of threads to train classifiers on. Optional, defaults to 1. */
+    private static final String trainingThreads = "trainingThreads";
+
+    /** Whether to save the classifiers trained during cross-validation to disk. Optional,
+     * defaults to true. */
+    private static final String saveFoldModels = "saveFoldModels";
+
+    /** Whether to gzip the .arff files of classifiers. Optional, defaults to false. */
+    private static final String compressArff = "compressArff";
+
+    /** Configurations that may be left out of the config file */
+    private final Set<String> optionalConfigs = new HashSet<>(Arrays.asList(tokenCache,
+            trainingThreads, saveFoldModels, compressArff));
+
     /** The {@link Trainer} selected by the {@link #trainerClass} configuration */
     private final Trainer selectedTrainer;
 
     /** Whether or not to do cross validation, or just build a classifier */
     private final boolean crossValEnabled;
 
+    /** Number of threads to train classifiers on */
+    private final int numTrainingThreads;
+
     /** Map for keeping selected configuration values. */
     private final Map<String, String> configs;
 
@@ -84,6 +105,22 @@ class Config {
         // Make sure cross-validation is a boolean
         crossValEnabled = Boolean.parseBoolean(configs.get(crossValidation));
 
+        // Make sure the number of training threads is a positive number
+        int tempThreads = 1;
+        if (configs.containsKey(trainingThreads)) {
+            try {
+                tempThreads = Integer.parseInt(configs.get(trainingThreads));
+            } catch (NumberFormatException e) {
+                tempThreads = 0;
+            }
+            if (tempThreads < 1) {
+                System.err.println("Invalid " + trainingThreads + " parameter: " +
+                        configs.get(trainingThreads) + ". Exiting.");
+                System.exit(-1);
+            }
+        }
+        numTrainingThreads = tempThreads;
+
         // Prepare a trainer object
         String selectedClass = configs.get(trainerClass);
         Trainer tempTrainer = null; // use a temporary variable to make compiler happy
@@ -115,6 +152,22 @@ class Config {
     /** @return whether or not to do cross validation, or just build a classifier */
     boolean isCrossValidationEnabled() { return crossValEnabled; }
 
+    /** @return whether or not to use the {@link #tokenCache} */
+    boolean isTokenCacheEnabled() { return Boolean.parseBoolean(configs.get(tokenCache)); }
+
+    /** @return whether or not to save the classifiers trained during cross-validation (see
+     * {@link #saveFoldModels}) */
+    boolean isSaveFoldModelsEnabled() {
+        return !configs.containsKey(saveFoldModels) ||
+                Boolean.parseBoolean(configs.get(saveFoldModels));
+    }
+
+    /** @return whether or not to gzip .arff files (see {@link #compressArff}) */
+    boolean isArffCompressionEnabled() { return Boolean.parseBoolean(configs.get(compressArff)); }
+
+    /** @return the number of threads to train classifiers on (see {@link #trainingThreads}) */
+    int getTrainingThreads() { return numTrainingThreads; }
+
     /** @return the {@link #stopwordConfig} configuration */
     String getStopwordConfig() { return configs.get(stopwordConfig); }
 
@@ -135,7 +188,8 @@ class Config {
                 String configValue = values[1].trim();
 
                 // Warn user about unsupported configurations
-                if (!expectedConfigs.contains(configName)) {
+                if (!expectedConfigs.contains(configName) &&
+                        !optionalConfigs.contains(configName)) {
                     System.out.println("WARNING: Ignoring unknown configuration " + configName);
                     return;
                 }
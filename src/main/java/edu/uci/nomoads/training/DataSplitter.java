@@ -21,15 +21,27 @@ package edu.uci.nomoads.training;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 
-import java.io.FileReader;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import edu.uci.nomoads.prediction.AdsPredictor;
 import weka.classifiers.Classifier;
@@ -48,14 +60,16 @@ class DataSplitter {
     /** The number of packet-based cross-validation folds to do */
     protected static final int NUM_CROSS_FOLDS = 5;
 
-    private JSONParser parser = new JSONParser();
-    private String currentSplit = "full_set";
     private final ServerUtils mServerUtils;
     private final Config config;
 
     /** Label to use when writing prediction results */
     private final String predictedLabel;
 
+    /** Runs cross-validation folds concurrently, or {@code null} if training on a single thread.
+     * Kept apart from the threads that files are trained on, since those wait for their folds. */
+    private ExecutorService foldExecutor;
+
     /**
      * Prepares class for running experiments
      * @param config configuration for the experiment
@@ -68,23 +82,37 @@ class DataSplitter {
     }
 
     /**
-     * Runs experiment based on the configuration provided in the constructor
+     * Runs experiment based on the configuration provided in the constructor. Files are trained on
+     * {@link Config#getTrainingThreads()} threads, since each of them results in an independent
+     * classifier. Training stops at the first file that fails, and the classifiers trained until
+     * then are saved.
      */
     void runExperiment() {
+        ExecutorService executor = null;
         try {
             String infoFilePath = mServerUtils.getTrainingIndex();
-            Object obj = parser.parse(new FileReader(infoFilePath));
-            JSONObject domain_os_reports = (JSONObject) obj;
+            JSONObject domain_os_reports;
+            try (Reader reader = openJson(infoFilePath)) {
+                domain_os_reports = (JSONObject) new JSONParser().parse(reader);
+            }
             Set<Object> allFilesSet = domain_os_reports.keySet();
 
+            int numThreads = config.getTrainingThreads();
+            if (numThreads > 1) {
+                executor = Executors.newFixedThreadPool(numThreads);
+                if (config.isCrossValidationEnabled())
+                    foldExecutor = Executors.newFixedThreadPool(numThreads);
+            }
+            List<Future<?>> results = new ArrayList<>();
+
             // For each file, split data for stratified cross-validation
             for(Object fileObj : allFilesSet) {
-                String selectedFile = (String) fileObj;
+                final String selectedFile = (String) fileObj;
                 JSONObject info = (JSONObject) domain_os_reports.get(selectedFile);
-                Info inf = ServerUtils.approveFile(info, mServerUtils.getDataSplit());
+                final Info inf = ServerUtils.approveFile(info, mServerUtils.getDataSplit());
                 if (inf == null) {
                     System.out.println("WARNING! Null info for " + selectedFile + ". Stopping.");
-                    return;
+                    break;
                 }
 
                 if (inf.initNumPos < 10 || inf.initNumNeg < 10) {
@@ -92,36 +120,112 @@ class DataSplitter {
                     continue;
                 }
 
-                JSONObject trFlows = (JSONObject) parser.parse(new FileReader(
-                        mServerUtils.getTrainingDir() + selectedFile));
-                if (config.isCrossValidationEnabled())
-                    runCrossValidation(selectedFile, trFlows, inf);
-                else
-                    buildOnly(selectedFile, trFlows, inf);
+                if (executor == null) {
+                    trainFile(selectedFile, inf);
+                    continue;
+                }
+
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        trainFile(selectedFile, inf);
+                        return null;
+                    }
+                }));
             }
 
+            // Wait for all files to finish, in the order they were submitted. Like training on a
+            // single thread, stop at the first file that fails.
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception)
+                        throw (Exception) e.getCause();
+                    throw e;
+                }
+            }
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            // Files and folds that are still running must stop before their results are saved
+            if (executor != null)
+                stop(executor);
+            if (foldExecutor != null) {
+                stop(foldExecutor);
+                foldExecutor = null;
+            }
+
+            // Save whatever was trained, even if training stopped early
+            try {
+                trainer.finishTraining();
+            } catch (IOException e) {
+                System.err.println(e.getMessage() + ". Exiting.");
+                for (Throwable failure : e.getSuppressed())
+                    System.err.println("\t" + failure);
+                System.exit(-1);
+            }
         }
     }
 
     /**
-     * Performs stratified cross-validation on the provided training data
+     * Interrupts the tasks of the given executor and waits for them to stop
+     * @param executor the executor to stop
+     */
+    private static void stop(ExecutorService executor) {
+        executor.shutdownNow();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+                System.out.println("Waiting for training to stop...");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Trains (and cross-validates, if enabled) the classifier of a single file
+     * @param selectedFile name of the training data file
+     * @param inf information about the training data
+     * @throws Exception
+     */
+    private void trainFile(String selectedFile, Info inf) throws Exception {
+        String trainingFile = mServerUtils.getTrainingDir() + selectedFile;
+        TokenCache tokenCache = null;
+        if (config.isTokenCacheEnabled())
+            tokenCache = TokenCache.open(trainingFile, trainer, mServerUtils.getTokenCacheDir());
+
+        if (config.isCrossValidationEnabled()) {
+            // Folds pick flows by id, so all of them are needed at once
+            JSONObject trFlows;
+            try (Reader reader = openJson(trainingFile)) {
+                trFlows = (JSONObject) new JSONParser().parse(reader);
+            }
+            runCrossValidation(selectedFile, trFlows, inf, tokenCache);
+        } else {
+            buildOnly(selectedFile, new FlowStream(trainingFile), inf, tokenCache);
+        }
+    }
+
+    /**
+     * Performs stratified cross-validation on the provided training data. Folds run concurrently
+     * on {@link #foldExecutor} if there is one, and their results are merged in fold order.
      * @param selectedFile name of the file to which the training data belongs to
      * @param trFlows training data to split
      * @param trInfo information about the training data
+     * @param tokenCache the training data, already tokenized, or {@code null}
      * @throws Exception
      */
-    private void runCrossValidation(String selectedFile, JSONObject trFlows, Info trInfo) throws
-            Exception {
+    private void runCrossValidation(String selectedFile, final JSONObject trFlows, Info trInfo,
+                                    final TokenCache tokenCache) throws Exception {
         ArrayList<Set<String>> bins = splitData(trInfo, trFlows);
 
         // Go through all bins, selecting each one to be in the test set once
-        JSONObject wekaResults = new JSONObject();
-        JSONObject testResults = new JSONObject();
+        final JSONObject[] foldWekaResults = new JSONObject[NUM_CROSS_FOLDS];
+        final JSONObject[] foldTestResults = new JSONObject[NUM_CROSS_FOLDS];
+        List<Future<?>> folds = new ArrayList<>(NUM_CROSS_FOLDS);
         for (int i = 0; i < NUM_CROSS_FOLDS; i++) {
-            Set<String> testSet = bins.get(i);
-            Set<String> trainSet = new HashSet<>();
+            final Set<String> testSet = bins.get(i);
+            final Set<String> trainSet = new HashSet<>();
             for (int j = 0; j < NUM_CROSS_FOLDS; j++) {
                 if (j == i)
                     continue; // Don't add the test set
@@ -129,10 +233,39 @@ class DataSplitter {
                 trainSet.addAll(bins.get(j));
             }
 
-            currentSplit = selectedFile.split("\\.json")[0] + "_s" + i;
-            runSplit(trFlows, testSet, trainSet, wekaResults, testResults);
+            final String split = selectedFile.split("\\.json")[0] + "_s" + i;
+            foldWekaResults[i] = new JSONObject();
+            foldTestResults[i] = new JSONObject();
+            if (foldExecutor == null) {
+                runSplit(split, trFlows, tokenCache, testSet, trainSet, foldWekaResults[i],
+                        foldTestResults[i]);
+                continue;
+            }
+
+            final int fold = i;
+            folds.add(foldExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    runSplit(split, trFlows, tokenCache, testSet, trainSet,
+                            foldWekaResults[fold], foldTestResults[fold]);
+                    return null;
+                }
+            }));
+        }
+
+        for (Future<?> fold : folds) {
+            try {
+                fold.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception)
+                    throw (Exception) e.getCause();
+                throw e;
+            }
         }
 
+        JSONObject wekaResults = merge(foldWekaResults);
+        JSONObject testResults = merge(foldTestResults);
+
         // Save results
         DateFormat dateFormat = new SimpleDateFormat("yyyy_MM_dd_HH_mm_ss");
         String resultsFilePath = mServerUtils.getLogDir() + dateFormat.format(new Date()) +
@@ -143,9 +276,34 @@ class DataSplitter {
         ServerUtils.overwriteFile(resultsFilePath, testResults.toJSONString());
     }
 
-    private void buildOnly(String selectedFile, JSONObject trainingData, Info trainingInfo) {
+    /**
+     * Merges the results of all folds, in fold order
+     * @param foldResults results of each fold
+     * @return the merged results
+     */
+    @SuppressWarnings("unchecked")
+    private static JSONObject merge(JSONObject[] foldResults) {
+        JSONObject merged = new JSONObject();
+        for (JSONObject foldResult : foldResults)
+            merged.putAll(foldResult);
+        return merged;
+    }
+
+    /**
+     * @param path path to a JSON file
+     * @return buffered UTF-8 reader of the file
+     * @throws IOException if the file could not be opened
+     */
+    private static Reader openJson(String path) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(path),
+                Charset.forName("UTF-8")));
+    }
+
+    private void buildOnly(String selectedFile, Iterable<JSONObject> trainingData,
+                           Info trainingInfo, TokenCache tokenCache) {
         MetaEvaluationMeasures mem = new MetaEvaluationMeasures(trainingInfo);
-        trainer.trainOneDomain(trainingData, mem);
+        trainer.trainOneDomain(trainingData, tokenCache,
+                tokenCache != null ? tokenCache.getAllRows() : null, mem);
 
         // Save results
         DateFormat dateFormat = new SimpleDateFormat("yyyy_MM_dd_HH_mm_ss");
@@ -163,7 +321,6 @@ class DataSplitter {
     public ArrayList<Set<String>> splitData(Info inf, JSONObject trFlows) {
         Info trainingInfo = new Info();
         trainingInfo.domainOS = inf.domain;
-        currentSplit = inf.domain;
         trainingInfo.initNumPos = inf.initNumPos;
         trainingInfo.initNumNeg = inf.initNumNeg;
         trainingInfo.initNumTotal = inf.initNumTotal;
@@ -240,7 +397,9 @@ class DataSplitter {
 
     /**
      * Performs training and evaluation on the provided data
+     * @param currentSplit name of the classifier to train
      * @param trFlows full dataset
+     * @param tokenCache the full dataset, already tokenized, or {@code null}
      * @param testSet list of IDs in the dataset that are to be the test data set
      * @param trainSet list of IDs in the dataset that are to be the training data set
      * @param wekaResults JSON object to which to write ML stats computed by Weka
@@ -248,8 +407,9 @@ class DataSplitter {
      * value for each data point
      * @throws Exception
      */
-    private void runSplit(JSONObject trFlows, Set<String> testSet, Set<String> trainSet,
-                          JSONObject wekaResults, JSONObject testData) throws Exception {
+    private void runSplit(String currentSplit, JSONObject trFlows, TokenCache tokenCache,
+                          Set<String> testSet, Set<String> trainSet, JSONObject wekaResults,
+                          JSONObject testData) throws Exception {
         Info trainingInfo = new Info();
         trainingInfo.domainOS = currentSplit;
         System.out.println("\tTraining data points " + trainSet.size());
@@ -267,11 +427,17 @@ class DataSplitter {
         }
 
         MetaEvaluationMeasures mem = new MetaEvaluationMeasures(trainingInfo);
-        Instances trInstances = trainer.trainOneDomain(merged, mem);
+        TrainingData trained = trainer.trainForEvaluation(FlowStream.of(merged), tokenCache,
+                tokenCache != null ? tokenCache.getRows(merged.keySet()) : null,
+                config.isSaveFoldModelsEnabled(), mem);
+        Instances trInstances = trained.trainingInstances;
 
         // As a sanity check, do a prediction on the training set to compare to cross-evaluation
-        // results above and make sure our DPI-based technique works correctly
-        AdsPredictor adsPredictor = new AdsPredictor(mServerUtils);
+        // results above and make sure our DPI-based technique works correctly. The predictor
+        // holds just the classifier that was trained, rather than all models on disk.
+        AdsPredictor adsPredictor = trained.predictor;
+        if (adsPredictor == null)
+            throw new IllegalStateException("No tree was trained for " + currentSplit);
         Classifier classifier = (Classifier) adsPredictor.getClassifierModel(currentSplit);
         mem.doEvaluation(classifier, trInstances, 0);
         wekaResults.put("training-" + currentSplit, mem.getJSONobj());
@@ -298,10 +464,11 @@ class DataSplitter {
             instance = testingInstances.get(testingInstances.size() - 1);
 
             double predicted = classifier.classifyInstance(instance);
-            // Add prediction to packet
-            packet.put(predictedLabel, (int) predicted);
-            packet.put("bin", currentSplit);
-            testData.put(selectedID, packet);
+            // Add prediction to a copy of the packet, since other folds may be training on it
+            JSONObject result = new JSONObject(packet);
+            result.put(predictedLabel, (int) predicted);
+            result.put("bin", currentSplit);
+            testData.put(selectedID, result);
         }
 
         MetaEvaluationMeasures teMem = new MetaEvaluationMeasures(testingInfo);
@@ -25,20 +25,23 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import edu.uci.nomoads.Util;
 import edu.uci.nomoads.prediction.AdsPredictor;
+import edu.uci.nomoads.prediction.SparseInstanceBuilder;
 import weka.core.Attribute;
 import weka.core.Instance;
 import weka.core.Instances;
-import weka.core.SparseInstance;
 
 /**
  * Trains based on destination domain (TLD + 1)
  */
 class DomainAdsTrainer extends Trainer {
 
-    private ArrayList<String> domainsList;
+    /** Values of the domain attribute of each classifier. Kept per classifier since classifiers
+     * may be trained concurrently (e.g. cross-validation folds). */
+    private final Map<String, NominalValues> domainsLists = new ConcurrentHashMap<>();
 
     private static final String UNKNOWN_DOMAIN = "unknown_domain";
 
@@ -64,55 +67,53 @@ class DomainAdsTrainer extends Trainer {
 
         // Get all possible domains first
         HashSet<String> domains = new HashSet<>(225);
-        for (Object k : trainingData.trFlows.keySet()) {
-            JSONObject packet = (JSONObject) trainingData.trFlows.get(k);
+        for (JSONObject packet : trainingData.flows) {
             String domain = getAttrFromPacket(packet);
             if (domain != null)
                 domains.add(domain);
         }
 
         // Convert to list
-        domainsList = new ArrayList<>(domains);
+        ArrayList<String> domainsValues = new ArrayList<>(domains);
 
         // Add an unknown domain for cases where the training set does not contain all the domains
         // of the testing set:
-        domainsList.add(UNKNOWN_DOMAIN);
+        domainsValues.add(UNKNOWN_DOMAIN);
+        NominalValues domainsList = new NominalValues(domainsValues);
 
         // Populate Features
         ArrayList<Attribute> attributes = new ArrayList<Attribute>();
-        attributes.add(new Attribute(jsonAttrKey, domainsList));
+        attributes.add(domainsList.toAttribute(jsonAttrKey));
 
         addClassLabels(attributes);
+        domainsLists.put(trainingData.mem.info.domainOS, domainsList);
 
         Instances trainingInstances = new Instances("Rel", attributes, 0);
         trainingInstances.setClassIndex(trainingInstances.numAttributes() - 1);
-        for (Object k : trainingData.trFlows.keySet()) {
-            JSONObject packet = (JSONObject) trainingData.trFlows.get(k);
-            trainingInstances.add(convertObjectToInstance(packet, attributes.size()));
+        SparseInstanceBuilder instanceValue = new SparseInstanceBuilder(attributes.size());
+        for (JSONObject packet : trainingData.flows) {
+            trainingInstances.add(convertObjectToInstance(packet, domainsList, instanceValue));
         }
 
-        saveArff(trainingData.mem.info.domainOS, trainingInstances);
         trainingData.trainingInstances = trainingInstances;
 
         return trainingInstances;
     }
 
-    private Instance convertObjectToInstance(JSONObject packet, int attrSize) {
-        double[] instanceValue = new double[attrSize];
+    private Instance convertObjectToInstance(JSONObject packet, NominalValues domainsList,
+                                             SparseInstanceBuilder instanceValue) {
         String domain = getAttrFromPacket(packet);
 
         // First feature is the domain - check if it appeared in the training set
-        int domainIdx = domainsList.indexOf(domain);
-        if (domainIdx == -1)
-            domainIdx = domainsList.indexOf(UNKNOWN_DOMAIN);
+        int domainIdx = domainsList.indexOf(domain, UNKNOWN_DOMAIN);
 
-        instanceValue[0] = domainIdx;
+        instanceValue.set(0, domainIdx);
 
         // Last attribute is the label
         int adLabel = ServerUtils.getIntFromJSONObject(packet, jsonKeyLabel);
-        instanceValue[1] = adLabel;
+        instanceValue.set(1, adLabel);
 
-        return new SparseInstance(1.0, instanceValue);
+        return instanceValue.build(1.0);
     }
 
     protected Instance convertObjectToInstance(JSONObject packet, AdsPredictor predictor, String
@@ -120,7 +121,8 @@ class DomainAdsTrainer extends Trainer {
         //System.out.println("convertObjectToInstance: " + getClass().getSimpleName());
 
         Map<String, Integer> fi = predictor.getClassifierFeatures(domainOS);
-        return convertObjectToInstance(packet, fi.size());
+        return convertObjectToInstance(packet, domainsLists.get(domainOS),
+                new SparseInstanceBuilder(fi.size()));
     }
 
     /**
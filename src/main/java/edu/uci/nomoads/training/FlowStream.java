@@ -0,0 +1,251 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.training;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+/**
+ * The flows of a training data file (a JSON object mapping flow ids to flows), read one at a
+ * time so that the whole file is never held in memory. Each iteration reads the file again, in
+ * the order in which the flows appear in it.
+ */
+class FlowStream implements Iterable<JSONObject> {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final String path;
+
+    /**
+     * @param path path to the training data file
+     */
+    FlowStream(String path) {
+        this.path = path;
+    }
+
+    /**
+     * @param trFlows training data that was already read, mapping flow ids to flows
+     * @return the flows of the given data, in the order of its keys
+     */
+    @SuppressWarnings("unchecked")
+    static Iterable<JSONObject> of(JSONObject trFlows) {
+        return (Collection<JSONObject>) trFlows.values();
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws IllegalStateException if the file could not be read or parsed, while iterating
+     */
+    @Override
+    public Iterator<JSONObject> iterator() {
+        final Reader reader;
+        try {
+            reader = open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open " + path, e);
+        }
+
+        return new Iterator<JSONObject>() {
+            private final FlowReader flowReader = new FlowReader(reader);
+            private JSONObject next = advance();
+
+            private JSONObject advance() {
+                try {
+                    JSONObject flow = flowReader.next();
+                    if (flow == null)
+                        flowReader.close();
+                    return flow;
+                } catch (Exception e) {
+                    try {
+                        flowReader.close();
+                    } catch (IOException ignored) {
+                    }
+                    throw new IllegalStateException("Could not read " + path, e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public JSONObject next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                JSONObject flow = next;
+                next = advance();
+                return flow;
+            }
+        };
+    }
+
+    private Reader open() throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(path),
+                Charset.forName("UTF-8")), BUFFER_SIZE);
+    }
+
+    /**
+     * Pulls flows out of a JSON object one at a time, pausing the parser after each top-level
+     * entry. Only the flow being read is kept in memory.
+     */
+    static class FlowReader implements ContentHandler, Closeable {
+        private final Reader reader;
+        private final JSONParser parser = new JSONParser();
+
+        /** Objects and arrays of the current flow that are being built, innermost first */
+        private final LinkedList<Object> containers = new LinkedList<>();
+
+        /** Keys of the entries being read, innermost first */
+        private final LinkedList<String> keys = new LinkedList<>();
+
+        /** Number of objects and arrays the parser is in, 1 being the top-level object */
+        private int depth = 0;
+
+        private String id;
+        private Object flow;
+        private boolean started = false;
+        private boolean finished = false;
+
+        FlowReader(Reader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * @return the next flow, or {@code null} if there are no more flows
+         * @throws IOException if the flows could not be read
+         * @throws ParseException if the file is not a JSON object of JSON objects
+         */
+        JSONObject next() throws IOException, ParseException {
+            if (finished)
+                return null;
+
+            flow = null;
+            parser.parse(reader, this, started);
+            started = true;
+            if (flow == null) {
+                finished = true;
+                return null;
+            }
+            if (!(flow instanceof JSONObject))
+                throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN, flow);
+            return (JSONObject) flow;
+        }
+
+        /** @return the id of the flow last returned by {@link #next()} */
+        String getId() {
+            return id;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void addValue(Object value) {
+            if (containers.isEmpty()) {
+                flow = value;
+                return;
+            }
+
+            Object container = containers.peek();
+            if (container instanceof JSONObject)
+                ((JSONObject) container).put(keys.peek(), value);
+            else
+                ((JSONArray) container).add(value);
+        }
+
+        @Override
+        public void startJSON() {
+        }
+
+        @Override
+        public void endJSON() {
+        }
+
+        @Override
+        public boolean startObject() {
+            depth++;
+            if (depth > 1)
+                containers.push(new JSONObject());
+            return true;
+        }
+
+        @Override
+        public boolean endObject() {
+            depth--;
+            if (depth > 0)
+                addValue(containers.pop());
+            return true;
+        }
+
+        @Override
+        public boolean startObjectEntry(String key) {
+            if (depth == 1)
+                id = key;
+            keys.push(key);
+            return true;
+        }
+
+        @Override
+        public boolean endObjectEntry() {
+            keys.pop();
+            // Pause after each flow
+            return depth != 1;
+        }
+
+        @Override
+        public boolean startArray() throws ParseException {
+            if (depth == 0)
+                throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN, "[");
+            depth++;
+            containers.push(new JSONArray());
+            return true;
+        }
+
+        @Override
+        public boolean endArray() {
+            depth--;
+            addValue(containers.pop());
+            return true;
+        }
+
+        @Override
+        public boolean primitive(Object value) throws ParseException {
+            if (depth == 0)
+                throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN, value);
+            addValue(value);
+            return true;
+        }
+    }
+}
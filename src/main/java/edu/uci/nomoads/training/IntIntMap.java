@@ -0,0 +1,99 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.training;
+
+import java.util.Arrays;
+
+/**
+ * Map from non-negative ints to ints, using open addressing to avoid boxing every key and value
+ * (see {@link WordMatrix})
+ */
+class IntIntMap {
+    /** Returned by {@link #get(int)} for keys that are not in the map */
+    static final int NOT_FOUND = -1;
+
+    /** Marks an unused slot of {@link #keys} */
+    private static final int EMPTY = -1;
+
+    private int[] keys = newKeys(16);
+    private int[] values = new int[16];
+    private int size = 0;
+
+    /**
+     * @param key the key to look up
+     * @return the value of the key, or {@link #NOT_FOUND}
+     */
+    int get(int key) {
+        int slot = slotOf(keys, key);
+        return keys[slot] == EMPTY ? NOT_FOUND : values[slot];
+    }
+
+    /**
+     * Adds the key with the given value, unless it is in the map already
+     * @param key the key, which must not be negative
+     * @param value the value to add the key with
+     * @return the value of the key, which is {@code value} if the key was added
+     */
+    int putIfAbsent(int key, int value) {
+        int slot = slotOf(keys, key);
+        if (keys[slot] != EMPTY)
+            return values[slot];
+
+        keys[slot] = key;
+        values[slot] = value;
+        // Keep the map at most half full, so that probe sequences stay short
+        if (++size * 2 > keys.length)
+            grow();
+        return value;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = newKeys(oldKeys.length * 2);
+        values = new int[keys.length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY)
+                continue;
+            int slot = slotOf(keys, oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    /** @return the slot that holds the key, or the empty slot where it would be added */
+    private static int slotOf(int[] keys, int key) {
+        int mask = keys.length - 1;
+        // Spread consecutive keys across the table
+        int hash = key * 0x9E3779B9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private static int[] newKeys(int capacity) {
+        int[] keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        return keys;
+    }
+}
@@ -27,10 +27,10 @@ import java.util.Map;
 
 import edu.uci.nomoads.Util;
 import edu.uci.nomoads.prediction.AdsPredictor;
+import edu.uci.nomoads.prediction.SparseInstanceBuilder;
 import weka.core.Attribute;
 import weka.core.Instance;
 import weka.core.Instances;
-import weka.core.SparseInstance;
 
 /**
  * Trains based on destination IP and port numbers
@@ -57,21 +57,19 @@ class NetworkLayerTrainer extends Trainer {
 
         Instances trainingInstances = new Instances("Rel", attributes, 0);
         trainingInstances.setClassIndex(trainingInstances.numAttributes() - 1);
-        for (Object k : trainingData.trFlows.keySet()) {
-            JSONObject packet = (JSONObject) trainingData.trFlows.get(k);
-
-            Instance data = convertObjectToInstance(packet, attributes.size());
+        SparseInstanceBuilder instanceValue = new SparseInstanceBuilder(attributes.size());
+        for (JSONObject packet : trainingData.flows) {
+            Instance data = convertObjectToInstance(packet, instanceValue);
             trainingInstances.add(data);
         }
 
-        saveArff(trainingData.mem.info.domainOS, trainingInstances);
         trainingData.trainingInstances = trainingInstances;
 
         return trainingInstances;
     }
 
-    private Instance convertObjectToInstance(JSONObject packet, int attrSize) {
-        double[] instanceValue = new double[attrSize];
+    private Instance convertObjectToInstance(JSONObject packet,
+                                             SparseInstanceBuilder instanceValue) {
         int port = ServerUtils.getIntFromJSONObject(packet, JsonKeyDef.DST_PORT);
         String ip = ServerUtils.getStringFromJSONObject(packet, JsonKeyDef.DST_IP);
 
@@ -82,14 +80,14 @@ class NetworkLayerTrainer extends Trainer {
                 (Integer.parseInt(ipArray[2]) << 8 & 0x0000FF00) |
                 (Integer.parseInt(ipArray[3]) & 0x000000FF));
 
-        instanceValue[0] = port;
-        instanceValue[1] = ipInt;
+        instanceValue.set(0, port);
+        instanceValue.set(1, ipInt);
 
         // Last attribute is the label
         int adLabel = ServerUtils.getIntFromJSONObject(packet, jsonKeyLabel);
-        instanceValue[2] = adLabel;
+        instanceValue.set(2, adLabel);
 
-        return new SparseInstance(1.0, instanceValue);
+        return instanceValue.build(1.0);
     }
 
     protected Instance convertObjectToInstance(JSONObject packet, AdsPredictor predictor, String
@@ -97,7 +95,7 @@ class NetworkLayerTrainer extends Trainer {
         //System.out.println("convertObjectToInstance: " + getClass().getSimpleName());
 
         Map<String, Integer> fi = predictor.getClassifierFeatures(domainOS);
-        return convertObjectToInstance(packet, fi.size());
+        return convertObjectToInstance(packet, new SparseInstanceBuilder(fi.size()));
     }
 
     /**
@@ -0,0 +1,86 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.training;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import weka.core.Attribute;
+
+/**
+ * Values of a nominal attribute (e.g. the package name or domain of a flow), along with the
+ * index of each value, so that the value of a data point is looked up in constant time instead
+ * of being searched for in the list of all values. Immutable, so it can be shared by threads
+ * that convert flows of the same classifier.
+ */
+final class NominalValues {
+    /** Returned by {@link #indexOf(Object)} for values that are not among the attribute's */
+    static final int NOT_FOUND = -1;
+
+    /** The values, in the order of the attribute (see {@link #toAttribute(String)}) */
+    final List<String> values;
+
+    private final Map<String, Integer> indexes;
+
+    /**
+     * @param values the values of the attribute, in order
+     */
+    NominalValues(Collection<String> values) {
+        this.values = Collections.unmodifiableList(new ArrayList<>(values));
+
+        indexes = new HashMap<>(this.values.size() * 2);
+        for (int i = 0; i < this.values.size(); i++) {
+            // Keep the first index of a value, like List.indexOf
+            String value = this.values.get(i);
+            if (!indexes.containsKey(value))
+                indexes.put(value, i);
+        }
+    }
+
+    /**
+     * @param value the value to look up
+     * @return the index of the value, or {@link #NOT_FOUND}
+     */
+    int indexOf(Object value) {
+        Integer index = indexes.get(value);
+        return index == null ? NOT_FOUND : index;
+    }
+
+    /**
+     * @param value the value to look up
+     * @param fallback the value to use instead if {@code value} is not among the attribute's,
+     *                 e.g. one standing for all unknown values
+     * @return the index of the value, the index of the fallback, or {@link #NOT_FOUND}
+     */
+    int indexOf(Object value, String fallback) {
+        int index = indexOf(value);
+        return index != NOT_FOUND ? index : indexOf(fallback);
+    }
+
+    /**
+     * @param name name of the attribute
+     * @return a nominal attribute with these values
+     */
+    Attribute toAttribute(String name) {
+        return new Attribute(name, values);
+    }
+}
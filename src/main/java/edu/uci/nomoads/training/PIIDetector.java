@@ -0,0 +1,273 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.training;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Recognizes PII in tokens by their format. All patterns are compiled once, and a token is
+ * classified by the kinds of characters it contains before any of them are tried, so most
+ * types are ruled out without running a regular expression. Holds no mutable state, so it can
+ * be used from any number of threads.
+ */
+final class PIIDetector {
+    /** Types of PII that can be recognized by their format alone */
+    enum PIIType {
+        EMAIL {
+            @Override
+            boolean matches(String token, int classes) {
+                return has(classes, AT | DOT) && EMAIL_PATTERN.matcher(token).matches();
+            }
+        },
+        MAC_ADDRESS {
+            @Override
+            boolean matches(String token, int classes) {
+                if (has(classes, COLON) && token.contains("02:00:00:00:00:00"))
+                    return true;
+
+                int len = token.trim().length();
+                if (len == 17)
+                    return (classes & (COLON | DASH)) != 0 && MAC_PATTERN.matcher(token).find();
+                return len == 12;
+            }
+        },
+        IMEI {
+            @Override
+            boolean matches(String token, int classes) {
+                // 15 or 17 digit sequence of numbers
+                return (token.length() == 15 || token.length() == 17) && classes == DIGIT;
+            }
+        },
+        ICCID {
+            @Override
+            boolean matches(String token, int classes) {
+                return token.length() == 19 || token.length() == 20;
+            }
+        },
+        IDFA {
+            @Override
+            boolean matches(String token, int classes) {
+                // ifa:
+                // idfa:
+                int len = token.length();
+                return len == 36 || len == 40 || len == 41;
+            }
+        },
+        IMSI {
+            @Override
+            boolean matches(String token, int classes) {
+                return token.length() == 15 && classes == DIGIT;
+            }
+        },
+        ZIP_CODE {
+            @Override
+            boolean matches(String token, int classes) {
+                return (token.length() == 5 || token.length() == 10) && has(classes, DIGIT)
+                        && ZIP_CODE_PATTERN.matcher(token).matches();
+            }
+        },
+        CREDIT_CARD {
+            @Override
+            boolean matches(String token, int classes) {
+                return token.length() >= 12 && token.length() <= 16 && classes == DIGIT
+                        && CREDIT_CARD_PATTERN.matcher(token).matches();
+            }
+        },
+        ANDROID_ID {
+            @Override
+            boolean matches(String token, int classes) {
+                // ref:
+                // http://support.mobileapptracking.com/entries/22541461-Unique-Identifiers-for-Attribution
+                // 16 - android id, 40 - ios_ifa
+                // TODO: separate ios and android
+                return (token.length() == 16 || token.length() == 40) && !has(classes, COLON);
+            }
+        },
+        PHONE_NUMBER {
+            @Override
+            boolean matches(String token, int classes) {
+                // TODO: only support US numbers for now
+                // 5556667777
+                // (555)666-7777
+                return (token.length() == 10 || token.length() == 13)
+                        && (classes & ~(DIGIT | DASH)) == 0;
+            }
+        },
+        IP {
+            @Override
+            boolean matches(String token, int classes) {
+                int len = token.length();
+                if (len >= 7 && len <= 15 && classes == (DIGIT | DOT))
+                    return IPV4_PATTERN.matcher(token).matches();
+                if (len >= 15 && len <= 39 && has(classes, COLON)
+                        && (classes & ~(DIGIT | ALPHA | COLON)) == 0)
+                    return IPV6_PATTERN.matcher(token).matches();
+                return false;
+            }
+        },
+        GENDER {
+            @Override
+            boolean matches(String token, int classes) {
+                // TODO: decline to answer, not known
+                // http://www.sarahdopp.com/blog/2010/designing-a-better-drop-down-menu-for-gender/
+                return token.length() <= MAX_GENDER_LENGTH
+                        && GENDER_DESCRIPTIONS.contains(token.toLowerCase());
+            }
+        },
+        TIME {
+            @Override
+            boolean matches(String token, int classes) {
+                return token.length() >= 7 && token.length() <= 11 && has(classes, DIGIT)
+                        && TIME_PATTERN.matcher(token).matches();
+            }
+        };
+
+        /**
+         * @param token the token to check
+         * @param classes kinds of characters in the token (see {@link #classify(String)})
+         * @return {@code true} if the token has the format of this type of PII
+         */
+        abstract boolean matches(String token, int classes);
+
+        /**
+         * @param token the token to check
+         * @return {@code true} if the token has the format of this type of PII
+         */
+        boolean matches(String token) {
+            return matches(token, classify(token));
+        }
+    }
+
+    /* Kinds of characters a token can contain, see classify(String) */
+    static final int DIGIT = 1;
+    static final int ALPHA = 1 << 1;
+    static final int AT = 1 << 2;
+    static final int DOT = 1 << 3;
+    static final int COLON = 1 << 4;
+    static final int DASH = 1 << 5;
+    static final int OTHER = 1 << 6;
+
+    private static final PIIType[] TYPES = PIIType.values();
+
+    private static final Pattern EMAIL_PATTERN = Pattern.compile(
+            "^[_A-Za-z0-9-\\+]+((\\.|_)[_A-Za-z0-9-]+)*@"
+            + "[A-Za-z0-9-]+(\\.[A-Za-z0-9]+)*(\\.[A-Za-z]{2,})$");
+
+    private static final Pattern MAC_PATTERN = Pattern.compile(
+            "(?:[A-Fa-f0-9]{2}[:-]){5}(?:[A-Fa-f0-9]{2})");
+
+    private static final Pattern ZIP_CODE_PATTERN = Pattern.compile("\\d{5}(-\\d{4})?");
+
+    // TODO: test different credit card number: visa, master, discover etc.
+    private static final Pattern CREDIT_CARD_PATTERN = Pattern.compile(
+            "(?:(?<visa>\\b4[0-9]{12}(?:[0-9]{3})?\\b)|"
+            + "(?<mastercard>\\b5[1-5][0-9]{14}\\b)|"
+            + "(?<discover>\\b6(?:011|5[0-9]{2})[0-9]{12}\\b)|"
+            + "(?<amex>\\b3[47][0-9]{13}\\b)|"
+            + "(?<diners>\\b3(?:0[0-5]|[68][0-9])?[0-9]{11}\\b)|"
+            + "(?<jcb>\\b(?:2131|1800|35[0-9]{3})[0-9]{11}\\b))");
+
+    private static final Pattern IPV4_PATTERN = Pattern.compile(
+            "(([01]?\\d\\d?|2[0-4]\\d|25[0-5])\\.){3}([01]?\\d\\d?|2[0-4]\\d|25[0-5])");
+
+    // TODO: invalid regex for ipv6
+    private static final Pattern IPV6_PATTERN = Pattern.compile(
+            "([0-9a-f]{1,4}:){7}([0-9a-f]){1,4}", Pattern.CASE_INSENSITIVE);
+
+    /** 15:58:41, 15/09/2013, 2013-09-15 or 15-Sep-2013 */
+    private static final Pattern TIME_PATTERN = Pattern.compile(
+            "([01]?[0-9]|2[0-3]):[0-5][0-9]:[0-5][0-9]" // 24-hour format
+            + "|(0?[1-9]|[12][0-9]|3[01])/(0?[1-9]|1[012])/((19|20)\\d\\d)"
+            + "|\\d{4}-\\d{2}-\\d{2}"
+            + "|\\d{2}-(Jan|Feb|Mar|Apr|May|Jun|Jul|Aug|Sep|Oct|Nov|Dec)-\\d{4}");
+
+    private static final Set<String> GENDER_DESCRIPTIONS = new HashSet<>(Arrays.asList(
+            "f", "m", "female", "male", "girl", "boy", "other", "not known", "not applicable"));
+
+    private static final int MAX_GENDER_LENGTH = "not applicable".length();
+
+    private PIIDetector() {
+    }
+
+    /**
+     * Tests a token against all types of PII
+     * @param token the token to check
+     * @return types of PII the token has the format of, empty if none
+     */
+    static EnumSet<PIIType> detect(String token) {
+        EnumSet<PIIType> found = EnumSet.noneOf(PIIType.class);
+        int classes = classify(token);
+        for (PIIType type : TYPES) {
+            if (type.matches(token, classes))
+                found.add(type);
+        }
+        return found;
+    }
+
+    /**
+     * @param token the token to check
+     * @return {@code true} if the token has the format of any type of PII
+     */
+    static boolean containsPII(String token) {
+        int classes = classify(token);
+        for (PIIType type : TYPES) {
+            if (type.matches(token, classes))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Finds the kinds of characters a token is made of, in a single pass
+     * @param token the token to classify
+     * @return a combination of {@link #DIGIT}, {@link #ALPHA}, {@link #AT}, {@link #DOT},
+     * {@link #COLON}, {@link #DASH} and {@link #OTHER}
+     */
+    static int classify(String token) {
+        int classes = 0;
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (c >= '0' && c <= '9')
+                classes |= DIGIT;
+            else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'))
+                classes |= ALPHA;
+            else if (c == '@')
+                classes |= AT;
+            else if (c == '.')
+                classes |= DOT;
+            else if (c == ':')
+                classes |= COLON;
+            else if (c == '-')
+                classes |= DASH;
+            else
+                classes |= OTHER;
+        }
+        return classes;
+    }
+
+    /**
+     * @return {@code true} if {@code classes} contains all of {@code required}
+     */
+    private static boolean has(int classes, int required) {
+        return (classes & required) == required;
+    }
+}
@@ -19,16 +19,17 @@
 package edu.uci.nomoads.training;
 
 import java.util.*;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.dom4j.*;
 
 import edu.uci.nomoads.Util;
+import edu.uci.nomoads.training.PIIDetector.PIIType;
 
 
 /**
- * Format validation and String manipulation
+ * Format validation and String manipulation. Validators of PII formats are backed by
+ * {@link PIIDetector}, which can also test a token against all of them at once.
  * <p>
  * e.g. email, IMEI etc. e.g. extractOrg
  * </p>
@@ -42,152 +43,232 @@ class RString {
 	public Map<String, String> keyValuePairs;
 	public final static String DELIMITERS = ",|\t|/|\\||\\*|!|#|&|\\?|\n|;|\\{|\\}|\\(|\\)| ";
 
+	/** Marks the characters matched by {@link #DELIMITERS}, indexed by character */
+	private static final boolean[] IS_DELIMITER = new boolean[128];
+	static {
+		for (char c : ",\t/|*!#&?\n;{}() ".toCharArray())
+			IS_DELIMITER[c] = true;
+	}
+
+	/** Terms of the line last broken into words, if {@link #NiceLine} was built */
+	public ArrayList<String> termList = null;
+
     private final int INVALID_IDX = -1;
 
+	/** Matches names of images and other files requested */
+	private static final Pattern IMAGE_OR_FILE_PATTERN = Pattern.compile(
+			"([^\\s]+(\\.(?i)(jpg|png|ico|gif|bmp|php|jsp|htm|html|asp|css|js|json|xml)"
+			+ "(-http:)?)$)");
+
 	/**
-	 * Separate a line of string into separated words. This function could not
-	 * run as a parallel function.
+	 * Separate a line of string into separated words, also building {@link #NiceLine} and
+	 * {@link #termList}. This function could not run as a parallel function.
 	 *
 	 * @param line the packet to break into words.
 	 */
 	public void breakLineIntoWords(String line) {
+		breakLineIntoWords(line, true);
+	}
 
-		String niceLine = "";
+	/**
+	 * Separate a line of string into separated words in a single pass over it. A word starts
+	 * with a delimiter (see {@link #isDelimiter(char)}) and ends with the delimiter that starts
+	 * the next word. Words that contain a key-value pair are only counted by their key.
+	 *
+	 * @param line the packet to break into words.
+	 * @param buildNiceLine whether to also build {@link #NiceLine} and {@link #termList}, which
+	 *                      only {@link #findKeyValuePairs()} needs. Otherwise both are set to
+	 *                      {@code null}.
+	 */
+	public void breakLineIntoWords(String line, boolean buildNiceLine) {
 		// /delivery/lg.php?b=39833&c=4221&zoneid=5437&cb=067855bb&ml=html&mn=Funny+Mouth&vr=a0.1.16&aid=9419f52ee69ffcba
 		// Test for xml
 		ArrayList<String> termXML = new ArrayList<String>();
-		String rest_line = "";
-		for (String fd : line.split("\t")) {
-			ArrayList<String> tmptermXML = tryXml(fd);
-			if (tmptermXML == null) {
-				rest_line += fd + "\t";
-			} else {
-				termXML = tmptermXML;
-				Util.debug("" + termXML.size());
+		String rest_line;
+		if (line.indexOf("<?xml") == INVALID_IDX) {
+			// Same as re-joining line.split("\t"), which drops trailing empty fields
+			int end = line.length();
+			while (end > 0 && line.charAt(end - 1) == '\t')
+				end--;
+			rest_line = line.substring(0, end) + "\t";
+		} else {
+			StringBuilder rest = new StringBuilder(line.length() + 1);
+			for (String fd : line.split("\t")) {
+				ArrayList<String> tmptermXML = tryXml(fd);
+				if (tmptermXML == null) {
+					rest.append(fd).append('\t');
+				} else {
+					termXML = tmptermXML;
+				}
 			}
+			rest_line = rest.toString();
 		}
-		line = rest_line;
-		Util.debug(line);
 
-		String[] terms = line.split(DELIMITERS);
-		ArrayList<String> termList = new ArrayList<String>();
 		Map<String, Integer> words = new HashMap<String, Integer>();
+		ArrayList<String> terms = buildNiceLine ? new ArrayList<String>() : null;
+		StringBuilder niceLine = buildNiceLine ? new StringBuilder() : null;
+
+		// Positions of the first '=' and ':' of the current word, if any
+		int wordStart = INVALID_IDX;
+		int equalsIdx = INVALID_IDX;
+		int colonIdx = INVALID_IDX;
+		for (int i = 0; i < rest_line.length(); i++) {
+			char c = rest_line.charAt(i);
+			if (c == '=') {
+				if (equalsIdx == INVALID_IDX)
+					equalsIdx = i;
+				continue;
+			}
+			if (c == ':') {
+				if (colonIdx == INVALID_IDX)
+					colonIdx = i;
+				continue;
+			}
+			if (!isDelimiter(c))
+				continue;
+
+			// Unless this is the start of the first word, it is the end of a word: save it
+			if (wordStart != INVALID_IDX) {
+				// A word with no '=' has its first ':' treated as one
+				int separator = equalsIdx != INVALID_IDX ? equalsIdx : colonIdx;
+				char delim = equalsIdx != INVALID_IDX ? '=' : ':';
+				saveWord(rest_line, wordStart, i + 1, separator, delim, words, terms, niceLine);
+			}
+
+			// The ending delimeter for this word is the start of the next word
+			wordStart = i;
+			equalsIdx = INVALID_IDX;
+			colonIdx = INVALID_IDX;
+		}
 
-        int wordStart = INVALID_IDX;
-        for (int i = 0; i < line.length(); i++) {
-
-            // TODO: more efficient way to match delimiters if needed is at link below:
-            // https://stackoverflow.com/questions/5034580/comparing-chars-in-java
-            if (Character.toString(line.charAt(i)).matches(DELIMITERS)) {
-
-                // Start of a word
-                if (wordStart == INVALID_IDX) {
-                    wordStart = i;
-                    continue;
-                }
-
-                // Otherwise this is the end of the word, save it
-                String word = line.substring(wordStart, i + 1);
-                niceLine = saveWord(word, words, termList, niceLine);
-
-                // The ending delimeter for this word is the start of the next word
-                wordStart = i;
-            }
-        }
-
-		niceLine = niceLine.trim();
-		// Word and NiceLine
-		
-		for (String t : termXML) {
-			termList.add(t);
-			niceLine+=t+"\t";
+		if (buildNiceLine) {
+			// Word and NiceLine
+			StringBuilder nice = new StringBuilder(niceLine.toString().trim());
+			for (String t : termXML) {
+				terms.add(t);
+				nice.append(t).append('\t');
+			}
+			NiceLine = nice.toString();
+		} else {
+			NiceLine = null;
 		}
-		NiceLine = niceLine;
-//		System.out.println(NiceLine);
+		termList = terms;
 		Words = words;
-		Util.debug(termList.size()+"");
 	}
 
-	private String saveWord(String t, Map<String, Integer> words, ArrayList<String> termList,
-                          String niceLine) {
-        if (t.length() < 1)
-            return niceLine;
+	/**
+	 * @param c the character to check
+	 * @return {@code true} if {@code c} is matched by {@link #DELIMITERS}
+	 */
+	static boolean isDelimiter(char c) {
+		return c < IS_DELIMITER.length && IS_DELIMITER[c];
+	}
 
-        // TODO 261: are these needed? Messes up parsing in some cases
-        /*t = t.replaceAll("\"", "").replaceAll("'", "")
+	/**
+	 * Counts a single word of a line. A word that contains a separator ('=', or ':' if there is
+	 * no '=') is a key-value pair: only its key, followed by the separator, is counted.
+	 * @param line the line the word is part of
+	 * @param start index of the first character of the word
+	 * @param end index after the last character of the word
+	 * @param separator index of the separator in the word, or {@link #INVALID_IDX}
+	 * @param delim the separator character
+	 * @param words counts of the words of the line
+	 * @param termList terms of the line, or {@code null} if terms are not needed
+	 * @param niceLine the line built from the terms, or {@code null} if terms are not needed
+	 */
+	private void saveWord(String line, int start, int end, int separator, char delim,
+						  Map<String, Integer> words, List<String> termList,
+						  StringBuilder niceLine) {
+		// TODO 261: are these needed? Messes up parsing in some cases
+		/*t = t.replaceAll("\"", "").replaceAll("'", "")
                 .replaceAll("\\[", "").replaceAll("\\]", "")
                 .replaceAll("http://", "").replaceAll("https://", "")
                 .replaceAll("ftp://", "");*/
-        boolean isValueOnly = true;
-
-        String delim = "=";
-        if (t.contains(":") && !t.contains("=")) {
-            delim = ":";
-            t = t.replaceFirst(":", "=");
-            if (t.contains("mac_address")) {
-                Util.debug(t);
-            }
-        }
-        if (t.contains("=")) {
-            String[] tsplit = t.split("=");
-            if (tsplit.length > 1) {
-                String reconk = tsplit[0];
-                String reconv = tsplit[1].trim();
-                if (reconv.endsWith(":") || reconv.endsWith("-")
-                        || reconv.endsWith("="))
-                    reconv = reconv.substring(0, reconv.length() - 1);
-                if (reconv.startsWith(">"))
-                    reconv = reconv.substring(1);
-
-                // Save key as a word with delimeter (= or :)
-                reconk += delim;
-                if (reconk.length() >= 2) {
-                    termList.add(reconk);
-                    Util.debug("reconk:" + reconk);
-                }
-                if (reconv.length() >= 1) {
-                    termList.add(reconv);
-                    Util.debug("reconv:" + reconv);
-                }
-                isValueOnly = false;
-                if (words.containsKey(reconk)) {
-                    words.put(reconk, words.get(reconk) + 1);
-                } else {
-                    words.put(reconk, 1);
-                }
-                // DONE:skip values, as we don't anticipate it at feature.
-                // if (words.containsKey(reconv)) {
-                // words.put(reconv, words.get(reconv) + 1);
-                // } else {
-                // words.put(reconv, 1);
-                // }
-            } else if (tsplit.length == 1) {
-                t = tsplit[0];
-            }
-        } else {
-            if (words.containsKey(t)) {
-                words.put(t, words.get(t) + 1);
-            } else {
-                words.put(t, 1);
-            }
-
-        }
-        if (isValueOnly) {
-            t = t.trim();
-            if (t.length() == 0)
-                return niceLine;
-            if (t.length() == 1) {
-                char tmpt = t.charAt(0);
-                if (!Character.isAlphabetic(tmpt)
-                        && !Character.isDigit(tmpt))
-                    return niceLine;
-            }
-            termList.add(t);
-        }
-        //terms[i] = t;
-        niceLine += t + '\t';
-        return niceLine;
-    }
+		if (separator == INVALID_IDX) {
+			String t = line.substring(start, end);
+			countWord(words, t);
+			if (termList != null)
+				saveTerm(t, termList, niceLine);
+			return;
+		}
+
+		// Anything but '=' after the separator means there is a value, even if empty
+		boolean hasValue = false;
+		for (int i = separator + 1; i < end && !hasValue; i++)
+			hasValue = line.charAt(i) != '=';
+
+		if (!hasValue) {
+			// Without a value the key is not counted, only kept as a term
+			if (termList != null) {
+				String t = separator > start ? line.substring(start, separator)
+						: replaceSeparator(line, start, end, separator);
+				saveTerm(t, termList, niceLine);
+			}
+			return;
+		}
+
+		// Save key as a word with delimeter (= or :)
+		String reconk = line.substring(start, separator) + delim;
+		countWord(words, reconk);
+		// DONE:skip values, as we don't anticipate it at feature.
+		if (termList == null)
+			return;
+
+		int valueEnd = separator + 1;
+		while (valueEnd < end && line.charAt(valueEnd) != '=')
+			valueEnd++;
+		String reconv = line.substring(separator + 1, valueEnd).trim();
+		if (reconv.endsWith(":") || reconv.endsWith("-")
+				|| reconv.endsWith("="))
+			reconv = reconv.substring(0, reconv.length() - 1);
+		if (reconv.startsWith(">"))
+			reconv = reconv.substring(1);
+
+		if (reconk.length() >= 2)
+			termList.add(reconk);
+		if (reconv.length() >= 1)
+			termList.add(reconv);
+		niceLine.append(replaceSeparator(line, start, end, separator)).append('\t');
+	}
+
+	/**
+	 * @return the word {@code line[start, end)} with the separator at {@code separator}
+	 * replaced by '='
+	 */
+	private static String replaceSeparator(String line, int start, int end, int separator) {
+		return line.substring(start, separator) + "=" + line.substring(separator + 1, end);
+	}
+
+	/**
+	 * Adds a term that is not a key-value pair to the terms of a line, unless it is blank or a
+	 * single character that is neither a letter nor a digit
+	 * @param t the term to add
+	 * @param termList terms of the line
+	 * @param niceLine the line built from the terms
+	 */
+	private static void saveTerm(String t, List<String> termList, StringBuilder niceLine) {
+		t = t.trim();
+		if (t.length() == 0)
+			return;
+		if (t.length() == 1) {
+			char tmpt = t.charAt(0);
+			if (!Character.isAlphabetic(tmpt)
+					&& !Character.isDigit(tmpt))
+				return;
+		}
+		termList.add(t);
+		niceLine.append(t).append('\t');
+	}
+
+	/**
+	 * Increments the count of a word
+	 * @param words counts of words
+	 * @param word the word to count
+	 */
+	private static void countWord(Map<String, Integer> words, String word) {
+		Integer count = words.get(word);
+		words.put(word, count == null ? 1 : count + 1);
+	}
 
 	public void treeWalk(Document document) {
 		treeWalk(document.getRootElement());
@@ -255,35 +336,12 @@ class RString {
 
 	/** format validation for email address */
 	public static boolean isEmail(String reconValue) {
-		String EMAIL_PATTERN = "^[_A-Za-z0-9-\\+]+((\\.|_)[_A-Za-z0-9-]+)*@"
-				+ "[A-Za-z0-9-]+(\\.[A-Za-z0-9]+)*(\\.[A-Za-z]{2,})$";
-		Pattern pattern = Pattern.compile(EMAIL_PATTERN);
-		Matcher matcher = pattern.matcher(reconValue);
-		boolean isFormatGood = matcher.matches();
-		return isFormatGood;
+		return PIIType.EMAIL.matches(reconValue);
 	}
 
 	/** format validation for mac address */
 	public static boolean isMacAddress(String reconValue) {
-		int len = reconValue.trim().length();
-		boolean isFormatGood = false;
-		if(reconValue.contains("02:00:00:00:00:00")){
-			return true;
-		}
-		if (len == 17) {
-			String mac_pattern = "(?:[A-Fa-f0-9]{2}[:-]){5}(?:[A-Fa-f0-9]{2})";
-			Pattern pattern = Pattern.compile(mac_pattern);
-			Matcher matcher = pattern.matcher(reconValue);
-			isFormatGood = matcher.find();
-		} else if (len == 12) {
-			for (char c : reconValue.toCharArray()) {
-				if (!(Character.isAlphabetic(c) || Character.isDigit(c))) {
-					isFormatGood = false;
-					break;
-				}
-			}
-			isFormatGood = true;
-		}
+		boolean isFormatGood = PIIType.MAC_ADDRESS.matches(reconValue);
 		if (debug)
 			System.out.println("debug:>>>>>>" + reconValue + isFormatGood);
 		return isFormatGood;
@@ -291,94 +349,37 @@ class RString {
 
 	/** format validation for imei */
 	public static boolean isIMEI(String reconValue) {
-		int len = reconValue.length();
-		boolean isFormatGood = false;
-		if (len == 17 || len == 15) {
-			// 15 or 17 digit sequence of numbers
-			isFormatGood = true;
-			for (char c : reconValue.toCharArray()) {
-				if (c < 0 || c > 9) {
-					isFormatGood = false;
-					break;
-				}
-			}
-
-		}
-		// else if (len == 36) {
-		// // e.g.: AA3804D9-ABD6-46D5-862F-64B19150E007
-		// if (reconValue.contains("-"))
-		// isFormatGood = true;
-		// }
-		Util.debug("debug:>>>>>>" + reconValue + isFormatGood);
-		return isFormatGood;
+		return PIIType.IMEI.matches(reconValue);
 	}
 
 	/** format validation for iccid */
 	public static boolean isICCID(String reconValue) {
-		int len = reconValue.length();
-		boolean isFormatGood = false;
-		if (len == 20 || len == 19) {
-			isFormatGood = true;
-		}
-		return isFormatGood;
+		return PIIType.ICCID.matches(reconValue);
 	}
 	
 	/** format validation for idfa */
 	public static boolean isIDFA(String reconValue) {
-		int len = reconValue.length();
-		boolean isFormatGood = false;
-		if (len == 36 || len == 40 || len == 41) {
-			// ifa:
-			// idfa:
-			isFormatGood = true;
-		}
-		return isFormatGood;
+		return PIIType.IDFA.matches(reconValue);
 	}
 
 	/** format validation for imsi */
 	public static boolean isIMSI(String reconValue) {
-		boolean isFormatGood = false;
-		int len = reconValue.length();
-		if (len == 15) {
-			isFormatGood = true;
-			for (char c : reconValue.toCharArray()) {
-				if (c < 0 || c > 9) {
-					isFormatGood = false;
-					break;
-				}
-			}
-		}
-		return isFormatGood;
+		return PIIType.IMSI.matches(reconValue);
 	}
 
 	/** format validation for file name from request */
 	public static boolean isImageOrFile(String input) {
-		return Pattern
-				.matches(
-						"([^\\s]+(\\.(?i)(jpg|png|ico|gif|bmp|php|jsp|htm|html|asp|css|js|json|xml)(-http:)?)$)",
-						input);
+		return IMAGE_OR_FILE_PATTERN.matcher(input).matches();
 	}
 
 	/** format validation for zipcode */
 	public static boolean isZipCode(String reconValue) {
-		String ZIPCODE_PATTERN = "\\d{5}(-\\d{4})?";
-		Pattern pattern = Pattern.compile(ZIPCODE_PATTERN);
-		Matcher matcher = pattern.matcher(reconValue);
-		return matcher.matches();
+		return PIIType.ZIP_CODE.matches(reconValue);
 	}
 
 	/** format validation for credit card */
 	public static boolean isCreditCard(String reconValue) {
-		// TODO: test different credit card number: visa, master, discover etc.
-		String credit_regex = "(?:(?<visa>\b4[0-9]{12}(?:[0-9]{3})?\b)|"
-				+ "(?<mastercard>\b5[1-5][0-9]{14}\b)|"
-				+ "(?<discover>\b6(?:011|5[0-9]{2})[0-9]{12}\b)|"
-				+ "(?<amex>\b3[47][0-9]{13}\b)|"
-				+ "(?<diners>\b3(?:0[0-5]|[68][0-9])?[0-9]{11}\b)|"
-				+ "(?<jcb>\b(?:2131|1800|35[0-9]{3})[0-9]{11}\b))";
-		Pattern pattern = Pattern.compile(credit_regex);
-		Matcher matcher = pattern.matcher(reconValue);
-		return matcher.matches();
+		return PIIType.CREDIT_CARD.matches(reconValue);
 	}
 
 	/** format validation for location in gps manner */
@@ -404,72 +405,22 @@ class RString {
 
 	/** format validation for android id or apple id */
 	public static boolean isAndroidId(String reconValue) {
-		// ref:
-		// http://support.mobileapptracking.com/entries/22541461-Unique-Identifiers-for-Attribution
-		// format validation for device id like android id, ios_ifa etc.
-		int len = reconValue.length();
-		boolean isFormatGood = false;
-		if ( len == 16 || len == 40) {
-			//len == 64 || len == 32 ||
-			// Google Advertising Identifier (AID)
-			// android id
-			// 40 - ios_ifa
-			// TODO: separate ios and android
-			isFormatGood = true;
-		}
-		if (reconValue.contains(":")) {
-			isFormatGood = false;
-		}
-		return isFormatGood;
+		return PIIType.ANDROID_ID.matches(reconValue);
 	}
 
 	/** format validation for phone number */
 	public static boolean isPhoneNumber(String reconValue) {
-		// TODO: only support US numbers for now
-		int len = reconValue.length();
-		boolean isFormatGood = false;
-		if (len == 10 || len == 13) {
-			// 5556667777
-			// (555)666-7777
-			String rvalue = reconValue.replace("-", "");
-			isFormatGood = true;
-			for (char c : rvalue.toCharArray()) {
-				if (c < 0 || c > 9) {
-					isFormatGood = false;
-					break;
-				}
-			}
-		}
-		return isFormatGood;
+		return PIIType.PHONE_NUMBER.matches(reconValue);
 	}
 
 	/** format validation for ip address */
 	public static boolean isIP(String reconValue) {
-		String ipv4Pattern = "(([01]?\\d\\d?|2[0-4]\\d|25[0-5])\\.){3}([01]?\\d\\d?|2[0-4]\\d|25[0-5])";
-		// TODO: invalid regex for ipv6
-		String ipv6Pattern = "([0-9a-f]{1,4}:){7}([0-9a-f]){1,4}";
-		Pattern VALID_IPV4_PATTERN = Pattern.compile(ipv4Pattern,
-				Pattern.CASE_INSENSITIVE);
-		Pattern VALID_IPV6_PATTERN = Pattern.compile(ipv6Pattern,
-				Pattern.CASE_INSENSITIVE);
-		if (VALID_IPV4_PATTERN.matcher(reconValue).matches())
-			return true;
-		if (VALID_IPV6_PATTERN.matcher(reconValue).matches())
-			return true;
-		return false;
+		return PIIType.IP.matches(reconValue);
 	}
 
 	/** format validation for gender */
 	public static boolean isGender(String reconValue) {
-		// TODO: decline to answer, not known
-		// http://www.sarahdopp.com/blog/2010/designing-a-better-drop-down-menu-for-gender/
-		reconValue = reconValue.toLowerCase();
-		String[] genderDescriptions = { "f", "m", "female", "male", "girl",
-				"boy", "other", "not known", "not applicable" };
-		for (String g : genderDescriptions)
-			if (reconValue.equals(g))
-				return true;
-		return false;
+		return PIIType.GENDER.matches(reconValue);
 	}
 
 	/** format validation for city name */
@@ -560,27 +511,8 @@ class RString {
 	public static boolean isTime(String input) {
 		// 15:58:41
 		// 15-Sep-2013
-		// Sep
-		// Mon
 		// "dd.MM.yyyy", "M/dd/yyyy"
-		String[] ps = {
-				"([01]?[0-9]|2[0-3]):[0-5][0-9]:[0-5][0-9]", // 24-hour format
-				"(0?[1-9]|[12][0-9]|3[01])/(0?[1-9]|1[012])/((19|20)\\d\\d)",
-				"\\d{4}-\\d{2}-\\d{2}" };
-		for (int i = 0; i < ps.length; i++) {
-			if (Pattern.matches(ps[i], input))
-				return true;
-		}
-
-		String[] month = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul",
-				"Aug", "Sep", "Oct", "Nov", "Dec" };
-		for (int i = 0; i < month.length; i++) {
-			String pt = "\\d{2}-" + month[i] + "-\\d{4}";
-			if (Pattern.matches(pt, input))
-				return true;
-		}
-
-		return false;
+		return PIIType.TIME.matches(input);
 	}
 
 }
@@ -24,6 +24,9 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -38,6 +41,9 @@ class ServerUtils extends Util {
     /** Directory containing training files, as prepared by our scripts */
     private final String trainingDir;
 
+    /** Directory where tokenized training files are cached (see {@link TokenCache}) */
+    private final String tokenCacheDir;
+
     /** Directory where training logs will be saved */
     private final String logDir;
 
@@ -63,7 +69,7 @@ class ServerUtils extends Util {
 
     private static ServerUtils instance;
 
-    static ServerUtils getInstance(Config config) {
+    static synchronized ServerUtils getInstance(Config config) {
         if (instance == null) {
             instance = new ServerUtils(config);
             return instance;
@@ -83,6 +89,7 @@ class ServerUtils extends Util {
         String rootDir = config.getRootConfig();
 
         trainingDir = rootDir + "tr_data_per_" + config.getDataSplit() + "/";
+        tokenCacheDir = trainingDir + "token_cache/";
         logDir = experimentsDir + "logs/";
         resultsDir = experimentsDir + "results/";
         treeDotDir = experimentsDir + "tree_dot_files/";
@@ -108,6 +115,8 @@ class ServerUtils extends Util {
 
     String getTrainingIndex() { return trainingIndex; }
 
+    String getTokenCacheDir() { return tokenCacheDir; }
+
     String getLogDir() { return logDir; }
 
     String getResultsDir() { return resultsDir; }
@@ -116,6 +125,8 @@ class ServerUtils extends Util {
 
     String getDataSplit() { return config.getDataSplit(); }
 
+    boolean isArffCompressionEnabled() { return config.isArffCompressionEnabled(); }
+
     private class StopWordReader extends ConfigFileReader {
 
         @Override
@@ -170,6 +181,18 @@ class ServerUtils extends Util {
         writeToFile(fullPath, line, true);
     }
 
+    /**
+     * Moves a completely written file over another one, so that readers see either the old or
+     * the new contents of the file but never a partial file
+     * @param tmpPath path of the newly written file
+     * @param fullPath path of the file to replace
+     * @throws IOException if the file could not be moved
+     */
+    static void replaceFile(String tmpPath, String fullPath) throws IOException {
+        Files.move(Paths.get(tmpPath), Paths.get(fullPath), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
     public static void overwriteFile(String fullPath, String line){
         writeToFile(fullPath, line, false);
     }
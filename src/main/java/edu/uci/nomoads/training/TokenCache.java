@@ -0,0 +1,413 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.training;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tokenized flows of a training data file, kept on disk so that repeated experiments (e.g. with
+ * a different theta or classifier) do not have to parse and tokenize the file again. For each
+ * flow, the cache holds its id, label, package name, PII types and word counts (see
+ * {@link Trainer#tokenize(JSONObject)}), stored column by column with all strings in a single
+ * dictionary.
+ * <p>
+ * Caches are named after a hash of the training data file, the {@link Trainer} (which decides
+ * how flows are broken into words) and the label key, so they are rebuilt whenever any of these
+ * change.
+ * </p>
+ */
+class TokenCache {
+    /** "NMTC" */
+    private static final int MAGIC = 0x4E4D5443;
+
+    /** Incremented whenever the format changes, which also changes the names of caches */
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String SUFFIX = ".tokens";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** All strings of the cache, referred to by index from the columns below */
+    private final String[] strings;
+
+    /** Id of each flow */
+    private final int[] ids;
+
+    /** Label of each flow */
+    private final int[] adLabels;
+
+    /** Package name of each flow, or -1 */
+    private final int[] pkgNames;
+
+    /** Index into {@link #piis} of the first PII type of each flow, and of the end of the last
+     * flow's PII types */
+    private final int[] piiStarts;
+
+    /** Whether each flow has a list of PII types (which may be empty) */
+    private final boolean[] hasPiis;
+
+    /** PII types of all flows */
+    private final int[] piis;
+
+    /** Index into {@link #words} of the first word of each flow, and of the end of the last
+     * flow's words */
+    private final int[] wordStarts;
+
+    /** Words of all flows */
+    private final int[] words;
+
+    /** Number of times each word of {@link #words} occurs in its flow */
+    private final int[] wordCounts;
+
+    /** Row of each flow id. Built up front, since folds look up their rows concurrently. */
+    private final Map<String, Integer> rows;
+
+    private TokenCache(String[] strings, int[] ids, int[] adLabels, int[] pkgNames,
+                       int[] piiStarts, boolean[] hasPiis, int[] piis, int[] wordStarts,
+                       int[] words, int[] wordCounts) {
+        this.strings = strings;
+        this.ids = ids;
+        this.adLabels = adLabels;
+        this.pkgNames = pkgNames;
+        this.piiStarts = piiStarts;
+        this.hasPiis = hasPiis;
+        this.piis = piis;
+        this.wordStarts = wordStarts;
+        this.words = words;
+        this.wordCounts = wordCounts;
+
+        rows = new HashMap<>(ids.length * 2);
+        for (int row = 0; row < ids.length; row++)
+            rows.put(strings[ids[row]], row);
+    }
+
+    /**
+     * Loads the cache of the given training data file, or builds and saves it if there is none
+     * @param trainingFile the training data file
+     * @param trainer the trainer whose tokenization to cache
+     * @param cacheDir the directory caches are kept in
+     * @return the cache
+     * @throws Exception if the training data file could not be read
+     */
+    static TokenCache open(String trainingFile, Trainer trainer, String cacheDir)
+            throws Exception {
+        File source = new File(trainingFile);
+        String prefix = source.getName() + ".";
+        File cacheFile = new File(cacheDir, prefix + getKey(source, trainer) + SUFFIX);
+        if (cacheFile.exists()) {
+            try {
+                return read(cacheFile);
+            } catch (IOException e) {
+                System.out.println("WARNING: Could not read token cache " + cacheFile +
+                        ", rebuilding it");
+                e.printStackTrace();
+            }
+        }
+
+        TokenCache cache = build(trainingFile, trainer);
+        try {
+            new File(cacheDir).mkdirs();
+            cache.write(cacheFile);
+
+            // Caches of older versions of the file are of no use anymore
+            File[] files = new File(cacheDir).listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    if (name.startsWith(prefix) && name.endsWith(SUFFIX) &&
+                            !file.equals(cacheFile) &&
+                            name.indexOf('.', prefix.length()) == name.length() - SUFFIX.length())
+                        file.delete();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("WARNING: Could not save token cache " + cacheFile);
+            e.printStackTrace();
+        }
+        return cache;
+    }
+
+    /**
+     * @return a hash of the given file, the trainer class and its label key
+     */
+    private static String getKey(File source, Trainer trainer) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(source)) {
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+        }
+        digest.update((FORMAT_VERSION + "\n" + trainer.getClass().getName() + "\n" +
+                trainer.jsonKeyLabel).getBytes(UTF8));
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest())
+            key.append(String.format("%02x", b));
+        return key.toString();
+    }
+
+    /**
+     * Reads and tokenizes all flows of the given training data file
+     */
+    private static TokenCache build(String trainingFile, Trainer trainer) throws Exception {
+        Builder builder = new Builder();
+        try (FlowStream.FlowReader reader = new FlowStream.FlowReader(new InputStreamReader(
+                new BufferedInputStream(new FileInputStream(trainingFile), 1 << 16), UTF8))) {
+            JSONObject flow;
+            while ((flow = reader.next()) != null) {
+                builder.add(reader.getId(), flow, trainer);
+            }
+        }
+        return builder.build();
+    }
+
+    /** @return the number of flows in the cache */
+    int numFlows() {
+        return ids.length;
+    }
+
+    /**
+     * @param flowIds ids of flows
+     * @return the rows of the given flows, in the same order, or {@code null} if some of them are
+     * not in the cache
+     */
+    int[] getRows(Collection<?> flowIds) {
+        int[] selected = new int[flowIds.size()];
+        int i = 0;
+        for (Object flowId : flowIds) {
+            Integer row = rows.get(flowId);
+            if (row == null)
+                return null;
+            selected[i++] = row;
+        }
+        return selected;
+    }
+
+    /** @return all rows, in the order in which their flows appear in the training data file */
+    int[] getAllRows() {
+        int[] all = new int[ids.length];
+        for (int row = 0; row < all.length; row++)
+            all[row] = row;
+        return all;
+    }
+
+    int getAdLabel(int row) {
+        return adLabels[row];
+    }
+
+    String getPkgName(int row) {
+        return pkgNames[row] >= 0 ? strings[pkgNames[row]] : null;
+    }
+
+    /** @return a new list of the PII types of the given flow, or {@code null} */
+    @SuppressWarnings("unchecked")
+    JSONArray getPiiLabels(int row) {
+        if (!hasPiis[row])
+            return null;
+
+        JSONArray labels = new JSONArray();
+        for (int i = piiStarts[row]; i < piiStarts[row + 1]; i++)
+            labels.add(strings[piis[i]]);
+        return labels;
+    }
+
+    /** @return a new map of how often each word occurs in the given flow */
+    Map<String, Integer> getWords(int row) {
+        int numWords = wordStarts[row + 1] - wordStarts[row];
+        Map<String, Integer> flowWords = new HashMap<>(numWords * 2);
+        for (int i = wordStarts[row]; i < wordStarts[row + 1]; i++)
+            flowWords.put(strings[words[i]], wordCounts[i]);
+        return flowWords;
+    }
+
+    /*
+    |--------------------------------------------------------------------------
+    | Reading and writing
+    |--------------------------------------------------------------------------
+    */
+
+    private void write(File cacheFile) throws IOException {
+        File tmpFile = new File(cacheFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+
+            out.writeInt(strings.length);
+            for (String str : strings) {
+                byte[] bytes = str.getBytes(UTF8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            out.writeInt(ids.length);
+            writeColumn(out, ids);
+            writeColumn(out, adLabels);
+            writeColumn(out, pkgNames);
+            writeColumn(out, piiStarts);
+            for (boolean hasPii : hasPiis)
+                out.writeBoolean(hasPii);
+            writeColumn(out, piis);
+            writeColumn(out, wordStarts);
+            writeColumn(out, words);
+            writeColumn(out, wordCounts);
+        }
+        Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeColumn(DataOutputStream out, int[] column) throws IOException {
+        out.writeInt(column.length);
+        for (int value : column)
+            out.writeInt(value);
+    }
+
+    private static TokenCache read(File cacheFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(cacheFile), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+                throw new IOException("not a token cache");
+
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                strings[i] = new String(bytes, UTF8);
+            }
+
+            int numFlows = in.readInt();
+            int[] ids = readColumn(in);
+            int[] adLabels = readColumn(in);
+            int[] pkgNames = readColumn(in);
+            int[] piiStarts = readColumn(in);
+            boolean[] hasPiis = new boolean[numFlows];
+            for (int i = 0; i < numFlows; i++)
+                hasPiis[i] = in.readBoolean();
+            int[] piis = readColumn(in);
+            int[] wordStarts = readColumn(in);
+            int[] words = readColumn(in);
+            int[] wordCounts = readColumn(in);
+
+            if (ids.length != numFlows || adLabels.length != numFlows ||
+                    pkgNames.length != numFlows || piiStarts.length != numFlows + 1 ||
+                    wordStarts.length != numFlows + 1 || words.length != wordCounts.length ||
+                    piiStarts[numFlows] != piis.length || wordStarts[numFlows] != words.length)
+                throw new IOException("corrupt token cache");
+            return new TokenCache(strings, ids, adLabels, pkgNames, piiStarts, hasPiis, piis,
+                    wordStarts, words, wordCounts);
+        } catch (RuntimeException e) {
+            // Negative sizes, etc.
+            throw new IOException("corrupt token cache", e);
+        }
+    }
+
+    private static int[] readColumn(DataInputStream in) throws IOException {
+        int[] column = new int[in.readInt()];
+        for (int i = 0; i < column.length; i++)
+            column[i] = in.readInt();
+        return column;
+    }
+
+    /**
+     * Collects tokenized flows into columns
+     */
+    private static class Builder {
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private final IntList ids = new IntList();
+        private final IntList adLabels = new IntList();
+        private final IntList pkgNames = new IntList();
+        private final IntList piiStarts = new IntList();
+        private final List<Boolean> hasPiis = new ArrayList<>();
+        private final IntList piis = new IntList();
+        private final IntList wordStarts = new IntList();
+        private final IntList words = new IntList();
+        private final IntList wordCounts = new IntList();
+
+        void add(String id, JSONObject flow, Trainer trainer) {
+            ids.add(stringId(id));
+            adLabels.add(ServerUtils.getIntFromJSONObject(flow, trainer.jsonKeyLabel));
+            String pkgName = (String) flow.get(JsonKeyDef.F_KEY_PKG_NAME);
+            pkgNames.add(pkgName != null ? stringId(pkgName) : -1);
+
+            JSONArray labels = (JSONArray) flow.get(JsonKeyDef.F_KEY_PII_TYPES);
+            piiStarts.add(piis.size());
+            hasPiis.add(labels != null);
+            if (labels != null) {
+                for (Object label : labels)
+                    piis.add(stringId((String) label));
+            }
+
+            wordStarts.add(words.size());
+            for (Map.Entry<String, Integer> entry : trainer.tokenize(flow).entrySet()) {
+                words.add(stringId(entry.getKey()));
+                wordCounts.add(entry.getValue());
+            }
+        }
+
+        private int stringId(String str) {
+            Integer id = dictionary.get(str);
+            if (id == null) {
+                id = strings.size();
+                dictionary.put(str, id);
+                strings.add(str);
+            }
+            return id;
+        }
+
+        TokenCache build() {
+            piiStarts.add(piis.size());
+            wordStarts.add(words.size());
+            boolean[] hasPiiArray = new boolean[hasPiis.size()];
+            for (int i = 0; i < hasPiiArray.length; i++)
+                hasPiiArray[i] = hasPiis.get(i);
+            return new TokenCache(strings.toArray(new String[strings.size()]), ids.toArray(),
+                    adLabels.toArray(), pkgNames.toArray(), piiStarts.toArray(), hasPiiArray,
+                    piis.toArray(), wordStarts.toArray(), words.toArray(), wordCounts.toArray());
+        }
+    }
+}
@@ -22,9 +22,14 @@ import java.io.*;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import edu.uci.nomoads.Util;
 import edu.uci.nomoads.prediction.AdsPredictor;
+import edu.uci.nomoads.prediction.ArffFiles;
+import edu.uci.nomoads.prediction.ModelBundle;
+import edu.uci.nomoads.prediction.PredictorOptions;
+import edu.uci.nomoads.prediction.SparseInstanceBuilder;
 import weka.classifiers.*;
 import weka.classifiers.trees.*;
 import weka.core.*;
@@ -47,22 +52,45 @@ abstract class Trainer {
     protected final int DEFAULT_THETA = 2;
 
 	/** Keeps tree labels belonging to each domainOS. It's filled out during training
-	 * and is saved to a JSON file upon training completion. */
+	 * and is saved to a JSON file upon training completion. Classifiers may be trained on several
+	 * threads (see {@link Config#getTrainingThreads()}), so access is synchronized on the
+	 * object itself. */
 	protected final JSONObject jsonDomainOSTreeLabels;
 
-	protected HashSet<String> pkgNames;
+	/** Collects the trained trees, and is written to a single file along with the tree labels
+	 * (see {@link ModelBundle}) */
+	protected final ModelBundle.Writer modelBundle;
 
-	protected HashSet<String> piisSet;
+	/** Maximum number of training outputs waiting to be written, see {@link ArtifactWriter} */
+	private static final int ARTIFACT_QUEUE_SIZE = 16;
+
+	/** Writes models, .arff and .dot files, etc. off the training threads */
+	protected final ArtifactWriter artifacts;
+
+	/** Package names of all flows trained on so far. Concurrent, since classifiers may be trained
+	 * on several threads. */
+	protected final Set<String> pkgNames;
+
+	/** PII types of all flows trained on so far. Concurrent, since classifiers may be trained on
+	 * several threads. */
+	protected final Set<String> piisSet;
+
+	/** Ids of the words of all flows trained on so far, shared by the training matrices of all
+	 * classifiers (see {@link TrainingData#trainMatrix}). Thread-safe. */
+	protected final Vocabulary vocabulary;
 
     protected final ServerUtils mServerUtils;
 
     public Trainer(ServerUtils serverUtils) {
         mServerUtils = serverUtils;
         jsonDomainOSTreeLabels = new JSONObject();
+        modelBundle = new ModelBundle.Writer();
+        artifacts = new ArtifactWriter(ARTIFACT_QUEUE_SIZE);
         jsonKeyLabel = serverUtils.label;
 
-		pkgNames = new HashSet<>();
-		piisSet = new HashSet<>();
+		pkgNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		piisSet = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		vocabulary = new Vocabulary();
 	}
 
 	/**
@@ -73,9 +101,36 @@ abstract class Trainer {
 	 *            - filled with info description of the training dataset
 	 */
 	public Instances trainOneDomain(JSONObject trFlows, MetaEvaluationMeasures mem) {
+		return trainOneDomain(FlowStream.of(trFlows), mem);
+	}
+
+	/**
+	 * Train a classifier given based on provided training data
+	 *
+	 * @param flows all flows of the training data, e.g. streamed from a file (see
+	 *              {@link FlowStream})
+	 * @param mem
+	 *            - filled with info description of the training dataset
+	 */
+	public Instances trainOneDomain(Iterable<JSONObject> flows, MetaEvaluationMeasures mem) {
+		return trainOneDomain(flows, null, null, mem);
+	}
+
+	/**
+	 * Train a classifier given based on provided training data
+	 *
+	 * @param flows all flows of the training data, e.g. streamed from a file (see
+	 *              {@link FlowStream})
+	 * @param cache the same flows, already tokenized, or {@code null} to tokenize the flows
+	 * @param rows the rows of the cache that hold the flows, in the same order
+	 * @param mem
+	 *            - filled with info description of the training dataset
+	 */
+	public Instances trainOneDomain(Iterable<JSONObject> flows, TokenCache cache, int[] rows,
+									MetaEvaluationMeasures mem) {
 
 		long t1 = System.nanoTime();
-		TrainingData trainingData = populateTrainingSet(trFlows, DEFAULT_THETA, mem);
+		TrainingData trainingData = populateTrainingSet(flows, cache, rows, DEFAULT_THETA, mem);
 		long t2 = System.nanoTime();
 		mem.populatingTime = (t2 - t1) / 10e8;
 
@@ -93,10 +148,74 @@ abstract class Trainer {
 		return null;
 	}
 
-	public TrainingData populateTrainingSet(JSONObject trFlows, int thresholdFrequency,
+	/**
+	 * Same as {@link #trainOneDomain(Iterable, TokenCache, int[], MetaEvaluationMeasures)}, but
+	 * also hands the trained classifier to a predictor built for just that classifier, so that it
+	 * can be evaluated right away instead of being loaded from disk along with all other models
+	 *
+	 * @param flows all flows of the training data
+	 * @param cache the same flows, already tokenized, or {@code null} to tokenize the flows
+	 * @param rows the rows of the cache that hold the flows, in the same order
+	 * @param persist whether to also save the classifier and its .arff file to disk (see
+	 *                {@link #trainClassifier(Classifier, Instances, String, boolean,
+	 *                MetaEvaluationMeasures)})
+	 * @param mem
+	 *            - filled with info description of the training dataset
+	 * @return the training data, with its {@link TrainingData#trainingInstances} and
+	 * {@link TrainingData#predictor} filled in
+	 */
+	public TrainingData trainForEvaluation(Iterable<JSONObject> flows, TokenCache cache,
+										   int[] rows, boolean persist,
+										   MetaEvaluationMeasures mem) {
+		long t1 = System.nanoTime();
+		TrainingData trainingData = populateTrainingSet(flows, cache, rows, DEFAULT_THETA,
+				persist, mem);
+		long t2 = System.nanoTime();
+		mem.populatingTime = (t2 - t1) / 10e8;
+
+		Classifier classifier = getClassifier();
+		String domainOS = mem.info.domainOS;
+		Set<String> labels = trainClassifier(classifier, trainingData.trainingInstances,
+				domainOS, persist, mem);
+		if (labels != null) {
+			trainingData.predictor = new AdsPredictor(domainOS, (J48) classifier,
+					trainingData.trainingInstances, labels, new PredictorOptions());
+		}
+		return trainingData;
+	}
+
+	public TrainingData populateTrainingSet(Iterable<JSONObject> flows, int thresholdFrequency,
 											MetaEvaluationMeasures mem) {
+		return populateTrainingSet(flows, null, null, thresholdFrequency, mem);
+	}
 
-		TrainingData trainingData = new TrainingData(trFlows);
+	/**
+	 * Populates the training set from the given flows, taking their words from the given cache
+	 * if there is one, and saves it into an .arff file
+	 * @param flows all flows of the training data
+	 * @param cache the same flows, already tokenized, or {@code null} to tokenize the flows
+	 * @param rows the rows of the cache that hold the flows, in the same order
+	 * @param thresholdFrequency see {@link #populateArff(Info, TrainingData, int)}
+	 * @param mem filled with info description of the training dataset
+	 * @return the training data
+	 */
+	public TrainingData populateTrainingSet(Iterable<JSONObject> flows, TokenCache cache,
+											int[] rows, int thresholdFrequency,
+											MetaEvaluationMeasures mem) {
+		return populateTrainingSet(flows, cache, rows, thresholdFrequency, true, mem);
+	}
+
+	/**
+	 * Same as {@link #populateTrainingSet(Iterable, TokenCache, int[], int,
+	 * MetaEvaluationMeasures)}, optionally skipping the .arff file
+	 * @param persist whether to save the training set into an .arff file (see
+	 *                {@link #saveArff(String, Instances)})
+	 */
+	private TrainingData populateTrainingSet(Iterable<JSONObject> flows, TokenCache cache,
+											 int[] rows, int thresholdFrequency, boolean persist,
+											 MetaEvaluationMeasures mem) {
+
+		TrainingData trainingData = new TrainingData(flows, vocabulary);
 
 		// Prepare structure
 		trainingData.mem = mem;
@@ -108,9 +227,14 @@ abstract class Trainer {
 		Instances trainingSet = null;
 		//if (trainingData.mem.numTotal >= 2 && trainingData.mem.numPositive >= 1) {
   //      if (trainingData.mem.numTotal >= NUM_CROSS_FOLDS) {
-			populateTrainingMatrix(trFlows, trainingData);
+			if (cache != null && rows != null)
+				populateTrainingMatrix(cache, rows, trainingData);
+			else
+				populateTrainingMatrix(flows, trainingData);
 			//if (trainingData.mem.numOfPossibleFeatures > 5)
 			trainingSet = populateArff(mem.info, trainingData, thresholdFrequency);
+			if (persist)
+				saveArff(mem.info.domainOS, trainingSet);
 			//else
 			//	System.out.println("WARNING: Not enough features! Classifier:" + mem.info.domainOS);
 //		} else {
@@ -133,81 +257,125 @@ abstract class Trainer {
 	 *            prefilled with some customized entries
 	 * */
 	public TrainingData populateTrainingMatrix(JSONObject domainOSFlows, TrainingData trainingData) {
-		ArrayList<Map<String, Integer>> trainMatrix = trainingData.trainMatrix;
-		ArrayList<JSONArray> piiLabels = trainingData.piiLabels;
-		Map<String, Integer> word_count = trainingData.wordCount;
-		int numOfPossibleFeatures = word_count.size();
-		for (Object k : domainOSFlows.keySet()) {
-			JSONObject flow = (JSONObject) domainOSFlows.get(k);
-			// Save all possible package names for later:
-			String pkgName = (String) flow.get(JsonKeyDef.F_KEY_PKG_NAME);
+		return populateTrainingMatrix(FlowStream.of(domainOSFlows), trainingData);
+	}
+
+	/**
+	 * Same as {@link #populateTrainingMatrix(JSONObject, TrainingData)}, but takes the flows one
+	 * at a time so that they do not all have to be in memory
+	 *
+	 * @param flows the flows of the training data
+	 * @param trainingData
+	 *            - the original training data object, could be empty or
+	 *            prefilled with some customized entries
+	 * */
+	public TrainingData populateTrainingMatrix(Iterable<JSONObject> flows,
+											   TrainingData trainingData) {
+		for (JSONObject flow : flows) {
+			addFlow(trainingData, (String) flow.get(JsonKeyDef.F_KEY_PKG_NAME), tokenize(flow),
+					(JSONArray) flow.get(JsonKeyDef.F_KEY_PII_TYPES),
+					ServerUtils.getIntFromJSONObject(flow, jsonKeyLabel));
+		}
+		trainingData.mem.numOfPossibleFeatures = trainingData.trainMatrix.numCountedWords();
+		return trainingData;
+	}
+
+	/**
+	 * Same as {@link #populateTrainingMatrix(Iterable, TrainingData)}, but takes flows that were
+	 * already tokenized, so that they do not have to be parsed nor tokenized again
+	 *
+	 * @param cache the tokenized flows
+	 * @param rows the rows of the cache to use, in order
+	 * @param trainingData
+	 *            - the original training data object, could be empty or
+	 *            prefilled with some customized entries
+	 * */
+	public TrainingData populateTrainingMatrix(TokenCache cache, int[] rows,
+											   TrainingData trainingData) {
+		for (int row : rows) {
+			addFlow(trainingData, cache.getPkgName(row), cache.getWords(row),
+					cache.getPiiLabels(row), cache.getAdLabel(row));
+		}
+		trainingData.mem.numOfPossibleFeatures = trainingData.trainMatrix.numCountedWords();
+		return trainingData;
+	}
+
+	/**
+	 * Breaks the line of the given flow (see {@link #getLine(JSONObject)}) into words
+	 * @param flow the flow to tokenize
+	 * @return how often each word occurs in the flow
+	 */
+	protected Map<String, Integer> tokenize(JSONObject flow) {
+		RString sf = new RString();
+		sf.breakLineIntoWords(getLine(flow), false);
+		return sf.Words;
+	}
+
+	/**
+	 * Adds a tokenized flow to the training data as a row of {@link TrainingData#trainMatrix},
+	 * counting its candidate feature words towards {@link WordMatrix#getWordCounts()}
+	 * @param trainingData the training data to add to
+	 * @param pkgName package name of the flow
+	 * @param words how often each word occurs in the flow
+	 * @param labels types of PII contained in the flow, or {@code null}
+	 * @param adLabel the label of the flow
+	 */
+	private void addFlow(TrainingData trainingData, String pkgName, Map<String, Integer> words,
+						 JSONArray labels, int adLabel) {
+		// Save all possible package names for later. Flows without one keep their row in
+		// trainingData.pkgNames, but null is not a value of the package name attribute.
+		if (pkgName != null)
 			pkgNames.add(pkgName);
-			trainingData.pkgNames.add(pkgName);
-
-
-			String line = getLine(flow);
-
-			// Count how often each word occurs
-			RString sf = new RString();
-			sf.breakLineIntoWords(line);
-			Map<String, Integer> words = sf.Words;
-			for (Map.Entry<String, Integer> entry : words.entrySet()) {
-				//String word_key = entry.getKey().trim();
-				String word_key = entry.getKey();
-
-				// Filter out short words that do not contain letters nor digits
-				int wordLen = word_key.length();
-				if (wordLen <= 3)
-					continue;
-
-				// Skip past delimiter if any
-				int wordStart = 0;
-				char c = word_key.charAt(wordStart);
-				if (!Character.isAlphabetic(c) && !Character.isDigit(c))
-					wordStart++;
-
-				int wordEnd = word_key.length() - 1;
-				c = word_key.charAt(wordEnd);
-				if (!Character.isAlphabetic(c) && !Character.isDigit(c))
-					wordEnd--;
-
-				String keyNoDelims = word_key.substring(wordStart, wordEnd + 1).toLowerCase().trim();
-
-				if (mServerUtils.isStopWord(keyNoDelims)
-						|| RString.isAllNumeric(keyNoDelims) || isPIIValue(keyNoDelims))
-					continue;
-
-				int frequency = entry.getValue();
-				if (word_count.containsKey(word_key))
-					word_count.put(word_key,
-							frequency + word_count.get(word_key));
-				else {
-					numOfPossibleFeatures++;
-					word_count.put(word_key, frequency);
-				}
-			}
-			trainMatrix.add(words);
+		trainingData.pkgNames.add(pkgName);
+
+		// Count how often each word occurs
+		WordMatrix matrix = trainingData.trainMatrix;
+		for (Map.Entry<String, Integer> entry : words.entrySet()) {
+			//String word_key = entry.getKey().trim();
+			String word_key = entry.getKey();
+			int wordId = vocabulary.intern(word_key);
+			int frequency = entry.getValue();
+			matrix.add(wordId, frequency);
+
+			// Filter out short words that do not contain letters nor digits
+			int wordLen = word_key.length();
+			if (wordLen <= 3)
+				continue;
 
-			// Add all the labels (not required for binary, but to avoid duplicate code with
-			// multi label training, add them all here as well)
-			JSONArray labels = (JSONArray) flow.get(JsonKeyDef.F_KEY_PII_TYPES);
-			piiLabels.add(labels);
+			// Skip past delimiter if any
+			int wordStart = 0;
+			char c = word_key.charAt(wordStart);
+			if (!Character.isAlphabetic(c) && !Character.isDigit(c))
+				wordStart++;
 
-			// Add the Ad label
-			trainingData.adLabels.add(ServerUtils.getIntFromJSONObject(flow, jsonKeyLabel));
+			int wordEnd = word_key.length() - 1;
+			c = word_key.charAt(wordEnd);
+			if (!Character.isAlphabetic(c) && !Character.isDigit(c))
+				wordEnd--;
 
-			// Keep track of all possible PII for later use as a feature
-			if (labels != null){
-				for (Object piiObj : labels) {
-					piisSet.add((String) piiObj);
-				}
+			String keyNoDelims = word_key.substring(wordStart, wordEnd + 1).toLowerCase().trim();
+
+			if (mServerUtils.isStopWord(keyNoDelims)
+					|| RString.isAllNumeric(keyNoDelims) || isPIIValue(keyNoDelims))
+				continue;
+
+			matrix.count(wordId, frequency);
+		}
+		matrix.endRow();
+
+		// Add all the labels (not required for binary, but to avoid duplicate code with
+		// multi label training, add them all here as well)
+		trainingData.piiLabels.add(labels);
+
+		// Add the Ad label
+		trainingData.adLabels.add(adLabel);
+
+		// Keep track of all possible PII for later use as a feature
+		if (labels != null){
+			for (Object piiObj : labels) {
+				piisSet.add((String) piiObj);
 			}
 		}
-		trainingData.wordCount = word_count;
-		trainingData.trainMatrix = trainMatrix;
-		trainingData.piiLabels = piiLabels;
-		trainingData.mem.numOfPossibleFeatures = numOfPossibleFeatures;
-		return trainingData;
 	}
 
 	/**
@@ -215,15 +383,15 @@ abstract class Trainer {
 	 * @param domainOS
 	 * @param instances
 	 */
-	protected void saveArff(String domainOS, Instances instances) {
-		try {
-			BufferedWriter bw = new BufferedWriter(new FileWriter(
-					mServerUtils.getFeaturesDir() + domainOS + ".arff"));
-			bw.write(instances.toString());
-			bw.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+	protected void saveArff(String domainOS, final Instances instances) {
+		final boolean gzip = mServerUtils.isArffCompressionEnabled();
+		artifacts.write(ArffFiles.getPath(mServerUtils.getFeaturesDir(), domainOS, gzip),
+				new ArtifactWriter.Content() {
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				ArffFiles.write(instances, out, gzip);
+			}
+		});
 	}
 
     /**
@@ -241,19 +409,38 @@ abstract class Trainer {
 	/**
 	 * Adds {@link #LABEL_POSITIVE} or {@link #LABEL_NEGATIVE} as the last attribute,
 	 * depending on if there is an ad or not, and returns the finished {@link Instance}.
-	 * @param instanceValue
+	 * @param instanceValue values of the data point, cleared once the instance is built
 	 * @param attributes
 	 */
-	protected Instance finalizeInstance(int adLabel, double[] instanceValue,
+	protected Instance finalizeInstance(int adLabel, SparseInstanceBuilder instanceValue,
 										ArrayList<Attribute> attributes) {
 		//System.out.println("using ads as labels");
-		instanceValue[attributes.size() - 1] = adLabel;
-		return new SparseInstance(1.0, instanceValue);
+		instanceValue.set(attributes.size() - 1, adLabel);
+		return instanceValue.build(1.0);
 	}
 
 	public Classifier trainWithClassifier(
 			Classifier classifier, Instances trainingSet, String domainOS,
 			MetaEvaluationMeasures mem) {
+		trainClassifier(classifier, trainingSet, domainOS, true, mem);
+		return classifier;
+	}
+
+	/**
+	 * Trains the given classifier, optionally saving it to disk
+	 * @param classifier the classifier to train
+	 * @param trainingSet the data to train it on
+	 * @param domainOS name of the classifier
+	 * @param persist whether to save the model, its tree labels, .dot file and its entry in the
+	 *                model bundle. Classifiers that are only evaluated (e.g. during
+	 *                cross-validation) can do without.
+	 * @param mem filled with info description of the training dataset
+	 * @return the tree labels of the classifier, or {@code null} if it is not a {@link J48}
+	 */
+	protected Set<String> trainClassifier(Classifier classifier, Instances trainingSet,
+										  String domainOS, boolean persist,
+										  MetaEvaluationMeasures mem) {
+		Set<String> labels = null;
 		try {
 /*			if (enableCrossValidation) {
 				mem.doEvaluation(classifier, trainingSet, NUM_CROSS_FOLDS);
@@ -271,12 +458,20 @@ abstract class Trainer {
 
 			if (classifierName.equals("J48")) {
 				J48 treeClassifier = (J48) classifier;
+				Map<String, String> treeLabels = new HashMap<>();
 				try {
-					saveTreeLabels(domainOS, "", treeClassifier);
+					treeLabels = getTreeLabels(domainOS, "", treeClassifier, persist);
 				} catch (Exception e) {
 					System.out.println("WARNING: Could not save tree labels!");
 					e.printStackTrace();
 				}
+				labels = new HashSet<>(treeLabels.values());
+
+				if (persist) {
+					saveTreeLabels(domainOS, treeLabels);
+					modelBundle.add(domainOS, treeClassifier, new Instances(trainingSet, 0),
+							labels);
+				}
 
 				mem.treeSize = treeClassifier.measureTreeSize();
 				mem.numLeaves = treeClassifier.measureNumLeaves();
@@ -285,30 +480,75 @@ abstract class Trainer {
 						mem.numNonLeafNodes);
 			}
 
+			if (!persist)
+				return labels;
+
 			// Save model
-			SerializationHelper.write(mServerUtils.getModelDir() + domainOS + "-"
+			final Classifier trained = classifier;
+			artifacts.write(mServerUtils.getModelDir() + domainOS + "-"
 					+ classifier.getClass().toString().substring(6) + ".model",
-					classifier);
-
-            // Save tree labels
-            ServerUtils.overwriteFile(mServerUtils.getTreeLabelsFile(),
-                    jsonDomainOSTreeLabels.toJSONString());
+					new ArtifactWriter.Content() {
+				@Override
+				public void writeTo(OutputStream out) throws Exception {
+					SerializationHelper.write(out, trained);
+				}
+			});
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		return classifier;
+		return labels;
+	}
+
+	/**
+	 * Saves the tree labels and the bundle of all trees trained so far, and waits for all other
+	 * training outputs to be written. Tree labels and the bundle cover all classifiers, so they are
+	 * written once at the end rather than after every classifier. The bundle is written last, once
+	 * everything else is in place, so that predictors watching it (see
+	 * {@link edu.uci.nomoads.prediction.ModelWatcher}) never reload a partial round of training.
+	 * @throws IOException listing all outputs that could not be written (see
+	 * {@link ArtifactWriter#close()}), in which case the bundle is not written; or if the bundle
+	 * could not be written
+	 */
+	public synchronized void finishTraining() throws IOException {
+		String treeLabels;
+		synchronized (jsonDomainOSTreeLabels) {
+			treeLabels = jsonDomainOSTreeLabels.toJSONString();
+		}
+		artifacts.write(mServerUtils.getTreeLabelsFile(), treeLabels);
+		artifacts.close();
+
+		modelBundle.write(mServerUtils.getModelBundleFile());
 	}
 
     /**
      * Saves provided data in JSON format, for saving to disk upon training completion
      * @param domainOS
-     * @param pii PII label
-     * @param j48classifier the tree to parse and extract nodes from
+     * @param treeLabels the labels of the nodes of the classifier's tree (see
+     *                   {@link #getTreeLabels(String, String, J48, boolean)})
 	 * @return {@code true} if labels were saved, {@code false} if no labels were found
-     * @throws Exception
      */
-	public boolean saveTreeLabels(String domainOS, String pii, J48 j48classifier) throws
-			Exception {
+	private boolean saveTreeLabels(String domainOS, Map<String, String> treeLabels) {
+		if (treeLabels.size() > 0) {
+			synchronized (jsonDomainOSTreeLabels) {
+				jsonDomainOSTreeLabels.put(domainOS, treeLabels);
+			}
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Extracts the labels of the nodes of the given tree
+	 * @param domainOS name of the classifier
+	 * @param pii PII label
+	 * @param j48classifier the tree to parse and extract nodes from
+	 * @param saveDotFile whether to also save the tree as a .dot file, for visualization
+	 * @return the labels, mapped by node (see {@link #parseTree(Map, String, String)})
+	 * @throws Exception
+	 */
+	protected Map<String, String> getTreeLabels(String domainOS, String pii, J48 j48classifier,
+												boolean saveDotFile) throws Exception {
 		String tree = j48classifier.graph();
 
 		// Prepare tree for parsing - deal with this \r\n special case
@@ -316,19 +556,12 @@ abstract class Trainer {
 		tree = tree.replace("label=\"\n", "label=\"\\n");
 
 		// Delete previous .dot file and update
-		String dotFilePath = mServerUtils.getTreeDotDir() + domainOS + "_tree.dot";
-		ServerUtils.overwriteFile(dotFilePath, tree);
+		if (saveDotFile)
+			artifacts.write(mServerUtils.getTreeDotDir() + domainOS + "_tree.dot", tree);
 
-        Map<String, String> treeLabels = new HashMap<>();
+		Map<String, String> treeLabels = new HashMap<>();
 		parseTree(treeLabels, tree, pii);
-
-		// Save tree labels
-		if (treeLabels.size() > 0) {
-			jsonDomainOSTreeLabels.put(domainOS, treeLabels);
-			return true;
-		}
-
-		return false;
+		return treeLabels;
 	}
 
 	public static void parseTree(Map<String, String> treeLabels, String tree, String pii) {
@@ -379,6 +612,14 @@ abstract class Trainer {
 	 */
 	protected abstract String getLine(JSONObject packet);
 
+	/**
+	 * Builds the training set from the words counted in the given training data. The training
+	 * set is saved by the caller (see {@link #saveArff(String, Instances)}).
+	 * @param info description of the training data
+	 * @param trData the training data
+	 * @param theta minimum number of occurrences of a word for it to become a feature
+	 * @return the training set
+	 */
 	public abstract Instances populateArff(Info info, TrainingData trData, int theta);
 
 	protected abstract Instance convertObjectToInstance(JSONObject packet, AdsPredictor
@@ -22,40 +22,47 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
 
+import edu.uci.nomoads.prediction.AdsPredictor;
 import weka.core.Instances;
 
 /**
  * Convenience structure for keeping data
  */
 class TrainingData {
-    /** Count of all words, accross entire dataset */
-    public Map<String, Integer> wordCount;
-
-    /** Count of words occurring at a data point. Index of array list is the data point index. */
-    public ArrayList<Map<String, Integer>> trainMatrix;
+    /** Count of words occurring at a data point. Row index is the data point index. Also
+     * counts all words, accross entire dataset (see {@link WordMatrix#getWordCounts()}). */
+    public final WordMatrix trainMatrix;
 
     /** Types of PII contained within the given data point */
     public ArrayList<JSONArray> piiLabels;
 
-    public final JSONObject trFlows;
+    /** The flows of the training data, which may be read from a file on each iteration (see
+     * {@link FlowStream}) */
+    public final Iterable<JSONObject> flows;
     public ArrayList<Integer> adLabels;
 
     /** List of package names at each data point */
     public ArrayList<String> pkgNames;
     public Instances trainingInstances;
 
+    /** Predictor for the classifier trained on this data, see
+     * {@link Trainer#trainForEvaluation(Iterable, TokenCache, int[], boolean,
+     * MetaEvaluationMeasures)} */
+    public AdsPredictor predictor;
+
     public MetaEvaluationMeasures mem;
 
-    public TrainingData(JSONObject trFlows){
-        wordCount = new HashMap<>();
-        trainMatrix = new ArrayList<>();
+    /**
+     * @param flows the flows of the training data
+     * @param vocabulary interns the words of the flows, see {@link Trainer#vocabulary}
+     */
+    public TrainingData(Iterable<JSONObject> flows, Vocabulary vocabulary){
+        trainMatrix = new WordMatrix(vocabulary);
         piiLabels = new ArrayList<>();
         pkgNames = new ArrayList<>();
         mem = new MetaEvaluationMeasures();
         adLabels = new ArrayList<>();
-        this.trFlows = trFlows;
+        this.flows = flows;
     }
 }
@@ -26,22 +26,28 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import edu.uci.nomoads.Util;
 import edu.uci.nomoads.prediction.AdsPredictor;
+import edu.uci.nomoads.prediction.SparseInstanceBuilder;
+import edu.uci.nomoads.prediction.FeatureIndex;
 import weka.core.Attribute;
 import weka.core.Instance;
 import weka.core.Instances;
-import weka.core.SparseInstance;
 
 /**
  * Trains on URL + Headers + Apps
  */
 class UrlHeadersAppsAdsTrainer extends UrlHeadersAdsTrainer {
 
-    protected ArrayList<String> pkgNamesList;
+    /** Values of the package name attribute of each classifier. Kept per classifier since
+     * {@link #pkgNames} keeps growing, and classifiers may be trained on several threads. */
+    protected final Map<String, NominalValues> pkgNamesLists = new ConcurrentHashMap<>();
+
+    /** Stands for all package names that the classifier was not trained on */
+    protected static final String UNKNOWN_PKG_NAME = "unknown_pkg_name";
 
     public UrlHeadersAppsAdsTrainer(ServerUtils serverUtils) { super(serverUtils); }
 
@@ -51,37 +57,52 @@ class UrlHeadersAppsAdsTrainer extends UrlHeadersAdsTrainer {
 
         Map<String, Integer> fi = new HashMap<String, Integer>();
         ArrayList<Attribute> attributes = new ArrayList<Attribute>();
-        int index = addWordsToFeatureSet(fi, attributes, 0, trData.wordCount);
+        int index = addWordsToFeatureSet(fi, attributes, 0, trData.trainMatrix.getWordCounts());
 
-        // Convert all possible apps to list
-        pkgNamesList = new ArrayList<>(pkgNames);
-        attributes.add(new Attribute(JsonKeyDef.F_KEY_PKG_NAME, pkgNamesList));
+        NominalValues pkgNamesList = addPkgNamesList(info.domainOS);
+        attributes.add(pkgNamesList.toAttribute(JsonKeyDef.F_KEY_PKG_NAME));
         fi.put(JsonKeyDef.F_KEY_PKG_NAME, index);
 
         addClassLabels(attributes);
 
         // Populate Data Points
-        Iterator<Map<String, Integer>> all = trData.trainMatrix.iterator();
-        int count = 0;
+        WordMatrix words = trData.trainMatrix;
+        int[] wordAttributes = words.getAttributes(fi);
         Instances trainingInstances = new Instances("Rel", attributes, 0);
         trainingInstances.setClassIndex(trainingInstances.numAttributes() - 1);
-        while (all.hasNext()) {
-            double[] instanceValue = prepopulateDataPointWithWords(fi, all.next(), attributes
-                    .size());
+        SparseInstanceBuilder instanceValue = new SparseInstanceBuilder(attributes.size());
+        for (int count = 0; count < words.numRows(); count++) {
+            prepopulateDataPointWithWords(wordAttributes, words, count, instanceValue);
 
             // Add package name attribute
-            instanceValue[fi.get(JsonKeyDef.F_KEY_PKG_NAME)] =
-                    pkgNamesList.indexOf(trData.pkgNames.get(count));
+            instanceValue.set(fi.get(JsonKeyDef.F_KEY_PKG_NAME),
+                    pkgNamesList.indexOf(trData.pkgNames.get(count), UNKNOWN_PKG_NAME));
 
             Instance data = finalizeInstance(trData.adLabels.get(count), instanceValue, attributes);
             trainingInstances.add(data);
-            count++;
         }
 
-        saveArff(info.domainOS, trainingInstances);
         return trainingInstances;
     }
 
+    /**
+     * Builds the values of the package name attribute of the given classifier from all package
+     * names seen so far, and keeps them for converting its test flows
+     * @param domainOS name of the classifier
+     * @return the values of the attribute
+     */
+    protected NominalValues addPkgNamesList(String domainOS) {
+        // Convert all possible apps to list
+        ArrayList<String> pkgNamesValues = new ArrayList<>(pkgNames);
+
+        // Add an unknown package name for flows without one, and for apps that only appear in
+        // the testing set:
+        pkgNamesValues.add(UNKNOWN_PKG_NAME);
+        NominalValues pkgNamesList = new NominalValues(pkgNamesValues);
+        pkgNamesLists.put(domainOS, pkgNamesList);
+        return pkgNamesList;
+    }
+
     @Override
     protected Instance convertObjectToInstance(JSONObject packet, AdsPredictor predictor, String
             domainOS) {
@@ -91,7 +112,7 @@ class UrlHeadersAppsAdsTrainer extends UrlHeadersAdsTrainer {
         byte[] lineBytes = line.getBytes(Charset.forName("UTF-8"));
         ByteBuffer packetBuffer = ByteBuffer.wrap(lineBytes);
 
-        ArrayList<String> features = predictor.getFeatures(packetBuffer);
+        ArrayList<String> features = predictor.getFeatures(packetBuffer, domainOS);
 
 
 /*        JSONArray pii = (JSONArray) packet.get(JsonKeyDef.F_KEY_PII_TYPES);
@@ -99,23 +120,21 @@ class UrlHeadersAppsAdsTrainer extends UrlHeadersAdsTrainer {
             features.add((String) piiObj);*/
 
 
-        Map<String, Integer> fi = predictor.getClassifierFeatures(domainOS);
+        FeatureIndex fi = predictor.getClassifierFeatures(domainOS);
         int numAttributes = fi.size();
-        double instanceValues[] = new double[numAttributes];
-        for (int i = 0; i < numAttributes; i++) {
-            instanceValues[i] = 0;
-        }
-
+        SparseInstanceBuilder instanceValues = new SparseInstanceBuilder(numAttributes);
         for (String feature : features) {
-            if (fi.containsKey(feature)) {
-                instanceValues[fi.get(feature)]++;
+            int attrIdx = fi.indexOf(feature);
+            if (attrIdx != FeatureIndex.NOT_FOUND) {
+                instanceValues.add(attrIdx, 1);
             }
         }
 
-        instanceValues[fi.get(JsonKeyDef.F_KEY_PKG_NAME)] =
-                pkgNamesList.indexOf(packet.get(JsonKeyDef.F_KEY_PKG_NAME));
+        instanceValues.set(fi.indexOf(JsonKeyDef.F_KEY_PKG_NAME), pkgNamesLists.get(domainOS)
+                .indexOf(packet.get(JsonKeyDef.F_KEY_PKG_NAME), UNKNOWN_PKG_NAME));
 
-        instanceValues[numAttributes - 1] = ServerUtils.getIntFromJSONObject(packet, jsonKeyLabel);
-        return new SparseInstance(1.0, instanceValues);
+        instanceValues.set(numAttributes - 1,
+                ServerUtils.getIntFromJSONObject(packet, jsonKeyLabel));
+        return instanceValues.build(1.0);
     }
 }
@@ -27,15 +27,15 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 
 import edu.uci.nomoads.Util;
 import edu.uci.nomoads.prediction.AdsPredictor;
+import edu.uci.nomoads.prediction.SparseInstanceBuilder;
+import edu.uci.nomoads.prediction.FeatureIndex;
 import weka.core.Attribute;
 import weka.core.Instance;
 import weka.core.Instances;
-import weka.core.SparseInstance;
 
 /**
  * Trains on everything: URL + headers + apps + pii
@@ -52,7 +52,7 @@ class UrlHeadersAppsPiiAdsTrainer extends UrlHeadersAppsAdsTrainer {
 
         Map<String, Integer> fi = new HashMap<String, Integer>();
         ArrayList<Attribute> attributes = new ArrayList<Attribute>();
-        int index = addWordsToFeatureSet(fi, attributes, 0, trData.wordCount);
+        int index = addWordsToFeatureSet(fi, attributes, 0, trData.trainMatrix.getWordCounts());
 
         // Now add all PII labels as possible features
         for (String piiLabel : piisSet) {
@@ -62,37 +62,34 @@ class UrlHeadersAppsPiiAdsTrainer extends UrlHeadersAppsAdsTrainer {
             index++;
         }
 
-        // Convert all possible apps to list
-        pkgNamesList = new ArrayList<>(pkgNames);
-        attributes.add(new Attribute(JsonKeyDef.F_KEY_PKG_NAME, pkgNamesList));
+        NominalValues pkgNamesList = addPkgNamesList(info.domainOS);
+        attributes.add(pkgNamesList.toAttribute(JsonKeyDef.F_KEY_PKG_NAME));
         fi.put(JsonKeyDef.F_KEY_PKG_NAME, index);
 
         addClassLabels(attributes);
 
         // Populate Data Points
-        Iterator<Map<String, Integer>> all = trData.trainMatrix.iterator();
-        int count = 0;
+        WordMatrix words = trData.trainMatrix;
+        int[] wordAttributes = words.getAttributes(fi);
         Instances trainingInstances = new Instances("Rel", attributes, 0);
         trainingInstances.setClassIndex(trainingInstances.numAttributes() - 1);
-        while (all.hasNext()) {
-            double[] instanceValue = prepopulateDataPointWithWords(fi, all.next(), attributes
-                    .size());
+        SparseInstanceBuilder instanceValue = new SparseInstanceBuilder(attributes.size());
+        for (int count = 0; count < words.numRows(); count++) {
+            prepopulateDataPointWithWords(wordAttributes, words, count, instanceValue);
 
             // Add PII attributes
             for (Object piiObj : trData.piiLabels.get(count)) {
-                instanceValue[fi.get(piiObj)] = 1; // Set as 1 when PII is present
+                instanceValue.set(fi.get(piiObj), 1); // Set as 1 when PII is present
             }
 
             // Add package name attribute
-            instanceValue[fi.get(JsonKeyDef.F_KEY_PKG_NAME)] =
-                    pkgNamesList.indexOf(trData.pkgNames.get(count));
+            instanceValue.set(fi.get(JsonKeyDef.F_KEY_PKG_NAME),
+                    pkgNamesList.indexOf(trData.pkgNames.get(count), UNKNOWN_PKG_NAME));
 
             Instance data = finalizeInstance(trData.adLabels.get(count), instanceValue, attributes);
             trainingInstances.add(data);
-            count++;
         }
 
-        saveArff(info.domainOS, trainingInstances);
         return trainingInstances;
     }
 
@@ -105,7 +102,7 @@ class UrlHeadersAppsPiiAdsTrainer extends UrlHeadersAppsAdsTrainer {
         byte[] lineBytes = line.getBytes(Charset.forName("UTF-8"));
         ByteBuffer packetBuffer = ByteBuffer.wrap(lineBytes);
 
-        ArrayList<String> features = predictor.getFeatures(packetBuffer);
+        ArrayList<String> features = predictor.getFeatures(packetBuffer, domainOS);
 
 
         JSONArray pii = (JSONArray) packet.get(JsonKeyDef.F_KEY_PII_TYPES);
@@ -113,24 +110,22 @@ class UrlHeadersAppsPiiAdsTrainer extends UrlHeadersAppsAdsTrainer {
             features.add((String) piiObj);
 
 
-        Map<String, Integer> fi = predictor.getClassifierFeatures(domainOS);
+        FeatureIndex fi = predictor.getClassifierFeatures(domainOS);
         int numAttributes = fi.size();
-        double instanceValues[] = new double[numAttributes];
-        for (int i = 0; i < numAttributes; i++) {
-            instanceValues[i] = 0;
-        }
-
+        SparseInstanceBuilder instanceValues = new SparseInstanceBuilder(numAttributes);
         for (String feature : features) {
-            if (fi.containsKey(feature)) {
-                instanceValues[fi.get(feature)]++;
+            int attrIdx = fi.indexOf(feature);
+            if (attrIdx != FeatureIndex.NOT_FOUND) {
+                instanceValues.add(attrIdx, 1);
             }
         }
 
-        instanceValues[fi.get(JsonKeyDef.F_KEY_PKG_NAME)] =
-                pkgNamesList.indexOf(packet.get(JsonKeyDef.F_KEY_PKG_NAME));
+        instanceValues.set(fi.indexOf(JsonKeyDef.F_KEY_PKG_NAME), pkgNamesLists.get(domainOS)
+                .indexOf(packet.get(JsonKeyDef.F_KEY_PKG_NAME), UNKNOWN_PKG_NAME));
 
-        instanceValues[numAttributes - 1] = ServerUtils.getIntFromJSONObject(packet, jsonKeyLabel);
-        return new SparseInstance(1.0, instanceValues);
+        instanceValues.set(numAttributes - 1,
+                ServerUtils.getIntFromJSONObject(packet, jsonKeyLabel));
+        return instanceValues.build(1.0);
     }
 
 }
@@ -27,11 +27,11 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 
 import edu.uci.nomoads.Util;
 import edu.uci.nomoads.prediction.AdsPredictor;
+import edu.uci.nomoads.prediction.SparseInstanceBuilder;
 import weka.core.Attribute;
 import weka.core.Instance;
 import weka.core.Instances;
@@ -52,7 +52,7 @@ class UrlHeadersPiiAdsTrainer extends UrlHeadersAdsTrainer {
 
         Map<String, Integer> fi = new HashMap<String, Integer>();
         ArrayList<Attribute> attributes = new ArrayList<Attribute>();
-        int index = addWordsToFeatureSet(fi, attributes, 0, trData.wordCount);
+        int index = addWordsToFeatureSet(fi, attributes, 0, trData.trainMatrix.getWordCounts());
 
         // Now add all PII labels as possible features
         for (String piiLabel : piisSet) {
@@ -65,25 +65,23 @@ class UrlHeadersPiiAdsTrainer extends UrlHeadersAdsTrainer {
         addClassLabels(attributes);
 
         // Populate Data Points
-        Iterator<Map<String, Integer>> all = trData.trainMatrix.iterator();
-        int count = 0;
+        WordMatrix words = trData.trainMatrix;
+        int[] wordAttributes = words.getAttributes(fi);
         Instances trainingInstances = new Instances("Rel", attributes, 0);
         trainingInstances.setClassIndex(trainingInstances.numAttributes() - 1);
-        while (all.hasNext()) {
-            double[] instanceValue = prepopulateDataPointWithWords(fi, all.next(), attributes
-                    .size());
+        SparseInstanceBuilder instanceValue = new SparseInstanceBuilder(attributes.size());
+        for (int count = 0; count < words.numRows(); count++) {
+            prepopulateDataPointWithWords(wordAttributes, words, count, instanceValue);
 
             // Add PII attributes
             for (Object piiObj : trData.piiLabels.get(count)) {
-                instanceValue[fi.get(piiObj)]++; // Count occurrences of pii
+                instanceValue.add(fi.get(piiObj), 1); // Count occurrences of pii
             }
 
             Instance data = finalizeInstance(trData.adLabels.get(count), instanceValue, attributes);
             trainingInstances.add(data);
-            count++;
         }
 
-        saveArff(info.domainOS, trainingInstances);
         return trainingInstances;
     }
 
@@ -95,7 +93,7 @@ class UrlHeadersPiiAdsTrainer extends UrlHeadersAdsTrainer {
         byte[] lineBytes = line.getBytes(Charset.forName("UTF-8"));
         ByteBuffer packetBuffer = ByteBuffer.wrap(lineBytes);
 
-        ArrayList<String> features = predictor.getFeatures(packetBuffer);
+        ArrayList<String> features = predictor.getFeatures(packetBuffer, domainOS);
 
         JSONArray pii = (JSONArray) packet.get(JsonKeyDef.F_KEY_PII_TYPES);
         for (Object piiObj : pii)
@@ -23,10 +23,10 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 
 import edu.uci.nomoads.prediction.AdsPredictor;
+import edu.uci.nomoads.prediction.SparseInstanceBuilder;
 import weka.core.Attribute;
 import weka.core.Instance;
 import weka.core.Instances;
@@ -46,7 +46,7 @@ class UrlPathAdsTrainer extends Trainer {
      * @param attributes feature set in Weka format
      * @param startingIdx the current index of the feature set
      * @param wordCount structure containing the word and the number of times it appears (see
-     * {@link TrainingData#wordCount})
+     * {@link WordMatrix#getWordCounts()})
      * @return the new index of the feature set
      */
     protected int addWordsToFeatureSet(Map<String, Integer> fi, ArrayList<Attribute> attributes,
@@ -67,29 +67,19 @@ class UrlPathAdsTrainer extends Trainer {
     }
 
     /**
-     * Creates a double array that contains word-features found at a given data point
-     * @param fi structure containing features
-     * @param wordsMap words and their frequency at a given data point
-     * @param attrSize the attributes size
-     * @return double array populated with word-features
+     * Sets the word-features found at a given data point
+     * @param wordAttributes attribute of each word, see {@link WordMatrix#getAttributes(Map)}
+     * @param words words and their frequency at all data points
+     * @param row index of the data point
+     * @param instanceValue values of the data point, populated with word-features
      */
-    protected double[] prepopulateDataPointWithWords(Map<String, Integer> fi, Map<String, Integer>
-            wordsMap, int attrSize) {
-
-        double[] instanceValue = new double[attrSize];
-        for (int i = 0; i < attrSize - 1; i++) {
-            instanceValue[i] = 0;
-        }
-
-        for (Map.Entry<String, Integer> entry : wordsMap.entrySet()) {
-            if (fi.containsKey(entry.getKey())) {
-                int i = fi.get(entry.getKey());
-                int val = entry.getValue();
-                instanceValue[i] = val;
-            }
+    protected void prepopulateDataPointWithWords(int[] wordAttributes, WordMatrix words,
+                                                 int row, SparseInstanceBuilder instanceValue) {
+        for (int entry = words.rowStart(row); entry < words.rowEnd(row); entry++) {
+            int i = wordAttributes[words.column(entry)];
+            if (i != Vocabulary.NOT_FOUND)
+                instanceValue.set(i, words.wordCount(entry));
         }
-
-        return instanceValue;
     }
 
     @Override
@@ -98,25 +88,23 @@ class UrlPathAdsTrainer extends Trainer {
 
         Map<String, Integer> fi = new HashMap<String, Integer>();
         ArrayList<Attribute> attributes = new ArrayList<Attribute>();
-        addWordsToFeatureSet(fi, attributes, 0, trData.wordCount);
+        addWordsToFeatureSet(fi, attributes, 0, trData.trainMatrix.getWordCounts());
 
         addClassLabels(attributes);
 
         // Populate Data Points
-        Iterator<Map<String, Integer>> all = trData.trainMatrix.iterator();
-        int count = 0;
+        WordMatrix words = trData.trainMatrix;
+        int[] wordAttributes = words.getAttributes(fi);
         Instances trainingInstances = new Instances("Rel", attributes, 0);
         trainingInstances.setClassIndex(trainingInstances.numAttributes() - 1);
-        while (all.hasNext()) {
-            double[] instanceValue = prepopulateDataPointWithWords(fi, all.next(), attributes
-                    .size());
+        SparseInstanceBuilder instanceValue = new SparseInstanceBuilder(attributes.size());
+        for (int count = 0; count < words.numRows(); count++) {
+            prepopulateDataPointWithWords(wordAttributes, words, count, instanceValue);
 
             Instance data = finalizeInstance(trData.adLabels.get(count), instanceValue, attributes);
             trainingInstances.add(data);
-            count++;
         }
 
-        saveArff(info.domainOS, trainingInstances);
         return trainingInstances;
     }
 
@@ -127,9 +115,7 @@ class UrlPathAdsTrainer extends Trainer {
         byte[] lineBytes = line.getBytes(Charset.forName("UTF-8"));
         ByteBuffer packetBuffer = ByteBuffer.wrap(lineBytes);
 
-        ArrayList<String> features = predictor.getFeatures(packetBuffer);
-
-        return predictor.getInstance(features, domainOS,
+        return predictor.getInstance(packetBuffer, domainOS,
                 ServerUtils.getIntFromJSONObject(packet, jsonKeyLabel));
     }
 
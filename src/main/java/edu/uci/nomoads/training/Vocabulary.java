@@ -0,0 +1,91 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.training;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives each distinct word of the training flows an int id, so that flows can be stored as
+ * arrays of ids (see {@link WordMatrix}) that share a single copy of each word. Ids are dense
+ * and start at 0, so they can index arrays. A single vocabulary is shared by all classifiers of
+ * a {@link Trainer}, which may be trained on several threads, so it is thread-safe.
+ */
+final class Vocabulary {
+    /** Returned by {@link #idOf(String)} for words that are not in the vocabulary */
+    static final int NOT_FOUND = -1;
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+
+    /** Words by id. Only written while holding the lock on {@code this}, and replaced with a
+     * larger copy when full. */
+    private volatile String[] words = new String[1024];
+    private volatile int size = 0;
+
+    /**
+     * Adds the word to the vocabulary, unless it is there already
+     * @param word the word to add
+     * @return the id of the word
+     */
+    int intern(String word) {
+        Integer id = ids.get(word);
+        if (id != null)
+            return id;
+
+        synchronized (this) {
+            id = ids.get(word);
+            if (id != null)
+                return id;
+
+            String[] current = words;
+            if (size == current.length)
+                current = Arrays.copyOf(current, size * 2);
+            current[size] = word;
+            words = current;
+
+            // Publish the word only once it can be looked up by its id
+            id = size++;
+            ids.put(word, id);
+            return id;
+        }
+    }
+
+    /**
+     * @param word the word to look up
+     * @return the id of the word, or {@link #NOT_FOUND} if it was never added
+     */
+    int idOf(String word) {
+        Integer id = ids.get(word);
+        return id == null ? NOT_FOUND : id;
+    }
+
+    /**
+     * @param id id returned by {@link #intern(String)}
+     * @return the word with the given id
+     */
+    String word(int id) {
+        return words[id];
+    }
+
+    /**
+     * @return number of words in the vocabulary, which is also one more than the largest id
+     */
+    int size() {
+        return size;
+    }
+}
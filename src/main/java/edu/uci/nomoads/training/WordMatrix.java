@@ -0,0 +1,198 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.training;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Words occurring at each data point of a training set, stored as compressed sparse rows: the
+ * entries from {@link #rowStart(int)} to {@link #rowEnd(int)} hold the words of a row and how
+ * often each occurs. Takes a fraction of the memory of a map per data point. Also keeps how
+ * often each candidate feature word occurs across the entire dataset (see
+ * {@link #getWordCounts()}).
+ * <p>
+ * Words are added by their {@link Vocabulary} ids, which are shared by all classifiers. Each
+ * distinct word of the matrix is also given a column, numbered from 0, so that per-word arrays
+ * (see {@link #getAttributes(Map)}) are sized to the words of this dataset rather than to the
+ * entire vocabulary.
+ * </p>
+ */
+class WordMatrix {
+    /** Interns the words of all rows */
+    final Vocabulary vocabulary;
+
+    /** Index of the first entry of each row, followed by the number of entries */
+    private final IntList rowStarts = new IntList();
+    private final IntList columns = new IntList();
+    private final IntList wordCounts = new IntList();
+
+    /** Column of each word id, and the word id of each column */
+    private final IntIntMap columnsByWord = new IntIntMap();
+    private final IntList columnWords = new IntList();
+
+    /** Columns of the words counted with {@link #count(int, int)}, in the order first counted */
+    private final IntList countedColumns = new IntList();
+
+    /** How often each counted word occurs across the entire dataset, indexed by column */
+    private int[] totals = new int[16];
+
+    /**
+     * @param vocabulary interns the words of the rows
+     */
+    WordMatrix(Vocabulary vocabulary) {
+        this.vocabulary = vocabulary;
+        rowStarts.add(0);
+    }
+
+    /**
+     * Adds a word to the current row
+     * @param wordId id of the word (see {@link Vocabulary#intern(String)})
+     * @param count how often the word occurs at the data point
+     */
+    void add(int wordId, int count) {
+        columns.add(columnOf(wordId));
+        wordCounts.add(count);
+    }
+
+    /**
+     * Counts occurrences of a candidate feature word towards its total across the dataset
+     * @param wordId id of the word
+     * @param count how often the word occurs at a data point
+     */
+    void count(int wordId, int count) {
+        int column = columnOf(wordId);
+        if (column >= totals.length)
+            totals = Arrays.copyOf(totals, totals.length * 2);
+        if (totals[column] == 0)
+            countedColumns.add(column);
+        totals[column] += count;
+    }
+
+    /**
+     * @param wordId id of a word
+     * @return the column of the word, which is added as a new column if the word is new
+     */
+    private int columnOf(int wordId) {
+        int column = columnsByWord.putIfAbsent(wordId, columnWords.size());
+        if (column == columnWords.size())
+            columnWords.add(wordId);
+        return column;
+    }
+
+    /**
+     * Ends the current row. Words added afterwards go to the next row.
+     */
+    void endRow() {
+        rowStarts.add(columns.size());
+    }
+
+    /**
+     * @return the number of rows, that is data points
+     */
+    int numRows() {
+        return rowStarts.size() - 1;
+    }
+
+    /**
+     * @param row index of the row
+     * @return index of the first entry of the row
+     */
+    int rowStart(int row) {
+        return rowStarts.get(row);
+    }
+
+    /**
+     * @param row index of the row
+     * @return index after the last entry of the row
+     */
+    int rowEnd(int row) {
+        return rowStarts.get(row + 1);
+    }
+
+    /**
+     * @param entry index of the entry, see {@link #rowStart(int)}
+     * @return column of the word of the entry
+     */
+    int column(int entry) {
+        return columns.get(entry);
+    }
+
+    /**
+     * @param entry index of the entry, see {@link #rowStart(int)}
+     * @return id of the word of the entry
+     */
+    int wordId(int entry) {
+        return columnWords.get(columns.get(entry));
+    }
+
+    /**
+     * @param entry index of the entry, see {@link #rowStart(int)}
+     * @return how often the word of the entry occurs at its data point
+     */
+    int wordCount(int entry) {
+        return wordCounts.get(entry);
+    }
+
+    /**
+     * @return the number of distinct words counted with {@link #count(int, int)}
+     */
+    int numCountedWords() {
+        return countedColumns.size();
+    }
+
+    /**
+     * Builds a map of each counted word to how often it occurs across the dataset. The map is a
+     * {@link HashMap}, so it iterates in hash order, not in the order words were counted. Words
+     * are put into it in the order they were first counted, the same order the per-dataset map
+     * this replaces received them. Its iteration order, and thus the order of attributes built
+     * from it, is therefore the same on every run and matches that of earlier builds.
+     * @return count of all candidate feature words, across entire dataset
+     */
+    Map<String, Integer> getWordCounts() {
+        Map<String, Integer> wordCount = new HashMap<>();
+        for (int i = 0; i < countedColumns.size(); i++) {
+            int column = countedColumns.get(i);
+            wordCount.put(vocabulary.word(columnWords.get(column)), totals[column]);
+        }
+        return wordCount;
+    }
+
+    /**
+     * Maps word ids to the attributes of a feature set, so that rows can be converted to
+     * instances without looking up each word by name
+     * @param fi maps features to the indexes of their attributes
+     * @return the attribute of each word of the rows, indexed by column (see
+     * {@link #column(int)}), or {@link Vocabulary#NOT_FOUND} for words that are not features
+     */
+    int[] getAttributes(Map<String, Integer> fi) {
+        int[] attributes = new int[columnWords.size()];
+        Arrays.fill(attributes, Vocabulary.NOT_FOUND);
+        for (Map.Entry<String, Integer> feature : fi.entrySet()) {
+            int wordId = vocabulary.idOf(feature.getKey());
+            if (wordId == Vocabulary.NOT_FOUND)
+                continue;
+            // Words of other classifiers are not in any of the rows
+            int column = columnsByWord.get(wordId);
+            if (column != IntIntMap.NOT_FOUND)
+                attributes[column] = feature.getValue();
+        }
+        return attributes;
+    }
+}
@@ -0,0 +1,586 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uci.nomoads.prediction;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.uci.nomoads.Util;
+import weka.classifiers.trees.J48;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link AdsPredictor} on models trained on generated packets
+ */
+public class AdsPredictorTest {
+    /** Features of the generated models, some of which overlap */
+    static final String[] TOKENS = {"/ads/", "adid=", "ads", "track", "&uid=", "banner",
+            "host: ", "cdn", "img", "/v2/", "imp", "click"};
+
+    private static final String CLASS_NAME = J48.class.toString().substring(6);
+
+    private File experimentsDir;
+
+    @Before
+    public void setUp() throws Exception {
+        experimentsDir = File.createTempFile("nomoads", "");
+        assertTrue(experimentsDir.delete());
+        assertTrue(experimentsDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        deleteDir(experimentsDir);
+    }
+
+    /**
+     * Classifies the same packets from many threads while known PII keep being replaced, and
+     * makes sure every thread gets the same results as Weka gives on a single thread
+     */
+    @Test
+    public void testConcurrentClassification() throws Exception {
+        Util util = createModels(experimentsDir, new Random(1), false,
+                Predictor.GENERAL_CLASSIFIER, "unityads.unity3d.com_android");
+
+        for (DPIType dpiType : DPIType.values()) {
+            final AdsPredictor predictor = new AdsPredictor(util, dpiType);
+            Random random = new Random(2);
+            final List<byte[]> packets = new ArrayList<>();
+            final List<String> classifiers = new ArrayList<>();
+            final int[] expected = new int[2000];
+            int numAds = 0;
+            for (int i = 0; i < expected.length; i++) {
+                packets.add(createPacket(random).getBytes(Charset.forName("UTF-8")));
+                classifiers.add(random.nextBoolean() ? "unityads.unity3d.com_android" :
+                        "unknown.com_android");
+                expected[i] = classifyWithWeka(predictor, packets.get(i), classifiers.get(i));
+                numAds += expected[i];
+            }
+            // Make sure the trees are not trivial
+            assertTrue(numAds > 0 && numAds < expected.length);
+
+            final AtomicBoolean done = new AtomicBoolean(false);
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    int n = 0;
+                    while (!done.get())
+                        predictor.addKnownPII(Collections.singletonList("pii" + (n++)));
+                }
+            };
+            writer.start();
+
+            int numThreads = 8;
+            ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < numThreads; t++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int mismatches = 0;
+                        for (int round = 0; round < 5; round++) {
+                            for (int i = 0; i < packets.size(); i++) {
+                                ByteBuffer packet = ByteBuffer.wrap(packets.get(i));
+                                if (predictor.classify(packet, classifiers.get(i)) != expected[i])
+                                    mismatches++;
+                            }
+                        }
+                        return mismatches;
+                    }
+                }));
+            }
+
+            for (Future<Integer> result : results)
+                assertEquals("Mismatches with " + dpiType, 0, (int) result.get());
+            executor.shutdown();
+            done.set(true);
+            writer.join();
+        }
+    }
+
+    /**
+     * Retrains one of the models and makes sure that reloading replaces only that model, while
+     * packets are being classified
+     */
+    @Test
+    public void testReload() throws Exception {
+        final String domainOS = "unityads.unity3d.com_android";
+        Util util = createModels(experimentsDir, new Random(1), false,
+                Predictor.GENERAL_CLASSIFIER, domainOS);
+        final AdsPredictor predictor = new AdsPredictor(util, DPIType.AHO_CORASICK_BYTES);
+        ModelSnapshot before = predictor.getSnapshot();
+
+        final byte[] packet = createPacket(new Random(3)).getBytes(Charset.forName("UTF-8"));
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (!done.get())
+                        predictor.classify(ByteBuffer.wrap(packet), domainOS);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    failed.set(true);
+                }
+            }
+        };
+        reader.start();
+
+        // Make sure the rewritten file looks different even on coarse file systems
+        Thread.sleep(1000);
+        createModels(experimentsDir, new Random(1), true, domainOS);
+        predictor.reload();
+        done.set(true);
+        reader.join();
+        assertFalse(failed.get());
+
+        ModelSnapshot after = predictor.getSnapshot();
+        assertNotSame(before, after);
+        assertSame(before.domainOSModel.get(Predictor.GENERAL_CLASSIFIER),
+                after.domainOSModel.get(Predictor.GENERAL_CLASSIFIER));
+        assertNotSame(before.domainOSModel.get(domainOS), after.domainOSModel.get(domainOS));
+
+        Random random = new Random(4);
+        int numChanged = 0;
+        for (int i = 0; i < 500; i++) {
+            byte[] bytes = createPacket(random).getBytes(Charset.forName("UTF-8"));
+            int label = predictor.classify(ByteBuffer.wrap(bytes), domainOS);
+            assertEquals(classifyWithWeka(predictor, bytes, domainOS), label);
+            if (label != classifyWithWeka(predictor, bytes, Predictor.GENERAL_CLASSIFIER))
+                numChanged++;
+        }
+        assertTrue(numChanged > 0);
+    }
+
+    /**
+     * Makes sure that DPI implementations other than the {@link DPIType}s can be plugged in
+     */
+    @Test
+    public void testCustomDpiFactory() throws Exception {
+        Util util = createModels(experimentsDir, new Random(1), false,
+                Predictor.GENERAL_CLASSIFIER, "unityads.unity3d.com_android");
+        final AtomicInteger numCreated = new AtomicInteger();
+        AdsPredictor custom = new AdsPredictor(util, new DPIInterface.Factory() {
+            @Override
+            public DPIInterface newInstance() {
+                numCreated.incrementAndGet();
+                return new AhoCorasickDPI();
+            }
+        });
+        AdsPredictor server = new AdsPredictor(util);
+        assertTrue(numCreated.get() > 0);
+        assertTrue(custom.getDpiInterface("unityads.unity3d.com_android") instanceof
+                AhoCorasickDPI);
+
+        Random random = new Random(2);
+        for (int i = 0; i < 200; i++) {
+            byte[] packet = createPacket(random).getBytes(Charset.forName("UTF-8"));
+            String domainOS = random.nextBoolean() ? "unityads.unity3d.com_android" :
+                    "unknown.com_android";
+            assertEquals(server.classify(ByteBuffer.wrap(packet), domainOS),
+                    custom.classify(ByteBuffer.wrap(packet), domainOS));
+        }
+    }
+
+    /**
+     * Makes sure that models written into the model directory are picked up by the watcher
+     */
+    @Test
+    public void testWatchModelDir() throws Exception {
+        Util util = createModels(experimentsDir, new Random(1), false,
+                Predictor.GENERAL_CLASSIFIER);
+        AdsPredictor predictor = new AdsPredictor(util);
+        assertEquals(1, predictor.getSnapshot().getClassifierNames().size());
+
+        ModelWatcher watcher = predictor.watchModelDir(200);
+        try {
+            createModels(experimentsDir, new Random(2), false, Predictor.GENERAL_CLASSIFIER,
+                    "unityads.unity3d.com_android");
+            long deadline = System.currentTimeMillis() + 20000;
+            while (predictor.getSnapshot().getClassifierNames().size() < 2 &&
+                    System.currentTimeMillis() < deadline)
+                Thread.sleep(50);
+        } finally {
+            watcher.close();
+        }
+        assertEquals(2, predictor.getSnapshot().getClassifierNames().size());
+        assertNotNull(predictor.getTreeEvaluator("unityads.unity3d.com_android"));
+    }
+
+    /**
+     * Makes sure that predictors using the model bundle are only reloaded once a new bundle is
+     * written, since training writes it after all other outputs
+     */
+    @Test
+    public void testWatchModelBundle() throws Exception {
+        Util util = createModels(experimentsDir, new Random(1), false,
+                Predictor.GENERAL_CLASSIFIER);
+        AdsPredictor eager = new AdsPredictor(util);
+        ModelBundle.Writer writer = new ModelBundle.Writer();
+        assertTrue(writer.add(Predictor.GENERAL_CLASSIFIER,
+                (J48) eager.getClassifierModel(Predictor.GENERAL_CLASSIFIER),
+                eager.getClassifierInstances(Predictor.GENERAL_CLASSIFIER),
+                eager.getSnapshot().treeLabels.get(Predictor.GENERAL_CLASSIFIER)));
+        writer.write(util.getModelBundleFile());
+
+        AdsPredictor predictor = new AdsPredictor(util, new PredictorOptions()
+                .setUseModelBundle(true));
+        assertEquals(1, predictor.getSnapshot().getClassifierNames().size());
+
+        ModelWatcher watcher = predictor.watchModelDir(200);
+        try {
+            createModels(experimentsDir, new Random(2), false, "unityads.unity3d.com_android");
+            Thread.sleep(1000);
+            assertEquals(1, predictor.getSnapshot().getClassifierNames().size());
+
+            // Models that are not in the bundle are loaded from their own files
+            writer.write(util.getModelBundleFile());
+            long deadline = System.currentTimeMillis() + 20000;
+            while (predictor.getSnapshot().getClassifierNames().size() < 2 &&
+                    System.currentTimeMillis() < deadline)
+                Thread.sleep(50);
+        } finally {
+            watcher.close();
+        }
+        assertEquals(2, predictor.getSnapshot().getClassifierNames().size());
+    }
+
+    /**
+     * Makes sure that models loaded on first use give the same results as models loaded up
+     * front, and that the cache stays within its capacity
+     */
+    @Test
+    public void testLazyLoading() throws Exception {
+        String[] classifiers = {"a.com_android", "b.com_android", "c.com_android"};
+        createModels(experimentsDir, new Random(1), false, Predictor.GENERAL_CLASSIFIER);
+        Util util = createModels(experimentsDir, new Random(2), true, classifiers);
+
+        AdsPredictor eager = new AdsPredictor(util, DPIType.AHO_CORASICK_BYTES);
+        AdsPredictor lazy = new AdsPredictor(util, new PredictorOptions()
+                .setDpiType(DPIType.AHO_CORASICK_BYTES).setLazyCacheSize(2));
+        assertNull(eager.getModelCache());
+        ModelCache cache = lazy.getModelCache();
+        assertNotNull(cache);
+        assertEquals(0, cache.size());
+        assertEquals(4, lazy.getSnapshot().getClassifierNames().size());
+        assertTrue(lazy.getSnapshot().domainOSModel.containsKey(Predictor.GENERAL_CLASSIFIER));
+
+        Random random = new Random(3);
+        for (int i = 0; i < 300; i++) {
+            byte[] packet = createPacket(random).getBytes(Charset.forName("UTF-8"));
+            String domainOS = i % 10 == 0 ? "unknown.com_android" :
+                    classifiers[random.nextInt(classifiers.length)];
+            assertEquals(eager.classify(ByteBuffer.wrap(packet), domainOS),
+                    lazy.classify(ByteBuffer.wrap(packet), domainOS));
+            assertEquals(classifyWithWeka(eager, packet, domainOS),
+                    classifyWithWeka(lazy, packet, domainOS));
+        }
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.getMisses() >= classifiers.length);
+        assertTrue(cache.getHits() > 0);
+        assertEquals(cache.getMisses() - cache.size(), cache.getEvictions());
+        assertEquals(0, cache.getFailures());
+
+        // Known PII are also searched for by classifiers that were already loaded
+        lazy.addKnownPII(Collections.singletonList("imei=123"));
+        byte[] packet = "GET /?imei=123".getBytes(Charset.forName("UTF-8"));
+        assertEquals(2, lazy.getClassifierMatcher(classifiers[0]).dpiInterface.search(
+                ByteBuffer.wrap(packet), packet.length).size());
+    }
+
+    @Test
+    public void testModelBundle() throws Exception {
+        String[] classifiers = {Predictor.GENERAL_CLASSIFIER, "a.com_android", "b.com_android"};
+        Util util = createModels(experimentsDir, new Random(4), false, classifiers);
+        AdsPredictor eager = new AdsPredictor(util, DPIType.AHO_CORASICK_BYTES);
+
+        // Leave one classifier out, as if its tree could not be compiled
+        String notBundled = classifiers[2];
+        ModelBundle.Writer writer = new ModelBundle.Writer();
+        for (String domainOS : Arrays.copyOf(classifiers, 2))
+            assertTrue(writer.add(domainOS, (J48) eager.getClassifierModel(domainOS),
+                    eager.getClassifierInstances(domainOS),
+                    eager.getSnapshot().treeLabels.get(domainOS)));
+        writer.write(util.getModelBundleFile());
+
+        AdsPredictor bundled = new AdsPredictor(util, new PredictorOptions()
+                .setDpiType(DPIType.AHO_CORASICK_BYTES).setMaxGeneratedTrees(10)
+                .setUseModelBundle(true));
+        AdsPredictor shared = new AdsPredictor(util, new PredictorOptions()
+                .setDpiType(DPIType.AHO_CORASICK_BYTES).setShareModelBundle(true));
+        ModelSnapshot models = bundled.getSnapshot();
+        assertEquals(classifiers.length, models.domainOSModel.size());
+        assertTrue(models.domainOSModel.get(notBundled) instanceof J48);
+        assertTrue(shared.getClassifierModel(notBundled) instanceof J48);
+        for (String domainOS : classifiers) {
+            boolean inBundle = !domainOS.equals(notBundled);
+            assertEquals(inBundle, models.domainOSModel.get(domainOS) instanceof CompiledTree);
+            assertEquals(inBundle, shared.getClassifierModel(domainOS) instanceof MappedTree);
+            assertEquals(eager.getClassifierFeatures(domainOS),
+                    bundled.getClassifierFeatures(domainOS));
+            assertEquals(eager.getClassifierFeatures(domainOS),
+                    shared.getClassifierFeatures(domainOS));
+            assertEquals(eager.getSnapshot().treeLabels.get(domainOS),
+                    models.treeLabels.get(domainOS));
+        }
+
+        // Features are looked up in the mapped file
+        Map<String, Integer> features = shared.getClassifierFeatures(classifiers[1]);
+        for (Map.Entry<String, Integer> entry : features.entrySet())
+            assertEquals(entry.getValue(), features.get(entry.getKey()));
+        assertNull(features.get("not a feature"));
+
+        Random random = new Random(5);
+        for (int i = 0; i < 300; i++) {
+            byte[] packet = createPacket(random).getBytes(Charset.forName("UTF-8"));
+            String domainOS = i % 10 == 0 ? "unknown.com_android" :
+                    classifiers[random.nextInt(classifiers.length)];
+            int label = eager.classify(ByteBuffer.wrap(packet), domainOS);
+            assertEquals(label, bundled.classify(ByteBuffer.wrap(packet), domainOS));
+            assertEquals(label, shared.classify(ByteBuffer.wrap(packet), domainOS));
+        }
+
+        // Nothing is read or compiled again while the bundle is unchanged
+        bundled.reload();
+        assertSame(models.domainOSModel, bundled.getSnapshot().domainOSModel);
+        for (String domainOS : classifiers)
+            assertSame(models.getTreeEvaluator(domainOS),
+                    bundled.getSnapshot().getTreeEvaluator(domainOS));
+    }
+
+    @Test
+    public void testInMemoryModel() throws Exception {
+        String domainOS = "a.com_android";
+        Util util = createModels(experimentsDir, new Random(8), false,
+                Predictor.GENERAL_CLASSIFIER, domainOS);
+        AdsPredictor loaded = new AdsPredictor(util);
+        AdsPredictor handedOff = new AdsPredictor(domainOS,
+                (J48) loaded.getClassifierModel(domainOS), loaded.getClassifierInstances(domainOS),
+                loaded.getSnapshot().treeLabels.get(domainOS), new PredictorOptions());
+
+        assertEquals(Collections.singleton(domainOS),
+                handedOff.getSnapshot().getClassifierNames());
+        assertEquals(loaded.getClassifierFeatures(domainOS),
+                handedOff.getClassifierFeatures(domainOS));
+
+        Random random = new Random(9);
+        for (int i = 0; i < 100; i++) {
+            byte[] packet = createPacket(random).getBytes(Charset.forName("UTF-8"));
+            assertEquals(loaded.getFeatures(ByteBuffer.wrap(packet), domainOS),
+                    handedOff.getFeatures(ByteBuffer.wrap(packet), domainOS));
+            assertEquals(loaded.classify(ByteBuffer.wrap(packet), domainOS),
+                    handedOff.classify(ByteBuffer.wrap(packet), domainOS));
+        }
+
+        // There are no files to reload the model from
+        try {
+            handedOff.reload();
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testPredictBatch() throws Exception {
+        String[] classifiers = {Predictor.GENERAL_CLASSIFIER, "a.com_android", "b.com_android",
+                "unknown.com_android"};
+        Util util = createModels(experimentsDir, new Random(6), false, classifiers[0],
+                classifiers[1], classifiers[2]);
+        AdsPredictor predictor = new AdsPredictor(util, DPIType.AHO_CORASICK_BYTES);
+
+        Random random = new Random(7);
+        int numPackets = AdsPredictor.BATCH_CHUNK_SIZE * 10 + 3;
+        ByteBuffer[] packets = new ByteBuffer[numPackets];
+        String[] domainOS = new String[numPackets];
+        int[] expected = new int[numPackets];
+        for (int i = 0; i < numPackets; i++) {
+            packets[i] = ByteBuffer.wrap(createPacket(random).getBytes(Charset.forName("UTF-8")));
+            domainOS[i] = classifiers[random.nextInt(classifiers.length)];
+            expected[i] = predictor.classify(packets[i], domainOS[i]);
+        }
+
+        assertArrayEquals(expected, predictor.predictBatch(packets, domainOS));
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertArrayEquals(expected, predictor.predictBatch(packets, domainOS, pool));
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(0, predictor.predictBatch(new ByteBuffer[0], new String[0]).length);
+    }
+
+    /**
+     * Makes sure instances built straight from the feature counts of packets match the ones
+     * built from their features, while the counts are reused across packets and classifiers
+     */
+    @Test
+    public void testGetInstance() throws Exception {
+        String[] classifiers = {Predictor.GENERAL_CLASSIFIER, "a.com_android"};
+        Util util = createModels(experimentsDir, new Random(8), false, classifiers);
+        AdsPredictor predictor = new AdsPredictor(util, DPIType.AHO_CORASICK_BYTES);
+
+        Random random = new Random(9);
+        for (int i = 0; i < 500; i++) {
+            byte[] packet = createPacket(random).getBytes(Charset.forName("UTF-8"));
+            String domainOS = classifiers[random.nextInt(classifiers.length)];
+            int label = random.nextInt(2);
+            List<String> features = predictor.getFeatures(ByteBuffer.wrap(packet), domainOS);
+            assertEquals(predictor.getInstance(features, domainOS, label).toString(),
+                    predictor.getInstance(ByteBuffer.wrap(packet), domainOS, label).toString());
+        }
+    }
+
+    /**
+     * Classifies a packet the old way: by listing its features and letting Weka classify them
+     */
+    static int classifyWithWeka(AdsPredictor predictor, byte[] packet, String domainOS)
+            throws Exception {
+        List<String> features = predictor.getFeatures(ByteBuffer.wrap(packet), domainOS);
+        Instance instance = predictor.getInstance(features, domainOS, 0);
+        instance.setDataset(predictor.getClassifierInstances(domainOS));
+        return (int) ((J48) predictor.getClassifierModel(domainOS)).classifyInstance(instance);
+    }
+
+    /**
+     * Generates a packet made of random {@link #TOKENS}
+     */
+    static String createPacket(Random random) {
+        StringBuilder sb = new StringBuilder("GET /");
+        int numTokens = random.nextInt(8);
+        for (int i = 0; i < numTokens; i++)
+            sb.append(TOKENS[random.nextInt(TOKENS.length)]).append(random.nextInt(10));
+        sb.append(" HTTP/1.1\r\n");
+        return sb.toString();
+    }
+
+    /**
+     * Trains a model for each of the given classifiers on generated packets, and saves it along
+     * with its structure and tree labels the same way training does. Models that already exist
+     * in the given directory are kept.
+     * @param dir the experiments directory
+     * @param random source of packets
+     * @param invertLabels whether to label ads as non-ads and vice versa
+     * @param classifiers names of the classifiers to create
+     * @return utility object pointing to the created models
+     */
+    @SuppressWarnings("unchecked")
+    static Util createModels(File dir, Random random, boolean invertLabels,
+                             String... classifiers) throws Exception {
+        Util util = new Util(dir.getAbsolutePath() + File.separator);
+        // Keep the labels of models that are not being replaced
+        JSONObject treeLabels = new JSONObject();
+        if (new File(util.getTreeLabelsFile()).exists()) {
+            try (FileReader reader = new FileReader(util.getTreeLabelsFile())) {
+                treeLabels = (JSONObject) new JSONParser().parse(reader);
+            }
+        }
+        for (String classifier : classifiers) {
+            ArrayList<Attribute> attributes = new ArrayList<>();
+            JSONObject labels = new JSONObject();
+            for (int i = 0; i < TOKENS.length; i++) {
+                attributes.add(new Attribute(TOKENS[i]));
+                labels.put(i + "", TOKENS[i]);
+            }
+            ArrayList<String> classes = new ArrayList<>();
+            classes.add("0");
+            classes.add("1");
+            attributes.add(new Attribute("label", classes));
+
+            Instances data = new Instances(classifier, attributes, 0);
+            data.setClassIndex(TOKENS.length);
+            for (int n = 0; n < 1000; n++) {
+                String packet = createPacket(random);
+                double[] values = new double[TOKENS.length + 1];
+                for (int i = 0; i < TOKENS.length; i++)
+                    values[i] = countOccurrences(packet, TOKENS[i]);
+                boolean ad = (values[0] > 0 && values[3] == 0) || values[1] > 1 ||
+                        (values[5] > 0 && values[10] > 0);
+                if (random.nextInt(20) == 0 || invertLabels)
+                    ad = !ad;
+                values[TOKENS.length] = ad ? 1 : 0;
+                data.add(new DenseInstance(1.0, values));
+            }
+
+            J48 j48 = new J48();
+            j48.buildClassifier(data);
+            SerializationHelper.write(util.getModelDir() + classifier + "_" + CLASS_NAME +
+                    ".model", j48);
+            try (FileWriter writer = new FileWriter(util.getFeaturesDir() + classifier +
+                    ".arff")) {
+                writer.write(new Instances(data, 0).toString());
+            }
+            treeLabels.put(classifier, labels);
+        }
+
+        try (FileWriter writer = new FileWriter(util.getTreeLabelsFile())) {
+            writer.write(treeLabels.toJSONString());
+        }
+        return util;
+    }
+
+    private static int countOccurrences(String packet, String token) {
+        int count = 0;
+        int i = packet.indexOf(token);
+        while (i != -1) {
+            count++;
+            i = packet.indexOf(token, i + token.length());
+        }
+        return count;
+    }
+
+    static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                deleteDir(file);
+        }
+        dir.delete();
+    }
+}
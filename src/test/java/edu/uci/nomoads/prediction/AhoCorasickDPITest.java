@@ -0,0 +1,182 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uci.nomoads.prediction;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link AhoCorasickDPI} finds the same strings as {@link ServerDPI}
+ */
+public class AhoCorasickDPITest {
+
+    /**
+     * Tests overlapping strings, strings that are suffixes of each other and duplicates
+     */
+    @Test
+    public void testOverlappingStrings() {
+        String[] searchStrings = {"he", "she", "his", "hers", "he", "s"};
+        compareWithServerDPI(searchStrings, "ushers and his sheep: she said hershey");
+    }
+
+    /**
+     * Tests strings that overlap themselves, of which only non-overlapping occurrences count
+     */
+    @Test
+    public void testSelfOverlappingStrings() {
+        compareWithServerDPI(new String[] {"aa", "aaa", "a"}, "aaaa");
+        compareWithServerDPI(new String[] {"abab", "bab", "ab"}, "abababab xababa");
+
+        // Short strings over two letters overlap themselves and each other all the time
+        Random random = new Random(3);
+        for (int n = 0; n < 200; n++) {
+            String[] searchStrings = new String[1 + random.nextInt(5)];
+            for (int i = 0; i < searchStrings.length; i++)
+                searchStrings[i] = randomString(random, 1 + random.nextInt(4));
+            compareWithServerDPI(searchStrings, randomString(random, random.nextInt(40)));
+        }
+
+        DPIInterface dpi = new AhoCorasickDPI();
+        dpi.init(new String[] {"aa"});
+        byte[] packet = "aaaa".getBytes(Charset.forName("UTF-8"));
+        assertEquals(4, dpi.search(ByteBuffer.wrap(packet), packet.length).size());
+    }
+
+    /**
+     * Tests strings that look like the features found in our trees
+     */
+    @Test
+    public void testHttpFeatures() {
+        String[] searchStrings = {"/ads/", "&adid=", "host: ", "ads.", "user-agent: ",
+                "\r\nconnection: ", "=", "unity3d.com", "ity"};
+        String packet = "/ads/v2/get?bundleId=com.kt.slime&adid=1234&ads.test=1 HTTP/1.1\r\n" +
+                "host: publisher-config.unityads.unity3d.com\r\n" +
+                "connection: Keep-Alive\r\n" +
+                "user-agent: Dalvik/2.1.0 (Linux; U; Android 7.1.1; Nexus 6 Build/N6F27M)\r\n";
+        compareWithServerDPI(searchStrings, packet);
+    }
+
+    /**
+     * Tests that nothing is found if nothing matches, or if there is nothing to search for
+     */
+    @Test
+    public void testNoMatches() {
+        compareWithServerDPI(new String[] {"xyz", "abcd"}, "abcabcabc");
+        compareWithServerDPI(new String[0], "abcabcabc");
+        compareWithServerDPI(new String[] {"abc"}, "");
+    }
+
+    /**
+     * Tests byte mode on a direct buffer that holds the packet between its position and limit
+     */
+    @Test
+    public void testByteModeDirectBuffer() {
+        String[] searchStrings = {"adid=", "host: ", "ads", "caf\u00e9", "\u00e9"};
+        String packet = "/ads/get?adid=1234 HTTP/1.1\r\nhost: caf\u00e9.com\r\n";
+        byte[] packetBytes = packet.getBytes(Charset.forName("UTF-8"));
+
+        // Surround the packet with bytes that should not be searched
+        ByteBuffer buffer = ByteBuffer.allocateDirect(packetBytes.length + 8);
+        buffer.put("adid=ads".getBytes(Charset.forName("UTF-8")), 0, 4);
+        buffer.put(packetBytes);
+        buffer.put("host".getBytes(Charset.forName("UTF-8")));
+        buffer.position(4);
+        buffer.limit(4 + packetBytes.length);
+        ByteBuffer readOnly = buffer.asReadOnlyBuffer();
+
+        DPIInterface dpi = new AhoCorasickDPI(true);
+        dpi.init(searchStrings);
+        List<String> actual = toPairs(dpi.search(readOnly, readOnly.remaining()));
+
+        // Byte offsets of the non-ASCII strings differ from character offsets
+        int cafeEnd = packet.indexOf("caf\u00e9") +
+                "caf\u00e9".getBytes(Charset.forName("UTF-8")).length;
+        List<String> expected = new ArrayList<>();
+        expected.add("ads@4");
+        expected.add("adid=@14");
+        expected.add("host: @35");
+        expected.add("caf\u00e9@" + cafeEnd);
+        expected.add("\u00e9@" + cafeEnd);
+        Collections.sort(expected);
+
+        assertEquals(expected, actual);
+        assertEquals(4, readOnly.position());
+    }
+
+    /**
+     * Runs both DPI implementations on the given packet and makes sure they found the same
+     * strings at the same positions
+     * @param searchStrings strings to search for
+     * @param packet the packet to search
+     */
+    private void compareWithServerDPI(String[] searchStrings, String packet) {
+        DPIInterface expectedDPI = new ServerDPI();
+        expectedDPI.init(searchStrings);
+        DPIInterface actualDPI = new AhoCorasickDPI();
+        actualDPI.init(searchStrings);
+
+        byte[] packetBytes = packet.getBytes(Charset.forName("UTF-8"));
+        List<String> expected = toPairs(expectedDPI.search(ByteBuffer.wrap(packetBytes),
+                packetBytes.length));
+        List<String> actual = toPairs(actualDPI.search(ByteBuffer.wrap(packetBytes),
+                packetBytes.length));
+
+        assertEquals(expected, actual);
+
+        // Matching bytes should give the same results on ASCII packets
+        DPIInterface byteDPI = new AhoCorasickDPI(true);
+        byteDPI.init(searchStrings);
+        assertEquals(expected, toPairs(byteDPI.search(ByteBuffer.wrap(packetBytes),
+                packetBytes.length)));
+    }
+
+    /**
+     * @param random source of letters
+     * @param length length of the string
+     * @return a string of the given length made of the letters 'a' and 'b'
+     */
+    private static String randomString(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+            sb.append(random.nextBoolean() ? 'a' : 'b');
+        return sb.toString();
+    }
+
+    /**
+     * Converts DPI results to a sorted list of "string@endIndex" pairs, since the order in which
+     * the strings are found differs between implementations
+     * @param foundStrings DPI search results
+     * @return sorted list of pairs
+     */
+    private List<String> toPairs(ArrayList<String> foundStrings) {
+        List<String> pairs = new ArrayList<>();
+        for (int i = 0; i < foundStrings.size(); i += 2)
+            pairs.add(foundStrings.get(i) + "@" + foundStrings.get(i + 1));
+        Collections.sort(pairs);
+        return pairs;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.prediction;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link ArffFiles} writes the same output as Weka and reads back the header of both
+ * plain and gzipped files
+ */
+public class ArffFilesTest {
+
+    @Test
+    public void testWriteAndReadStructure() throws Exception {
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+            attributes.add(new Attribute("word " + i + "\u00e9"));
+        attributes.add(new Attribute("ats", Arrays.asList("0", "1")));
+        Instances instances = new Instances("Rel", attributes, 0);
+        for (int i = 0; i < 200; i++) {
+            double[] values = new double[attributes.size()];
+            values[i % 50] = i;
+            values[50] = i % 2;
+            instances.add(new SparseInstance(1.0, values));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArffFiles.write(instances, out, false);
+        assertEquals(instances.toString(), new String(out.toByteArray(), "UTF-8"));
+
+        File dir = File.createTempFile("arff", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdirs());
+        try {
+            String featuresDir = dir.getPath() + File.separator;
+            assertNull(ArffFiles.find(featuresDir, "a.com_android"));
+
+            for (boolean gzip : new boolean[] {false, true}) {
+                File file = new File(ArffFiles.getPath(featuresDir, "a.com_android", gzip));
+                try (OutputStream fileOut = new FileOutputStream(file)) {
+                    ArffFiles.write(instances, fileOut, gzip);
+                }
+                // The newest file is used if there are both
+                assertTrue(file.setLastModified(System.currentTimeMillis() + (gzip ? 2000 : 0)));
+                assertEquals(file, ArffFiles.find(featuresDir, "a.com_android"));
+
+                Instances structure = ArffFiles.readStructure(file);
+                assertEquals(0, structure.numInstances());
+                assertNull(new Instances(instances, 0).equalHeadersMsg(structure));
+            }
+        } finally {
+            for (File file : dir.listFiles())
+                file.delete();
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uci.nomoads.prediction;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import weka.classifiers.trees.J48;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link CompiledTree} classifies feature counts the same way as {@link J48}
+ */
+public class CompiledTreeTest {
+    private static final int NUM_FEATURES = 12;
+
+    /**
+     * Trains a tree on random feature counts and compares predictions on unseen counts
+     */
+    @Test
+    public void testSameAsWeka() throws Exception {
+        Random random = new Random(42);
+        Instances data = createData(random, 500);
+        J48 j48 = new J48();
+        j48.buildClassifier(data);
+
+        CompiledTree tree = CompiledTree.compile(j48, new Instances(data, 0));
+        assertNotNull(tree);
+        assertTrue(tree.numNodes() > 1);
+        assertTrue(tree.verify(tree, j48, data));
+
+        Instances test = createData(random, 1000);
+        for (Instance instance : test) {
+            double[] values = instance.toDoubleArray();
+            assertEquals((int) j48.classifyInstance(instance), tree.classify(values));
+        }
+    }
+
+    /**
+     * Generates a class for a trained tree and compares its predictions with Weka
+     */
+    @Test
+    public void testGeneratedClass() throws Exception {
+        Random random = new Random(7);
+        Instances data = createData(random, 500);
+        J48 j48 = new J48();
+        j48.buildClassifier(data);
+
+        CompiledTree tree = CompiledTree.compile(j48, new Instances(data, 0));
+        assertNotNull(tree);
+        Map<String, CompiledTree> trees = new HashMap<>();
+        trees.put("test", tree);
+        TreeEvaluator generated = TreeClassGenerator.generate(trees).get("test");
+        assertNotNull(generated);
+        assertTrue(tree.verify(generated, j48, data));
+
+        Instances test = createData(random, 1000);
+        for (Instance instance : test) {
+            double[] values = instance.toDoubleArray();
+            assertEquals((int) j48.classifyInstance(instance), generated.classify(values));
+        }
+
+        double[] missing = test.get(0).toDoubleArray();
+        missing[tree.getAttribute(0)] = Utils.missingValue();
+        assertEquals(TreeEvaluator.UNKNOWN, generated.classify(missing));
+    }
+
+    /**
+     * Makes sure that a tree too deep to compile is skipped without losing the other trees
+     */
+    @Test
+    public void testDeepTreeSkipped() throws Exception {
+        Random random = new Random(7);
+        Instances data = createData(random, 500);
+        J48 j48 = new J48();
+        j48.buildClassifier(data);
+
+        // A chain of numeric splits, each with a leaf on one side and the rest on the other
+        int numSplits = 3 * TreeClassGenerator.MAX_TREE_DEPTH;
+        int numNodes = 2 * numSplits + 1;
+        int[] attributes = new int[numNodes];
+        int[] firstChild = new int[numNodes];
+        int[] numChildren = new int[numNodes];
+        int[] children = new int[2 * numSplits];
+        for (int node = 0; node < numNodes; node++)
+            attributes[node] = CompiledTree.LEAF;
+        for (int i = 0; i < numSplits; i++) {
+            int node = 2 * i;
+            attributes[node] = 0;
+            firstChild[node] = node;
+            numChildren[node] = 2;
+            children[node] = node + 1;
+            children[node + 1] = node + 2;
+        }
+        CompiledTree deep = new CompiledTree(attributes, new boolean[numNodes],
+                new double[numNodes], firstChild, numChildren, children, new int[numNodes]);
+        assertEquals(numSplits + 1, deep.depth());
+        assertTrue(deep.numNodes() <= TreeClassGenerator.MAX_TREE_NODES);
+
+        Map<String, CompiledTree> trees = new HashMap<>();
+        trees.put("deep", deep);
+        trees.put("test", CompiledTree.compile(j48, new Instances(data, 0)));
+        Map<String, TreeEvaluator> generated = TreeClassGenerator.generate(trees);
+        assertFalse(generated.containsKey("deep"));
+        assertNotNull(generated.get("test"));
+    }
+
+    /**
+     * Builds a data set shaped like ours: numeric feature counts followed by a nominal label,
+     * where the label depends on a few of the features
+     * @param random source of feature counts
+     * @param numInstances number of instances to create
+     * @return the data set
+     */
+    static Instances createData(Random random, int numInstances) {
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        for (int i = 0; i < NUM_FEATURES; i++)
+            attributes.add(new Attribute("feature" + i));
+
+        ArrayList<String> classes = new ArrayList<>();
+        classes.add("0");
+        classes.add("1");
+        attributes.add(new Attribute("label", classes));
+
+        Instances data = new Instances("test", attributes, numInstances);
+        data.setClassIndex(NUM_FEATURES);
+        for (int n = 0; n < numInstances; n++) {
+            double[] values = new double[NUM_FEATURES + 1];
+            for (int i = 0; i < NUM_FEATURES; i++)
+                values[i] = random.nextInt(4) == 0 ? random.nextInt(3) : 0;
+
+            boolean ad = (values[0] > 0 && values[3] < 2) || values[5] > 1 ||
+                    (values[7] > 0 && values[8] > 0);
+            // Add some noise so that the tree has to prune
+            if (random.nextInt(20) == 0)
+                ad = !ad;
+            values[NUM_FEATURES] = ad ? 1 : 0;
+            data.add(new DenseInstance(1.0, values));
+        }
+        return data;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uci.nomoads.prediction;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link FeatureIndex} behaves like the {@link HashMap} it replaces
+ */
+public class FeatureIndexTest {
+
+    @Test
+    public void testSameAsHashMap() {
+        Random random = new Random(7);
+        // "Aa" and "BB" have the same hash code, so probing is exercised
+        String[] attributes = new String[500];
+        attributes[0] = "Aa";
+        attributes[1] = "BB";
+        attributes[2] = "";
+        for (int i = 3; i < attributes.length; i++)
+            attributes[i] = "feature" + random.nextInt(100000) + "\u00e9";
+
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < attributes.length; i++)
+            expected.put(attributes[i], i);
+
+        FeatureIndex index = FeatureIndex.of(attributes);
+        assertEquals(expected, index);
+        assertEquals(expected.size(), index.size());
+        for (Map.Entry<String, Integer> entry : expected.entrySet())
+            assertEquals((int) entry.getValue(), index.indexOf(entry.getKey()));
+        assertEquals(FeatureIndex.NOT_FOUND, index.indexOf("missing"));
+        assertNull(index.get("missing"));
+        assertFalse(index.containsKey(1));
+
+        assertSame(index, FeatureIndex.of(index));
+        assertEquals(expected, FeatureIndex.of(expected));
+        assertEquals(0, FeatureIndex.EMPTY.size());
+        assertEquals(FeatureIndex.NOT_FOUND, FeatureIndex.EMPTY.indexOf("Aa"));
+    }
+}
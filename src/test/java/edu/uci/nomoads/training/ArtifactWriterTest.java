@@ -0,0 +1,79 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.training;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link ArtifactWriter} writes all queued files and reports the ones it could not
+ * write
+ */
+public class ArtifactWriterTest {
+
+    @Test
+    public void testWriteAndReport() throws Exception {
+        File dir = Files.createTempDirectory("artifacts").toFile();
+        try {
+            // More files than fit in the queue, so that some are written by this thread
+            ArtifactWriter writer = new ArtifactWriter(2);
+            for (int i = 0; i < 20; i++)
+                writer.write(new File(dir, i + ".txt").getPath(), "file " + i);
+            String missingDir = new File(dir, "missing/0.txt").getPath();
+            writer.write(missingDir, "lost");
+            String failing = new File(dir, "failing.txt").getPath();
+            writer.write(failing, new ArtifactWriter.Content() {
+                @Override
+                public void writeTo(OutputStream out) throws Exception {
+                    out.write('x');
+                    throw new IllegalStateException("no contents");
+                }
+            });
+
+            try {
+                writer.close();
+                fail();
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains(missingDir));
+                assertTrue(e.getMessage().contains(failing));
+                assertEquals(2, e.getSuppressed().length);
+            }
+
+            for (int i = 0; i < 20; i++)
+                assertEquals("file " + i, new String(Files.readAllBytes(
+                        new File(dir, i + ".txt").toPath()), "UTF-8"));
+            // Partially written files never replace their destination
+            assertFalse(new File(failing).exists());
+
+            // Failures are only reported once, and the writer can still be used
+            writer.write(new File(dir, "late.txt").getPath(), "late");
+            writer.close();
+            assertTrue(new File(dir, "late.txt").exists());
+        } finally {
+            for (File file : dir.listFiles())
+                file.delete();
+            dir.delete();
+        }
+    }
+}
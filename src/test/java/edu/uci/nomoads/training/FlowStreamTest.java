@@ -0,0 +1,110 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.uci.nomoads.training;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link FlowStream} reads the same flows as parsing the whole file
+ */
+public class FlowStreamTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSameAsParser() throws Exception {
+        JSONObject trFlows = new JSONObject();
+        for (int i = 0; i < 50; i++) {
+            JSONObject flow = new JSONObject();
+            flow.put(JsonKeyDef.F_KEY_PKG_NAME, "com.example.app" + (i % 3));
+            flow.put("uri", "/ads?id=" + i + "&q=\u00e9\"\\");
+            flow.put("dst_port", (long) (80 + i));
+            flow.put("ad", i % 2 == 0);
+            flow.put("empty", new JSONObject());
+            JSONArray pii = new JSONArray();
+            if (i % 5 == 0)
+                pii.add("imei");
+            flow.put(JsonKeyDef.F_KEY_PII_TYPES, pii);
+            JSONObject headers = new JSONObject();
+            headers.put("host", "ads" + i + ".example.com");
+            headers.put("nested", new JSONArray());
+            flow.put("headers", headers);
+            trFlows.put("flow" + i, flow);
+        }
+
+        File file = File.createTempFile("flows", ".json");
+        try {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+                    Charset.forName("UTF-8"))) {
+                writer.write(trFlows.toJSONString());
+            }
+
+            FlowStream stream = new FlowStream(file.getPath());
+            // Every iteration reads the file again
+            for (int pass = 0; pass < 2; pass++) {
+                List<JSONObject> flows = new ArrayList<>();
+                for (JSONObject flow : stream)
+                    flows.add(flow);
+                assertEquals(trFlows.size(), flows.size());
+                assertTrue(trFlows.values().containsAll(flows));
+            }
+
+            // Same flows as in-memory data
+            JSONObject parsed = (JSONObject) new JSONParser().parse(trFlows.toJSONString());
+            List<JSONObject> flows = new ArrayList<>();
+            for (JSONObject flow : FlowStream.of(parsed))
+                flows.add(flow);
+            assertTrue(flows.containsAll(trFlows.values()));
+
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+                    Charset.forName("UTF-8"))) {
+                writer.write("{}");
+            }
+            assertFalse(stream.iterator().hasNext());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNotFlows() throws Exception {
+        File file = File.createTempFile("flows", ".json");
+        try {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+                    Charset.forName("UTF-8"))) {
+                writer.write("{\"flow0\": {}, \"flow1\": 5}");
+            }
+            for (JSONObject flow : new FlowStream(file.getPath()))
+                assertNotNull(flow);
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uci.nomoads.training;
+
+import edu.uci.nomoads.training.PIIDetector.PIIType;
+import org.junit.Test;
+
+import java.util.EnumSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link PIIDetector} on tokens of each type of PII
+ */
+public class PIIDetectorTest {
+
+    @Test
+    public void testDetect() {
+        assertEquals(EnumSet.of(PIIType.EMAIL), PIIDetector.detect("jane@mail.example.com"));
+        assertEquals(EnumSet.of(PIIType.MAC_ADDRESS), PIIDetector.detect("a4:5e:60:c2:1f:0b"));
+        assertEquals(EnumSet.of(PIIType.IMEI, PIIType.IMSI),
+                PIIDetector.detect("358240051111110"));
+        assertEquals(EnumSet.of(PIIType.ZIP_CODE), PIIDetector.detect("92697"));
+        assertEquals(EnumSet.of(PIIType.ZIP_CODE, PIIType.PHONE_NUMBER),
+                PIIDetector.detect("92697-1234"));
+        assertEquals(EnumSet.of(PIIType.CREDIT_CARD, PIIType.ANDROID_ID),
+                PIIDetector.detect("4111111111111111"));
+        assertEquals(EnumSet.of(PIIType.IP), PIIDetector.detect("192.168.0.1"));
+        assertEquals(EnumSet.of(PIIType.IP),
+                PIIDetector.detect("fe80:0:0:0:202:b3ff:fe1e:8329"));
+        assertEquals(EnumSet.of(PIIType.GENDER), PIIDetector.detect("Female"));
+        assertEquals(EnumSet.of(PIIType.TIME), PIIDetector.detect("15:58:41"));
+        assertEquals(EnumSet.of(PIIType.TIME), PIIDetector.detect("15-Sep-2013"));
+        assertEquals(EnumSet.noneOf(PIIType.class), PIIDetector.detect("gzip"));
+        assertFalse(PIIDetector.containsPII("999.1.1.1"));
+        assertTrue(PIIDetector.containsPII("1/12/1999"));
+    }
+
+    @Test
+    public void testValidators() {
+        assertTrue(RString.isEmail("a_b+c@mail.example.org"));
+        assertFalse(RString.isEmail("a@b"));
+        assertTrue(RString.isMacAddress("02:00:00:00:00:00"));
+        assertTrue(RString.isPhoneNumber("5556667777"));
+        assertFalse(RString.isPhoneNumber("555666777x"));
+        assertTrue(RString.isIP("10.0.0.255"));
+        assertFalse(RString.isIP("10.0.0.256"));
+        assertTrue(RString.isTime("2013-09-15"));
+        assertTrue(RString.isImageOrFile("logo.PNG"));
+        assertFalse(RString.isCreditCard("1234567890123"));
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * This file is part of NoMoAds <http://athinagroup.eng.uci.edu/projects/nomoads/>.
+ * Copyright (C) 2018, 2019 Anastasia Shuba
+ *
+ * NoMoAds is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NoMoAds is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NoMoAds.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.uci.nomoads.training;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link RString#breakLineIntoWords(String, boolean)} against the regex-based tokenizer
+ * it replaced
+ */
+public class RStringTest {
+    private static final String[] TRAINING_FILES = {"src/test/test_even.json",
+            "src/test/test_uneven.json"};
+
+    /** Characters the random lines are made of: delimiters, separators and plain text */
+    private static final String FUZZ_CHARS = ",\t/|*!#&?\n;{}() =:=:>-\r\u00e9aZ09.";
+
+    @Test
+    public void testTrainingFlows() throws Exception {
+        Trainer trainer = new DataSplitter(new Config("config.cfg")).trainer;
+        JSONParser parser = new JSONParser();
+        int numLines = 0;
+        for (String file : TRAINING_FILES) {
+            JSONObject flows = (JSONObject) parser.parse(new FileReader(file));
+            for (Object id : flows.keySet()) {
+                assertSameTokens(trainer.getLine((JSONObject) flows.get(id)));
+                numLines++;
+            }
+        }
+        assertTrue(numLines > 0);
+    }
+
+    @Test
+    public void testRandomLines() {
+        assertSameTokens("");
+        assertSameTokens("\t\t");
+        assertSameTokens("a:b=c");
+        assertSameTokens("/==/:/");
+        assertSameTokens("GET /a?b=1&c=>2-&d=:&e HTTP/1.1\r\nHost: x.com\r\n\t\t");
+        assertSameTokens("/p?a=1\t<?xml version=\"1.0\"?><r><k>v</k></r>\t&b:2\t");
+
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder line = new StringBuilder();
+            int length = random.nextInt(40);
+            for (int j = 0; j < length; j++)
+                line.append(FUZZ_CHARS.charAt(random.nextInt(FUZZ_CHARS.length())));
+            assertSameTokens(line.toString());
+        }
+    }
+
+    /**
+     * Tokenizes a line with both tokenizers and compares their output
+     * @param line the line to tokenize
+     */
+    private void assertSameTokens(String line) {
+        LegacyTokenizer expected = new LegacyTokenizer();
+        expected.breakLineIntoWords(line);
+
+        RString actual = new RString();
+        actual.breakLineIntoWords(line, false);
+        assertEquals(line, expected.words, actual.Words);
+        assertNull(actual.NiceLine);
+        assertNull(actual.termList);
+
+        actual.breakLineIntoWords(line);
+        assertEquals(line, expected.words, actual.Words);
+        assertEquals(line, expected.niceLine, actual.NiceLine);
+        assertEquals(line, expected.termList, actual.termList);
+    }
+
+    /**
+     * The previous implementation of {@link RString#breakLineIntoWords(String)}
+     */
+    private static class LegacyTokenizer {
+        Map<String, Integer> words;
+        String niceLine;
+        List<String> termList;
+
+        void breakLineIntoWords(String line) {
+            String niceLine = "";
+            ArrayList<String> termXML = new ArrayList<String>();
+            String rest_line = "";
+            for (String fd : line.split("\t")) {
+                ArrayList<String> tmptermXML = new RString().tryXml(fd);
+                if (tmptermXML == null) {
+                    rest_line += fd + "\t";
+                } else {
+                    termXML = tmptermXML;
+                }
+            }
+            line = rest_line;
+
+            ArrayList<String> termList = new ArrayList<String>();
+            Map<String, Integer> words = new HashMap<String, Integer>();
+            int wordStart = -1;
+            for (int i = 0; i < line.length(); i++) {
+                if (Character.toString(line.charAt(i)).matches(RString.DELIMITERS)) {
+                    if (wordStart == -1) {
+                        wordStart = i;
+                        continue;
+                    }
+                    String word = line.substring(wordStart, i + 1);
+                    niceLine = saveWord(word, words, termList, niceLine);
+                    wordStart = i;
+                }
+            }
+
+            niceLine = niceLine.trim();
+            for (String t : termXML) {
+                termList.add(t);
+                niceLine += t + "\t";
+            }
+            this.niceLine = niceLine;
+            this.words = words;
+            this.termList = termList;
+        }
+
+        private String saveWord(String t, Map<String, Integer> words, ArrayList<String> termList,
+                                String niceLine) {
+            if (t.length() < 1)
+                return niceLine;
+            boolean isValueOnly = true;
+
+            String delim = "=";
+            if (t.contains(":") && !t.contains("=")) {
+                delim = ":";
+                t = t.replaceFirst(":", "=");
+            }
+            if (t.contains("=")) {
+                String[] tsplit = t.split("=");
+                if (tsplit.length > 1) {
+                    String reconk = tsplit[0];
+                    String reconv = tsplit[1].trim();
+                    if (reconv.endsWith(":") || reconv.endsWith("-")
+                            || reconv.endsWith("="))
+                        reconv = reconv.substring(0, reconv.length() - 1);
+                    if (reconv.startsWith(">"))
+                        reconv = reconv.substring(1);
+
+                    reconk += delim;
+                    if (reconk.length() >= 2)
+                        termList.add(reconk);
+                    if (reconv.length() >= 1)
+                        termList.add(reconv);
+                    isValueOnly = false;
+                    if (words.containsKey(reconk)) {
+                        words.put(reconk, words.get(reconk) + 1);
+                    } else {
+                        words.put(reconk, 1);
+                    }
+                } else if (tsplit.length == 1) {
+                    t = tsplit[0];
+                }
+            } else {
+                if (words.containsKey(t)) {
+                    words.put(t, words.get(t) + 1);
+                } else {
+                    words.put(t, 1);
+                }
+            }
+            if (isValueOnly) {
+                t = t.trim();
+                if (t.length() == 0)
+                    return niceLine;
+                if (t.length() == 1) {
+                    char tmpt = t.charAt(0);
+                    if (!Character.isAlphabetic(tmpt)
+                            && !Character.isDigit(tmpt))
+                        return niceLine;
+                }
+                termList.add(t);
+            }
+            niceLine += t + '\t';
+            return niceLine;
+        }
+    }
+}
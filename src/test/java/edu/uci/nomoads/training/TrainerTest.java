@@ -23,11 +23,17 @@ import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.junit.Before;
 import org.junit.Test;
+import weka.core.Attribute;
+import weka.core.Instances;
 
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import static org.junit.Assert.*;
@@ -114,6 +120,102 @@ public class TrainerTest {
         testAllAdded(inf.initNumTotal, bins);
     }
 
+    /**
+     * Checks that cached flows hold the same words and labels as freshly tokenized ones, both
+     * when the cache is built and when it is loaded by a later run
+     * @throws Exception
+     */
+    @Test
+    public void testTokenCache() throws Exception {
+        String trainingFile = "src/test/test_uneven.json";
+        JSONObject trFlows = (JSONObject) parser.parse(new FileReader(trainingFile));
+        Trainer trainer = dataSplitter.trainer;
+
+        File cacheDir = Files.createTempDirectory("token_cache").toFile();
+        try {
+            for (int run = 0; run < 2; run++) {
+                TokenCache cache = TokenCache.open(trainingFile, trainer, cacheDir.getPath());
+                assertEquals(1, cacheDir.listFiles().length);
+                assertEquals(trFlows.size(), cache.numFlows());
+
+                int[] rows = cache.getRows(trFlows.keySet());
+                int i = 0;
+                for (Object id : trFlows.keySet()) {
+                    JSONObject flow = (JSONObject) trFlows.get(id);
+                    int row = rows[i++];
+                    Map<String, Integer> words = trainer.tokenize(flow);
+                    assertEquals(words, cache.getWords(row));
+                    assertEquals(flow.get(JsonKeyDef.F_KEY_PKG_NAME), cache.getPkgName(row));
+                    assertEquals(flow.get(JsonKeyDef.F_KEY_PII_TYPES), cache.getPiiLabels(row));
+                    assertEquals(ServerUtils.getIntFromJSONObject(flow, trainer.jsonKeyLabel),
+                            cache.getAdLabel(row));
+                }
+            }
+        } finally {
+            for (File file : cacheDir.listFiles())
+                file.delete();
+            cacheDir.delete();
+        }
+    }
+
+    /**
+     * Makes sure each row of the training matrix holds the words of its flow
+     * @throws Exception
+     */
+    @Test
+    public void testTrainingMatrix() throws Exception {
+        JSONObject trFlows = (JSONObject) parser.parse(
+                new FileReader("src/test/test_uneven.json"));
+        Trainer trainer = dataSplitter.trainer;
+        TrainingData trainingData = trainer.populateTrainingMatrix(trFlows,
+                new TrainingData(FlowStream.of(trFlows), trainer.vocabulary));
+
+        WordMatrix matrix = trainingData.trainMatrix;
+        assertEquals(trFlows.size(), matrix.numRows());
+        int row = 0;
+        for (Object flow : trFlows.values()) {
+            Map<String, Integer> words = new HashMap<>();
+            for (int entry = matrix.rowStart(row); entry < matrix.rowEnd(row); entry++)
+                words.put(trainer.vocabulary.word(matrix.wordId(entry)), matrix.wordCount(entry));
+            assertEquals(trainer.tokenize((JSONObject) flow), words);
+            row++;
+        }
+        assertEquals(matrix.numCountedWords(), matrix.getWordCounts().size());
+    }
+
+    /**
+     * Makes sure flows without a package name are added, without adding a package name for them
+     * @throws Exception
+     */
+    @Test
+    public void testMissingPkgName() throws Exception {
+        JSONObject trFlows = (JSONObject) parser.parse(
+                new FileReader("src/test/test_uneven.json"));
+        Object[] flows = trFlows.values().toArray();
+        ((JSONObject) flows[0]).remove(JsonKeyDef.F_KEY_PKG_NAME);
+        Trainer trainer = dataSplitter.trainer;
+        TrainingData trainingData = trainer.populateTrainingMatrix(trFlows,
+                new TrainingData(FlowStream.of(trFlows), trainer.vocabulary));
+
+        assertEquals(trFlows.size(), trainingData.pkgNames.size());
+        assertNull(trainingData.pkgNames.get(0));
+        assertFalse(trainer.pkgNames.isEmpty());
+
+        // Such flows take the unknown package name
+        UrlHeadersAppsAdsTrainer appsTrainer = new UrlHeadersAppsAdsTrainer(
+                trainer.mServerUtils);
+        trainingData = appsTrainer.populateTrainingMatrix(trFlows,
+                new TrainingData(FlowStream.of(trFlows), appsTrainer.vocabulary));
+        Info info = new Info();
+        info.domainOS = "test";
+        Instances instances = appsTrainer.populateArff(info, trainingData, 0);
+        Attribute pkgName = instances.attribute(JsonKeyDef.F_KEY_PKG_NAME);
+        assertEquals(UrlHeadersAppsAdsTrainer.UNKNOWN_PKG_NAME,
+                instances.get(0).stringValue(pkgName));
+        assertEquals(((JSONObject) flows[1]).get(JsonKeyDef.F_KEY_PKG_NAME),
+                instances.get(1).stringValue(pkgName));
+    }
+
     /**
      * Makes sure all IDs were selected exactly once
      * @param total - total number of data points considered